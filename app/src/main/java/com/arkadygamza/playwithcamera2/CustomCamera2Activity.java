@@ -7,19 +7,23 @@ import android.os.Bundle;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.v7.app.AppCompatActivity;
+import android.view.MotionEvent;
 import android.view.View;
 
 import com.example.arkadygamza.rxcamera2.CameraController;
+import com.example.arkadygamza.rxcamera2.FpsRangePolicy;
+import com.example.arkadygamza.rxcamera2.ImageTracker;
+import com.example.arkadygamza.rxcamera2.JpegEncodingPolicy;
 import com.example.arkadygamza.rxcamera2.OpenCameraException;
 
 import java.io.File;
-import java.io.IOException;
 
 
 
 public class CustomCamera2Activity extends AppCompatActivity {
 
     private static final String TAG = CustomCamera2Activity.class.getName();
+    private static final long TARGET_PHOTO_BYTES = 1024 * 1024;
 
     private CameraController mRxCameraController21;
     private View mFocusIndicator;
@@ -29,25 +33,31 @@ public class CustomCamera2Activity extends AppCompatActivity {
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.custom_camera_activity);
-        File outputDir = getCacheDir(); // context being the Activity pointer
-        File outputFile = null;
-        try {
-            outputFile = File.createTempFile("prefix", ".jpg", outputDir);
-        }
-        catch (IOException e) {
-            e.printStackTrace();
-        }
+        File outputDir = new File(getCacheDir(), "photos"); // context being the Activity pointer
+        ImageTracker.setRecordStacks(BuildConfig.DEBUG);
 
         findViewById(R.id.customCameraActivity_takePhoto).setOnClickListener(view -> mRxCameraController21.takePhoto());
         findViewById(R.id.customCameraActivity_switchCamera).setOnClickListener(view -> mRxCameraController21.switchCamera());
+        findViewById(R.id.customCameraActivity_gallery).setOnClickListener(view ->
+            startActivity(GalleryActivity.IntentHelper.createIntent(this, outputDir)));
         mFocusIndicator = findViewById(R.id.customCameraActivity_focusIndicator);
+        findViewById(R.id.customCameraActivity_textureView).setOnTouchListener((view, event) -> {
+            if (event.getActionMasked() == MotionEvent.ACTION_UP) {
+                mRxCameraController21.focusAt(event.getX(), event.getY());
+                view.performClick();
+            }
+            return true;
+        });
 
         mRxCameraController21 = new CameraController(
             this,
             mRxCamerController21Callback,
-            outputFile.getAbsolutePath(),
+            outputDir.getAbsolutePath(),
             findViewById(R.id.customCameraActivity_textureView),
             Configuration.ORIENTATION_PORTRAIT, this.getLifecycle());
+        mRxCameraController21.setJpegEncodingPolicy(JpegEncodingPolicy.forTargetBytesPerShot(TARGET_PHOTO_BYTES));
+        mRxCameraController21.setSurfacePrewarmEnabled(true);
+        mRxCameraController21.setFpsRangePolicy(FpsRangePolicy.createDefault());
     }
 
     private final CameraController.Callback mRxCamerController21Callback = new CameraController.Callback() {
@@ -0,0 +1,201 @@
+package com.arkadygamza.playwithcamera2;
+
+import android.content.Context;
+import android.content.Intent;
+import android.graphics.Bitmap;
+import android.os.Bundle;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.v7.app.AppCompatActivity;
+import android.util.Log;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.AbsListView;
+import android.widget.BaseAdapter;
+import android.widget.GridView;
+import android.widget.ImageView;
+
+import com.example.arkadygamza.rxcamera2.CaptureStore;
+import com.example.arkadygamza.rxcamera2.ThumbnailCache;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import io.reactivex.Single;
+import io.reactivex.android.schedulers.AndroidSchedulers;
+import io.reactivex.disposables.CompositeDisposable;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.disposables.SerialDisposable;
+import io.reactivex.schedulers.Schedulers;
+
+/**
+ * All photos of a capture directory, newest first. Cells show thumbnails only, the ones ahead of the scroll position
+ * are prefetched, so scrolling never waits for a full photo to decode.
+ */
+public class GalleryActivity extends AppCompatActivity {
+
+    private static final String TAG = GalleryActivity.class.getName();
+    /**
+     * Screens of thumbnails loaded ahead in the scroll direction
+     */
+    private static final int PREFETCH_SCREENS = 2;
+
+    private GridView mGridView;
+    private ThumbnailCache mThumbnailCache;
+    private final PhotoAdapter mAdapter = new PhotoAdapter();
+    private final CompositeDisposable mDisposable = new CompositeDisposable();
+    private final SerialDisposable mPrefetchDisposable = new SerialDisposable();
+    private int mFirstVisiblePosition = -1;
+
+    @Override
+    protected void onCreate(@Nullable Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.gallery_activity);
+        File photoDirectory = IntentHelper.getPhotoDirectory(getIntent());
+        mThumbnailCache = ThumbnailCache.forDirectory(photoDirectory);
+        mGridView = findViewById(R.id.galleryActivity_grid);
+        mGridView.setAdapter(mAdapter);
+        mGridView.setOnItemClickListener((parent, view, position, id) ->
+            startActivity(ShowPhotoActivity.IntentHelper.createIntent(this, mAdapter.getItem(position).getAbsolutePath())));
+        mGridView.setOnScrollListener(new AbsListView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+                prefetch(firstVisibleItem, visibleItemCount);
+            }
+        });
+        mDisposable.add(
+            Single.fromCallable(() -> {
+                List<File> photos = new ArrayList<>(CaptureStore.listCaptures(photoDirectory));
+                Collections.reverse(photos);
+                return photos;
+            })
+                .subscribeOn(Schedulers.io())
+                .observeOn(AndroidSchedulers.mainThread())
+                .subscribe(mAdapter::setPhotos, throwable -> Log.w(TAG, "can't list photos", throwable))
+        );
+    }
+
+    @Override
+    protected void onDestroy() {
+        mPrefetchDisposable.dispose();
+        mDisposable.dispose();
+        super.onDestroy();
+    }
+
+    /**
+     * Replaces the previous prefetch with the screens ahead of the visible one in the scroll direction
+     */
+    private void prefetch(int firstVisible, int visibleCount) {
+        if (firstVisible == mFirstVisiblePosition || visibleCount == 0) {
+            return;
+        }
+        boolean forward = firstVisible > mFirstVisiblePosition;
+        mFirstVisiblePosition = firstVisible;
+        List<File> photos = new ArrayList<>();
+        int count = mAdapter.getCount();
+        int ahead = visibleCount * PREFETCH_SCREENS;
+        if (forward) {
+            for (int i = firstVisible + visibleCount; i < Math.min(count, firstVisible + visibleCount + ahead); i++) {
+                photos.add(mAdapter.getItem(i));
+            }
+        }
+        else {
+            for (int i = firstVisible - 1; i >= Math.max(0, firstVisible - ahead); i--) {
+                photos.add(mAdapter.getItem(i));
+            }
+        }
+        mPrefetchDisposable.set(mThumbnailCache.prefetch(photos));
+    }
+
+    private class PhotoAdapter extends BaseAdapter {
+
+        private List<File> mPhotos = Collections.emptyList();
+
+        void setPhotos(@NonNull List<File> photos) {
+            mPhotos = photos;
+            notifyDataSetChanged();
+        }
+
+        @Override
+        public int getCount() {
+            return mPhotos.size();
+        }
+
+        @Override
+        public File getItem(int position) {
+            return mPhotos.get(position);
+        }
+
+        @Override
+        public long getItemId(int position) {
+            return position;
+        }
+
+        @Override
+        public View getView(int position, View convertView, ViewGroup parent) {
+            ImageView imageView;
+            CellHolder holder;
+            if (convertView == null) {
+                imageView = new ImageView(parent.getContext());
+                int size = getResources().getDimensionPixelSize(R.dimen.gallery_cell_size);
+                imageView.setLayoutParams(new AbsListView.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT, size));
+                imageView.setScaleType(ImageView.ScaleType.CENTER_CROP);
+                holder = new CellHolder();
+                imageView.setTag(holder);
+            }
+            else {
+                imageView = (ImageView) convertView;
+                holder = (CellHolder) imageView.getTag();
+            }
+            holder.bind(imageView, getItem(position));
+            return imageView;
+        }
+    }
+
+    /**
+     * Loads the thumbnail of a recycled cell, a load for the photo the cell showed before is cancelled
+     */
+    private class CellHolder {
+        @Nullable
+        private Disposable mLoad;
+
+        void bind(@NonNull ImageView imageView, @NonNull File photo) {
+            if (mLoad != null) {
+                mDisposable.remove(mLoad);
+                mLoad = null;
+            }
+            Bitmap cached = mThumbnailCache.getCached(photo);
+            if (cached != null) {
+                imageView.setImageBitmap(cached);
+                return;
+            }
+            imageView.setImageResource(R.drawable.ic_adb_black_24dp);
+            mLoad = mThumbnailCache.load(photo)
+                .observeOn(AndroidSchedulers.mainThread())
+                .subscribe(imageView::setImageBitmap, throwable -> imageView.setImageResource(R.drawable.ic_error_outline_black_24dp));
+            mDisposable.add(mLoad);
+        }
+    }
+
+    public static class IntentHelper {
+        private static final String EXTRA_PHOTO_DIRECTORY = "EXTRA_PHOTO_DIRECTORY";
+
+        @NonNull
+        public static Intent createIntent(@NonNull Context context, @NonNull File photoDirectory) {
+            Intent intent = new Intent(context, GalleryActivity.class);
+            intent.putExtra(EXTRA_PHOTO_DIRECTORY, photoDirectory.getAbsolutePath());
+            return intent;
+        }
+
+        @NonNull
+        static File getPhotoDirectory(@NonNull Intent intent) {
+            return new File(intent.getStringExtra(EXTRA_PHOTO_DIRECTORY));
+        }
+    }
+}
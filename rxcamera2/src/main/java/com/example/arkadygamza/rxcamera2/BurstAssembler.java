@@ -0,0 +1,115 @@
+package com.example.arkadygamza.rxcamera2;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Pairs the frames of a burst with the results of its requests, frames and results arrive independently in any order.
+ * <p>
+ * Requests are told apart by identity: the requests of a low-light burst have the same settings, and
+ * {@link android.hardware.camera2.CaptureRequest#equals} compares settings and targets. Frames are matched to results
+ * by sensor timestamp. Not thread safe.
+ *
+ * @param <Q> request
+ * @param <R> result
+ * @param <F> frame
+ */
+class BurstAssembler<Q, R, F> {
+
+    @NonNull
+    private final List<Q> mRequests;
+    @NonNull
+    private final List<R> mResults;
+    @NonNull
+    private final Long[] mTimestamps;
+    private final Map<Long, F> mFrames = new HashMap<>();
+    private int mResultCount;
+
+    BurstAssembler(@NonNull List<Q> requests) {
+        mRequests = requests;
+        mResults = new ArrayList<>(requests.size());
+        for (int i = 0; i < requests.size(); i++) {
+            mResults.add(null);
+        }
+        mTimestamps = new Long[requests.size()];
+    }
+
+    int size() {
+        return mRequests.size();
+    }
+
+    /**
+     * @param timestamp sensor timestamp of the result, null if the camera didn't report it
+     * @return false if the request is not one of this burst
+     */
+    boolean onResult(@NonNull Q request, @NonNull R result, @Nullable Long timestamp) {
+        int index = indexOf(request);
+        if (index < 0) {
+            return false;
+        }
+        if (mResults.get(index) == null) {
+            mResultCount++;
+        }
+        mResults.set(index, result);
+        mTimestamps[index] = timestamp;
+        return true;
+    }
+
+    void onFrame(long timestamp, @NonNull F frame) {
+        mFrames.put(timestamp, frame);
+    }
+
+    int getFrameCount() {
+        return mFrames.size();
+    }
+
+    /**
+     * @return true once every request has its result and as many frames arrived
+     */
+    boolean isFilled() {
+        return mResultCount == mRequests.size() && mFrames.size() >= mRequests.size();
+    }
+
+    /**
+     * @return the result of the request at the index, null if it didn't arrive yet
+     */
+    @Nullable
+    R getResult(int index) {
+        return mResults.get(index);
+    }
+
+    /**
+     * @return frames in the request order, null if some result has no frame with its timestamp
+     */
+    @Nullable
+    List<F> getFrames() {
+        List<F> frames = new ArrayList<>(mRequests.size());
+        for (Long timestamp : mTimestamps) {
+            F frame = timestamp == null ? null : mFrames.get(timestamp);
+            if (frame == null) {
+                return null;
+            }
+            frames.add(frame);
+        }
+        return frames;
+    }
+
+    @NonNull
+    Iterable<Long> getFrameTimestamps() {
+        return mFrames.keySet();
+    }
+
+    private int indexOf(@NonNull Q request) {
+        for (int i = 0; i < mRequests.size(); i++) {
+            if (mRequests.get(i) == request) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -8,32 +8,50 @@ import android.arch.lifecycle.LifecycleOwner;
 import android.content.Context;
 import android.content.res.Configuration;
 import android.graphics.ImageFormat;
+import android.graphics.Point;
+import android.graphics.Rect;
 import android.graphics.SurfaceTexture;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCaptureSession;
 import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CameraDevice;
 import android.hardware.camera2.CameraManager;
-import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.CaptureFailure;
 import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.TotalCaptureResult;
+import android.hardware.camera2.params.MeteringRectangle;
 import android.media.ImageReader;
+import android.os.Build;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.util.Log;
-import android.util.Pair;
+import android.util.Range;
 import android.util.Size;
 import android.view.Surface;
 import android.view.TextureView;
 import android.view.WindowManager;
 
 import com.example.arkadygamza.rxcamera2.CameraRxWrapper.CaptureSessionData;
+import com.example.arkadygamza.rxcamera2.CameraStateMachine.Event;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
 
+import io.reactivex.Completable;
 import io.reactivex.Observable;
+import io.reactivex.Single;
 import io.reactivex.android.schedulers.AndroidSchedulers;
 import io.reactivex.disposables.CompositeDisposable;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.disposables.SerialDisposable;
+import io.reactivex.observers.DisposableSingleObserver;
 import io.reactivex.schedulers.Schedulers;
 import io.reactivex.subjects.PublishSubject;
 
@@ -42,6 +60,25 @@ import io.reactivex.subjects.PublishSubject;
 public class CameraController {
 
     static final String TAG = CameraController.class.getName();
+    private static final int MAX_RAW_IMAGES = 2;
+    /**
+     * One photo being saved while the next one is captured
+     */
+    private static final int MAX_JPEG_IMAGES = 2;
+    /**
+     * Tap-to-focus region size relative to the shorter side of the visible sensor area
+     */
+    private static final float FOCUS_REGION_FRACTION = 0.15f;
+    private static final long UNDISPOSED_CHECK_DELAY_MILLIS = 2000;
+    /**
+     * Shots are let through if the prepared callbacks don't come by then
+     */
+    private static final long SURFACE_PREPARE_TIMEOUT_MILLIS = 1000;
+    /**
+     * Scratch of all merging threads, the frames and the merged image are not part of it
+     */
+    private static final long MULTI_FRAME_MEMORY_BUDGET_BYTES = 8 * 1024 * 1024;
+    private static final MeteringRectangle[] DEFAULT_METERING_REGIONS = {new MeteringRectangle(0, 0, 0, 0, 0)};
 
     @NonNull
     private final Context mContext;
@@ -49,15 +86,59 @@ public class CameraController {
     private final Callback mCallback;
     private final int mLayoutOrientation;
     @NonNull
-    private final File mFile;
+    private final CaptureStore mCaptureStore;
+    @NonNull
+    private final ShotIndex mShotIndex;
+    @NonNull
+    private final ThumbnailCache mThumbnailCache;
     @NonNull
     private final AutoFitTextureView mTextureView;
     @NonNull
     private final WindowManager mWindowManager;
     @NonNull
     private final CameraManager mCameraManager;
+    // camera objects below are confined to the main thread, volatile only publishes them to the background callbacks
     private Surface mSurface;
-    private ImageReader mImageReader;
+    private final PreviewSurfaceManager mSurfaceManager = new PreviewSurfaceManager();
+    private volatile ImageReader mImageReader;
+    private ShotMetadataCollector mShotMetadataCollector;
+    private CaptureRequestTemplates mRequestTemplates;
+    private int mShotsSinceOpen;
+    private volatile boolean mSurfacePrewarmEnabled;
+    private final ShotLatencyStats mShotLatencyStats = new ShotLatencyStats();
+    @Nullable
+    private volatile FpsRangePolicy mFpsRangePolicy;
+    /**
+     * Policy of the running preview, null if the range is left to the camera
+     */
+    @Nullable
+    private FpsRangePolicy mPreviewFpsRangePolicy;
+    private boolean mPreviewIdle;
+    private final SerialDisposable mIdleDisposable = new SerialDisposable();
+    @Nullable
+    private volatile JpegEncodingPolicy mJpegEncodingPolicy;
+    private volatile boolean mRawCaptureEnabled;
+    @Nullable
+    private ImageReader mRawImageReader;
+    @Nullable
+    private RawCaptureMatcher mRawCaptureMatcher;
+    @Nullable
+    private DngWriter mDngWriter;
+    @Nullable
+    private volatile MultiFrameMode mMultiFrameMode;
+    @Nullable
+    private MultiFrameCapture mMultiFrameCapture;
+    /**
+     * Created with the first multi-frame shot and kept, its pool threads end when idle
+     */
+    @Nullable
+    private MultiFrameMerger mMultiFrameMerger;
+    @NonNull
+    private volatile CameraOpenStrategy mCameraOpenStrategy = CameraOpenStrategy.createDefault();
+    @NonNull
+    private volatile CameraSelector.Priority mCameraSelectionPriority = CameraSelector.Priority.QUALITY;
+    @Nullable
+    private volatile CameraSelector.Report mCameraSelectionReport;
 
     private class CameraParams {
         @NonNull
@@ -66,91 +147,338 @@ public class CameraController {
         private final CameraCharacteristics cameraCharacteristics;
         @NonNull
         private final Size previewSize;
+        @NonNull
+        private final Size stillSize;
+        /**
+         * Null if RAW is disabled, unsupported, or doesn't fit a guaranteed stream combination
+         */
+        @Nullable
+        private final Size rawSize;
+        /**
+         * Null if multi-frame shots are disabled or don't fit a guaranteed stream combination
+         */
+        @Nullable
+        private final Size yuvSize;
+        @Nullable
+        private final MultiFrameMode multiFrameMode;
+        @NonNull
+        private final CaptureRequestTemplates.Auto3A auto3A;
 
-        private CameraParams(@NonNull String cameraId, @NonNull CameraCharacteristics cameraCharacteristics, @NonNull Size previewSize) {
+        private CameraParams(@NonNull String cameraId, @NonNull CameraCharacteristics cameraCharacteristics,
+                             @NonNull StreamCombinations.StreamSizes sizes, @Nullable MultiFrameMode multiFrameMode) {
             this.cameraId = cameraId;
             this.cameraCharacteristics = cameraCharacteristics;
-            this.previewSize = previewSize;
+            this.previewSize = sizes.previewSize;
+            this.stillSize = sizes.stillSize;
+            this.rawSize = sizes.rawSize;
+            this.yuvSize = sizes.yuvSize;
+            this.multiFrameMode = sizes.yuvSize == null ? null : multiFrameMode;
+            this.auto3A = CaptureRequestTemplates.Auto3A.resolve(cameraCharacteristics);
         }
     }
 
-    private final CompositeDisposable mCompositeDisposable = new CompositeDisposable();
-    private final PublishSubject<Object> mOnPauseSubject = PublishSubject.create();
-    private final PublishSubject<Object> mOnShutterClick = PublishSubject.create();
-    private final PublishSubject<Object> mOnSwitchCameraClick = PublishSubject.create();
-    private final PublishSubject<SurfaceTexture> mOnSurfaceTextureAvailable = PublishSubject.create();
+    /**
+     * Everything bound to the currently open camera, cleared when it is closed
+     */
+    private final CompositeDisposable mCameraDisposable = new CompositeDisposable();
+    private final SerialDisposable mCaptureDisposable = new SerialDisposable();
+    private final SerialDisposable mFocusDisposable = new SerialDisposable();
+    /**
+     * Aspect ratio of the selected camera, only while resumed, a switch replaces it
+     */
+    private final SerialDisposable mCameraSelectionDisposable = new SerialDisposable();
+    private volatile long mFocusLockHoldMillis = 3000;
+    /**
+     * Tap-to-focus regions are set and AF is in the auto mode instead of the continuous one
+     */
+    private boolean mFocusRegionsSet;
+    private long mFocusLockedUntilMillis;
+    @NonNull
+    private final CameraStateMachine mStateMachine;
+    private final LiveParameters mLiveParameters = new LiveParameters();
+    private final CaptureFailureMonitor mCaptureFailureMonitor = new CaptureFailureMonitor();
+    /**
+     * Ticks on every preview frame drawn, paces {@link #mLiveParameters} updates
+     */
+    private final PublishSubject<SurfaceTexture> mPreviewFrames = PublishSubject.create();
+    /**
+     * Completed results of the repeating request, the 3A waits watch them instead of replacing the request
+     */
+    private final PublishSubject<CaptureSessionData> mPreviewResults = PublishSubject.create();
     private final ConvergeWaiter mAutoFocusConvergeWaiter = ConvergeWaiter.Factory.createAutoFocusConvergeWaiter();
     private final ConvergeWaiter mAutoExposureConvergeWaiter = ConvergeWaiter.Factory.createAutoExposureConvergeWaiter();
 
 
-    public CameraController(@NonNull Context context, @NonNull Callback callback, @NonNull String photoFileUrl,
+    /**
+     * @param photoDirectoryUrl directory for the photos, every shot is saved into a new file there
+     */
+    public CameraController(@NonNull Context context, @NonNull Callback callback, @NonNull String photoDirectoryUrl,
                             @NonNull AutoFitTextureView textureView, int layoutOrientation, @NonNull Lifecycle lifecycle) {
         mContext = context;
         mCallback = callback;
-        mFile = new File(photoFileUrl);
+        mCaptureStore = new CaptureStore(new File(photoDirectoryUrl));
+        mShotIndex = new ShotIndex(new File(photoDirectoryUrl, ShotIndex.FILE_NAME));
+        mThumbnailCache = ThumbnailCache.forDirectory(new File(photoDirectoryUrl));
         mTextureView = textureView;
         mLayoutOrientation = layoutOrientation;
         mWindowManager = (WindowManager) mContext.getSystemService(Context.WINDOW_SERVICE);
         mCameraManager = (CameraManager) mContext.getSystemService(Context.CAMERA_SERVICE);
+        mStateMachine = new CameraStateMachine(mActions, Looper.getMainLooper());
         lifecycle.addObserver(mLifecycleObserver);
     }
 
     public void takePhoto() {
-        mOnShutterClick.onNext(this);
+        onUserInteraction();
+        mStateMachine.dispatch(Event.shutter());
     }
 
     public void switchCamera() {
-        mOnSwitchCameraClick.onNext(this);
+        mStateMachine.dispatch(Event.switchCamera());
+    }
+
+    /**
+     * Additionally saves a DNG for every photo if the camera supports RAW alongside the preview and JPEG outputs,
+     * takes effect when a camera is selected next time.
+     */
+    public void setRawCaptureEnabled(boolean rawCaptureEnabled) {
+        mRawCaptureEnabled = rawCaptureEnabled;
+    }
+
+    /**
+     * Takes every photo as a burst of YUV frames merged on the CPU instead of a single JPEG, null for single shots.
+     * Falls back to single shots if the camera can't add the YUV output. Takes effect when a camera is selected next time.
+     */
+    public void setMultiFrameMode(@Nullable MultiFrameMode multiFrameMode) {
+        mMultiFrameMode = multiFrameMode;
+    }
+
+    /**
+     * @param jpegEncodingPolicy policy for JPEG quality and thumbnail size of the next shots, null for camera defaults
+     */
+    public void setJpegEncodingPolicy(@Nullable JpegEncodingPolicy jpegEncodingPolicy) {
+        mJpegEncodingPolicy = jpegEncodingPolicy;
+    }
+
+    /**
+     * Switches the preview between a fixed high and a variable low fps range by user activity, null leaves the range
+     * to the camera. Takes effect when the preview starts next time.
+     */
+    public void setFpsRangePolicy(@Nullable FpsRangePolicy fpsRangePolicy) {
+        mFpsRangePolicy = fpsRangePolicy;
     }
 
-    private CameraParams mCameraParams;
+    /**
+     * Brings the preview back to the active fps range of the {@link FpsRangePolicy} and restarts its idle timeout.
+     * Shutter, focus, zoom and exposure changes call it, call it for other interactions with the camera UI.
+     * Main thread only.
+     */
+    public void onUserInteraction() {
+        FpsRangePolicy policy = mPreviewFpsRangePolicy;
+        CameraParams cameraParams = mCameraParams;
+        if (policy == null || cameraParams == null) {
+            return;
+        }
+        CameraCharacteristics characteristics = cameraParams.cameraCharacteristics;
+        if (mPreviewIdle) {
+            mPreviewIdle = false;
+            Range<Integer> activeRange = policy.getActiveRange(characteristics);
+            if (activeRange != null) {
+                Log.d(TAG, "\tpreview fps range " + activeRange);
+                mLiveParameters.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, activeRange);
+            }
+        }
+        mIdleDisposable.set(
+            Completable.timer(policy.getIdleTimeoutMillis(), TimeUnit.MILLISECONDS, AndroidSchedulers.mainThread())
+                .subscribe(() -> {
+                    Range<Integer> idleRange = policy.getIdleRange(characteristics);
+                    if (idleRange != null) {
+                        Log.d(TAG, "\tidle, preview fps range " + idleRange);
+                        mPreviewIdle = true;
+                        mLiveParameters.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, idleRange);
+                    }
+                })
+        );
+    }
+
+    /**
+     * Allocates the buffers of the still outputs with {@link CameraCaptureSession#prepare(Surface)} right after the
+     * session is configured, so the first shot doesn't pay for it. Shots wait until the outputs are prepared.
+     * Needs API 23, ignored below. Takes effect when the session is created next time.
+     */
+    public void setSurfacePrewarmEnabled(boolean surfacePrewarmEnabled) {
+        mSurfacePrewarmEnabled = surfacePrewarmEnabled;
+    }
+
+    /**
+     * @return shot latency of the first shots of the sessions and of the rest
+     */
+    @NonNull
+    public ShotLatencyStats getShotLatencyStats() {
+        return mShotLatencyStats;
+    }
+
+    /**
+     * Replaces {@link CameraOpenStrategy#createDefault()}, takes effect when the camera is opened next time.
+     */
+    public void setCameraOpenStrategy(@NonNull CameraOpenStrategy cameraOpenStrategy) {
+        mCameraOpenStrategy = cameraOpenStrategy;
+    }
+
+    /**
+     * What cameras are ranked by, {@link CameraSelector.Priority#QUALITY} by default. Takes effect when a camera is selected next time.
+     */
+    public void setCameraSelectionPriority(@NonNull CameraSelector.Priority priority) {
+        mCameraSelectionPriority = priority;
+    }
+
+    /**
+     * @return why the current camera was selected, null until a camera is selected
+     */
+    @Nullable
+    public CameraSelector.Report getCameraSelectionReport() {
+        return mCameraSelectionReport;
+    }
+
+    /**
+     * Presses while a photo is being taken are {@link CaptureQueuePolicy#coalesce() coalesced} by default.
+     */
+    public void setCaptureQueuePolicy(@NonNull CaptureQueuePolicy captureQueuePolicy) {
+        mStateMachine.setCaptureQueuePolicy(captureQueuePolicy);
+    }
+
+    /**
+     * Digital zoom, clamped between 1 and the camera's max. Can be called on every gesture event,
+     * the preview is updated at most once per frame. Reset when the camera is switched.
+     */
+    public void setZoom(float zoom) {
+        CameraParams cameraParams = mCameraParams;
+        if (cameraParams != null) {
+            onUserInteraction();
+            mLiveParameters.set(CaptureRequest.SCALER_CROP_REGION, CameraStrategy.getCropRegion(cameraParams.cameraCharacteristics, zoom));
+        }
+    }
+
+    /**
+     * @param exposureCompensation in the camera's compensation steps, clamped to the supported range
+     */
+    public void setExposureCompensation(int exposureCompensation) {
+        CameraParams cameraParams = mCameraParams;
+        if (cameraParams != null) {
+            onUserInteraction();
+            mLiveParameters.set(CaptureRequest.CONTROL_AE_EXPOSURE_COMPENSATION,
+                CameraStrategy.clampExposureCompensation(cameraParams.cameraCharacteristics, exposureCompensation));
+        }
+    }
+
+    public void setTorchEnabled(boolean torchEnabled) {
+        CameraParams cameraParams = mCameraParams;
+        if (cameraParams == null) {
+            return;
+        }
+        // the flash mode is ignored in the auto flash AE modes
+        mLiveParameters.set(CaptureRequest.CONTROL_AE_MODE, torchEnabled ? CaptureRequest.CONTROL_AE_MODE_ON : cameraParams.auto3A.getAeMode());
+        mLiveParameters.set(CaptureRequest.FLASH_MODE, torchEnabled ? CaptureRequest.FLASH_MODE_TORCH : CaptureRequest.FLASH_MODE_OFF);
+    }
+
+    /**
+     * Focuses and meters on the point of the preview view, then holds the focus lock for {@link #setFocusLockHoldMillis(long)}
+     * so a shot taken meanwhile doesn't wait for AF again. Ignored unless the preview is running.
+     */
+    public void focusAt(float viewX, float viewY) {
+        CameraParams cameraParams = mCameraParams;
+        if (cameraParams == null || mTextureView.getWidth() == 0 || mTextureView.getHeight() == 0) {
+            return;
+        }
+        Rect cropRegion = mLiveParameters.get(CaptureRequest.SCALER_CROP_REGION);
+        if (cropRegion == null) {
+            // the whole active array in its own coordinates, the array size itself may be offset in the pixel array
+            cropRegion = CameraStrategy.getCropRegion(cameraParams.cameraCharacteristics, 1f);
+        }
+        MeteringRectangle region = CameraOrientationHelper.getMeteringRegion(cameraParams.cameraCharacteristics, viewX, viewY,
+            mTextureView.getWidth(), mTextureView.getHeight(), CameraOrientationHelper.rotationInDegrees(mWindowManager),
+            cropRegion, FOCUS_REGION_FRACTION);
+        onUserInteraction();
+        mStateMachine.dispatch(Event.focus(region));
+    }
+
+    public void setFocusLockHoldMillis(long focusLockHoldMillis) {
+        mFocusLockHoldMillis = focusLockHoldMillis;
+    }
+
+    /**
+     * @param recorder receives the capture results of every AF and AE wait, null to stop recording
+     */
+    public void setCaptureResultRecorder(@Nullable CaptureResultRecorder recorder) {
+        mAutoFocusConvergeWaiter.setRecorder(recorder);
+        mAutoExposureConvergeWaiter.setRecorder(recorder);
+    }
+
+    /**
+     * Metadata of the photos taken into the photo directory, queried from a background thread
+     */
+    @NonNull
+    public ShotIndex getShotIndex() {
+        return mShotIndex;
+    }
+
+    /**
+     * @return failed frames of the preview and the shots, see {@link CaptureFailureMonitor}
+     */
+    @NonNull
+    public CaptureFailureMonitor.Stats getCaptureFailureStats() {
+        return mCaptureFailureMonitor.getStats();
+    }
+
+    /**
+     * Thumbnails of the photos in the photo directory, made as the photos are taken
+     */
+    @NonNull
+    public ThumbnailCache getThumbnailCache() {
+        return mThumbnailCache;
+    }
+
+    private volatile CameraParams mCameraParams;
+    /**
+     * Params of the camera to open next, resolved on a background thread. Opening the camera waits for them.
+     */
+    private Single<CameraParams> mCameraParamsSingle;
     private final LifecycleObserver mLifecycleObserver = new DefaultLifecycleObserver(){
 
         @Override
         public void onCreate(@NonNull LifecycleOwner owner) {
 
             Log.d(TAG, "\tonCreate");
-            String cameraId = null;
-            try {
+            selectCamera(() -> {
                 Log.d(TAG, "\tchoosing default camera");
-                cameraId = CameraStrategy.chooseDefaultCamera(mCameraManager);
-
-                if (cameraId == null) {
-                    mCallback.onException(new IllegalStateException("Can't find any camera"));
-                    return;
-                }
-
-                mCameraParams = getCameraParams(cameraId);
-                setTextureAspectRatio(mCameraParams);
-            }
-            catch (CameraAccessException e) {
-                mCallback.onException(e);
-                return;
-            }
+                return CameraStrategy.chooseDefaultCamera(mCameraManager, mCameraSelectionPriority);
+            });
 
             mTextureView.setSurfaceTextureListener(new TextureView.SurfaceTextureListener() {
 
                 @Override
                 public void onSurfaceTextureAvailable(SurfaceTexture surface, int width, int height) {
                     Log.d(TAG, "\tonSurfaceTextureAvailable");
-                    mOnSurfaceTextureAvailable.onNext(surface);
+                    onSurfaceAvailable(surface, width, height);
                 }
 
                 @Override
                 public void onSurfaceTextureSizeChanged(SurfaceTexture surface, int width, int height) {
                     Log.d(TAG, "\tonSurfaceTextureSizeChanged");
-                    mOnSurfaceTextureAvailable.onNext(surface);
-                    //NO-OP
+                    onSurfaceAvailable(surface, width, height);
                 }
 
                 @Override
                 public boolean onSurfaceTextureDestroyed(SurfaceTexture texture) {
                     Log.d(TAG, "\tonSurfaceTextureDestroyed");
+                    // on the main thread the session is stopped right away, only then the surface it streams into is released
+                    mStateMachine.dispatch(Event.surfaceDestroyed());
+                    mSurfaceManager.onSurfaceDestroyed();
                     return true;
                 }
 
                 @Override
                 public void onSurfaceTextureUpdated(SurfaceTexture texture) {
+                    mPreviewFrames.onNext(texture);
                 }
             });
 
@@ -159,7 +487,7 @@ public class CameraController {
                 Log.d(TAG, "\tonLayoutChange");
                 if (mTextureView.isAvailable()) {
                     Log.d(TAG, "\tmTextureView.isAvailable()");
-                    mOnSurfaceTextureAvailable.onNext(mTextureView.getSurfaceTexture());
+                    onSurfaceAvailable(mTextureView.getSurfaceTexture(), mTextureView.getWidth(), mTextureView.getHeight());
                 }
             });
         }
@@ -168,7 +496,9 @@ public class CameraController {
         public void onResume(@NonNull LifecycleOwner owner) {
             Log.d(TAG, "\tonResume");
 
-            subscribe();
+            mStateMachine.dispatch(Event.resume());
+            // the selection is cached, a pause before it finished only dropped the aspect ratio
+            applyTextureAspectRatio();
 
             // When the screen is turned off and turned back on, the SurfaceTexture is already
             // available, and "onSurfaceTextureAvailable" will not be called. In that case, we can open
@@ -176,23 +506,64 @@ public class CameraController {
             // the SurfaceTextureListener).
             if (mTextureView.isAvailable()) {
                 Log.d(TAG, "\tmTextureView.isAvailable()");
-                mOnSurfaceTextureAvailable.onNext(mTextureView.getSurfaceTexture());
+                onSurfaceAvailable(mTextureView.getSurfaceTexture(), mTextureView.getWidth(), mTextureView.getHeight());
             }
         }
 
         @Override
         public void onPause(@NonNull LifecycleOwner owner) {
             Log.d(TAG, "\tonPause");
-            mOnPauseSubject.onNext(this);
+            mCameraSelectionDisposable.set(null);
+            mStateMachine.dispatch(Event.pause());
+            if (RxInstrumentation.isInstalled()) {
+                // the camera closes asynchronously, whatever is still subscribed after that is leaked
+                AndroidSchedulers.mainThread().scheduleDirect(() -> {
+                    for (RxInstrumentation.Stream stream : RxInstrumentation.getUndisposedStreams()) {
+                        Log.w(TAG, "\tundisposed after onPause: " + stream);
+                    }
+                }, UNDISPOSED_CHECK_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+            }
         }
 
     };
 
+    /**
+     * Starts resolving the camera params on the io scheduler, camera IPC doesn't block the main thread.
+     * The aspect ratio is applied as soon as they are ready, errors are reported when the camera is opened.
+     */
+    private void selectCamera(@NonNull Callable<CameraSelector.Report> selection) {
+        long startMillis = SystemClock.elapsedRealtime();
+        mCameraParamsSingle = Single.fromCallable(() -> {
+            CameraSelector.Report report = selection.call();
+            mCameraSelectionReport = report;
+            if (report.cameraId == null) {
+                throw new IllegalStateException("Can't find any camera");
+            }
+            return getCameraParams(report.cameraId);
+        })
+            .doOnSuccess(cameraParams -> Log.d(TAG, "\tcamera " + cameraParams.cameraId + " selected in "
+                + (SystemClock.elapsedRealtime() - startMillis) + " ms off the main thread"))
+            .subscribeOn(Schedulers.io())
+            .observeOn(AndroidSchedulers.mainThread())
+            .cache();
+        applyTextureAspectRatio();
+    }
+
+    private void applyTextureAspectRatio() {
+        mCameraSelectionDisposable.set(
+            mCameraParamsSingle.subscribe(this::setTextureAspectRatio, throwable -> Log.w(TAG, "\tcan't select camera", throwable))
+        );
+    }
+
     private CameraParams getCameraParams(@NonNull String cameraId) throws CameraAccessException {
         Log.d(TAG, "\tsetupPreviewSize");
         CameraCharacteristics cameraCharacteristics = mCameraManager.getCameraCharacteristics(cameraId);
-        Size previewSize = CameraStrategy.getPreviewSize(cameraCharacteristics);
-        return new CameraParams(cameraId, cameraCharacteristics, previewSize);
+        Point displaySize = new Point();
+        mWindowManager.getDefaultDisplay().getRealSize(displaySize);
+        MultiFrameMode multiFrameMode = mMultiFrameMode;
+        StreamCombinations.StreamSizes sizes = CameraStrategy.chooseStreamSizes(cameraCharacteristics,
+            new Size(displaySize.x, displaySize.y), mRawCaptureEnabled, multiFrameMode != null);
+        return new CameraParams(cameraId, cameraCharacteristics, sizes, multiFrameMode);
     }
 
     private void setTextureAspectRatio(@NonNull CameraParams cameraParams) {
@@ -206,180 +577,554 @@ public class CameraController {
         }
     }
 
-    /**
-     * Flow is configured in this method
-     */
-    private void subscribe() {
-        mCompositeDisposable.clear();
+    private final CameraStateMachine.Actions mActions = new CameraStateMachine.Actions() {
 
-        // open camera
+        @Override
+        public void openCamera(@NonNull SurfaceTexture surfaceTexture) {
+            mCameraDisposable.add(
+                mCameraParamsSingle
+                    .flatMapObservable(cameraParams -> {
+                        mCameraParams = cameraParams;
+                        setupSurface(surfaceTexture);
+                        initImageReader();
+                        return mCameraOpenStrategy.open(cameraParams.cameraId, mCameraManager);
+                    })
+                    .subscribe(pair -> {
+                        switch (pair.first) {
+                            case ON_OPENED:
+                                mStateMachine.dispatch(Event.deviceOpened(pair.second));
+                                break;
+                            case ON_CLOSED:
+                                mStateMachine.dispatch(Event.deviceClosed());
+                                break;
+                            case ON_DISCONNECTED:
+                                mStateMachine.dispatch(Event.deviceDisconnected());
+                                break;
+                        }
+                    }, CameraController.this::dispatchError)
+            );
+        }
 
-        Observable<Pair<CameraRxWrapper.DeviceStateEvents, CameraDevice>> cameraDeviceObservable = mOnSurfaceTextureAvailable
-            .firstElement()
-            .doAfterSuccess(this::setupSurface)
-            .doAfterSuccess(__ -> initImageReader())
-            .toObservable()
-            .flatMap(__ -> CameraRxWrapper.openCamera(mCameraParams.cameraId, mCameraManager))
-            .share();
+        @Override
+        public void createCaptureSession(@NonNull CameraDevice cameraDevice) {
+            List<Surface> stillSurfaces = getStillSurfaces();
+            List<Surface> shotSurfaces = new ArrayList<>(stillSurfaces);
+            if (mMultiFrameCapture != null) {
+                shotSurfaces.add(mMultiFrameCapture.getSurface());
+            }
+            List<Surface> outputSurfaces = new ArrayList<>(shotSurfaces);
+            outputSurfaces.add(0, mSurface);
+            mRequestTemplates = new CaptureRequestTemplates(cameraDevice, mCameraParams.auto3A, mSurface, stillSurfaces);
+            mShotsSinceOpen = 0;
+            boolean prewarm = mSurfacePrewarmEnabled && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+            SurfacePrewarm surfacePrewarm = new SurfacePrewarm(prewarm ? shotSurfaces.size() : 0);
+            mCameraDisposable.add(
+                CameraRxWrapper.createCaptureSession(cameraDevice, outputSurfaces)
+                    .subscribe(pair -> {
+                        switch (pair.first) {
+                            case ON_CONFIGURED:
+                                mStateMachine.dispatch(Event.sessionConfigured(pair.second));
+                                if (prewarm) {
+                                    prepareSurfaces(pair.second, shotSurfaces, surfacePrewarm);
+                                }
+                                else {
+                                    surfacePrewarm.onReady("not prewarmed");
+                                }
+                                break;
+                            case ON_SURFACE_PREPARED:
+                                surfacePrewarm.onSurfacePrepared();
+                                break;
+                            case ON_CLOSED:
+                                mStateMachine.dispatch(Event.sessionClosed());
+                                break;
+                        }
+                    }, CameraController.this::dispatchError)
+            );
+        }
 
-        Observable<CameraDevice> openCameraObservable = cameraDeviceObservable
-            .filter(pair -> pair.first == CameraRxWrapper.DeviceStateEvents.ON_OPENED)
-            .map(pair -> pair.second)
-            .share();
+        @Override
+        public void startPreview(@NonNull CameraCaptureSession session) {
+            Log.d(TAG, "\tstartPreview");
+            long span = Tracer.begin("first preview frame");
+            boolean[] started = {false};
+            mCaptureFailureMonitor.resetWindow();
+            // the first preview request already has the active range
+            mPreviewFpsRangePolicy = mFpsRangePolicy;
+            mPreviewIdle = true;
+            onUserInteraction();
+            // one subscription for the whole session, live parameter changes replace the request under the same callback,
+            // nothing else sets a repeating request
+            mCameraDisposable.add(
+                CameraRxWrapper.fromRepeatingRequests(session, mLiveParameters.previewRequests(CameraController.this::createPreviewBuilder, mPreviewFrames))
+                    .subscribe(captureSessionData -> {
+                        if (captureSessionData.event == CameraRxWrapper.CaptureSessionEvents.ON_FAILED) {
+                            onFrameFailed(captureSessionData.failure);
+                            return;
+                        }
+                        mCaptureFailureMonitor.onCompleted();
+                        mPreviewResults.onNext(captureSessionData);
+                        if (!started[0]) {
+                            started[0] = true;
+                            Tracer.end("first preview frame", span);
+                            mStateMachine.dispatch(Event.previewStarted(captureSessionData));
+                        }
+                    }, CameraController.this::dispatchError)
+            );
+        }
 
-        Observable<CameraDevice> closeCameraObservable = cameraDeviceObservable
-            .filter(pair -> pair.first == CameraRxWrapper.DeviceStateEvents.ON_CLOSED)
-            .map(pair -> pair.second)
-            .share();
+        @Override
+        public void focus(@NonNull CaptureSessionData previewData, @NonNull MeteringRectangle region) {
+            CameraCharacteristics characteristics = mCameraParams.cameraCharacteristics;
+            if (mCameraParams.auto3A.getAfMode() == null) {
+                return; // fixed focus
+            }
+            Log.d(TAG, "\tfocus on " + region);
+            MeteringRectangle[] regions = {region};
+            if (getMaxRegions(characteristics, CameraCharacteristics.CONTROL_MAX_REGIONS_AF) > 0) {
+                mLiveParameters.set(CaptureRequest.CONTROL_AF_REGIONS, regions);
+            }
+            if (getMaxRegions(characteristics, CameraCharacteristics.CONTROL_MAX_REGIONS_AE) > 0) {
+                mLiveParameters.set(CaptureRequest.CONTROL_AE_REGIONS, regions);
+            }
+            // continuous AF would move the lens again, the auto mode stays locked after the trigger
+            mLiveParameters.set(CaptureRequest.CONTROL_AF_MODE, CaptureRequest.CONTROL_AF_MODE_AUTO);
+            mFocusRegionsSet = true;
+            mFocusLockedUntilMillis = 0;
+            long holdMillis = mFocusLockHoldMillis;
+            mFocusDisposable.set(
+                Observable.just(previewData)
+                    .doOnNext(__ -> mCallback.onFocusStarted())
+                    .flatMap(CameraController.this::waitForAf)
+                    .firstElement()
+                    .doOnSuccess(__ -> {
+                        mCallback.onFocusFinished();
+                        mFocusLockedUntilMillis = SystemClock.elapsedRealtime() + holdMillis;
+                    })
+                    .delay(holdMillis, TimeUnit.MILLISECONDS, AndroidSchedulers.mainThread())
+                    .subscribe(__ -> resetFocusRegions(), throwable -> {
+                        if (throwable instanceof CameraRxWrapper.CameraCaptureFailedException) {
+                            onFrameFailed(((CameraRxWrapper.CameraCaptureFailedException) throwable).mFailure);
+                            mCallback.onFocusFinished();
+                            resetFocusRegions();
+                        }
+                        else {
+                            dispatchError(throwable);
+                        }
+                    })
+            );
+        }
 
-        // create capture session
+        @Override
+        public void capture(@NonNull CaptureSessionData previewData) {
+            Log.d(TAG, "\ton shutter click");
+            boolean focusLocked = SystemClock.elapsedRealtime() < mFocusLockedUntilMillis;
+            if (!focusLocked) {
+                // a tap focus in progress is finished by the shot's own AF wait, in the same regions
+                mFocusDisposable.set(null);
+            }
+            ShotMetadataCollector shotMetadataCollector = mShotMetadataCollector;
+            ShotMetadataCollector.StageTimer stageTimer = new ShotMetadataCollector.StageTimer();
+            long shotStartMillis = SystemClock.elapsedRealtime();
+            boolean firstShot = mShotsSinceOpen++ == 0;
+            int[] convergeMillis = new int[2];
+            mCaptureDisposable.set(
+                Observable.just(previewData)
+                    .doOnNext(__ -> mCallback.onFocusStarted())
+                    .flatMap(captureSessionData -> focusLocked ? Observable.just(captureSessionData) : waitForAf(captureSessionData))
+                    .doOnNext(__ -> convergeMillis[0] = stageTimer.lap())
+                    .flatMap(CameraController.this::waitForAe)
+                    .doOnNext(__ -> {
+                        convergeMillis[1] = stageTimer.lap();
+                        mCallback.onFocusFinished();
+                    })
+                    .flatMap(captureSessionData -> mMultiFrameCapture != null
+                        ? captureMultiFrame(captureSessionData.session, mMultiFrameCapture)
+                        : captureStillPicture(captureSessionData.session))
+                    .firstElement()
+                    .subscribe(captureSessionData -> {
+                        shotMetadataCollector.onResult((TotalCaptureResult) captureSessionData.result,
+                            convergeMillis[0], convergeMillis[1], stageTimer.lap());
+                        long latencyMillis = SystemClock.elapsedRealtime() - shotStartMillis;
+                        mShotLatencyStats.onShot(firstShot, latencyMillis);
+                        Log.d(TAG, "\tshot #" + mShotsSinceOpen + " in " + latencyMillis + " ms, " + mShotLatencyStats);
+                        if (!focusLocked) {
+                            resetFocusRegions();
+                        }
+                        mStateMachine.dispatch(Event.captureCompleted());
+                    }, throwable -> {
+                        if (throwable instanceof CameraRxWrapper.CameraCaptureFailedException) {
+                            // the shot is lost, the preview goes on
+                            onFrameFailed(((CameraRxWrapper.CameraCaptureFailedException) throwable).mFailure);
+                            mCallback.onFocusFinished();
+                            if (!focusLocked) {
+                                resetFocusRegions();
+                            }
+                            mCallback.onPhotoFailed(throwable);
+                            mStateMachine.dispatch(Event.captureCompleted());
+                        }
+                        else {
+                            dispatchError(throwable);
+                        }
+                    })
+            );
+        }
 
-        Observable<Pair<CameraRxWrapper.CaptureSessionStateEvents, CameraCaptureSession>> createCaptureSessionObservable = openCameraObservable
-            .flatMap(cameraDevice -> CameraRxWrapper
-                .createCaptureSession(cameraDevice, Arrays.asList(mSurface, mImageReader.getSurface()))
-            )
-            .share();
+        @Override
+        public void closeCaptureSession(@NonNull CameraCaptureSession session) {
+            mCaptureDisposable.set(null);
+            try {
+                session.stopRepeating();
+                session.abortCaptures();
+            }
+            catch (CameraAccessException e) {
+                dispatchError(e);
+                return;
+            }
+            session.close();
+        }
 
-        Observable<CameraCaptureSession> captureSessionConfiguredObservable = createCaptureSessionObservable
-            .filter(pair -> pair.first == CameraRxWrapper.CaptureSessionStateEvents.ON_CONFIGURED)
-            .map(pair -> pair.second)
-            .share();
+        @Override
+        public void closeCamera(@NonNull CameraDevice cameraDevice) {
+            cameraDevice.close();
+        }
 
-        Observable<CameraCaptureSession> captureSessionClosedObservable = createCaptureSessionObservable
-            .filter(pair -> pair.first == CameraRxWrapper.CaptureSessionStateEvents.ON_CLOSED)
-            .map(pair -> pair.second)
-            .share();
+        @Override
+        public void release() {
+            mFocusDisposable.set(null);
+            mIdleDisposable.set(null);
+            mPreviewFpsRangePolicy = null;
+            resetFocusRegions();
+            Log.d(TAG, "\tlive parameter changes coalesced: " + mLiveParameters.getCoalescedCount()
+                + ", surface reconfigurations avoided: " + mSurfaceManager.getAvoidedReconfigurations());
+            mCaptureDisposable.set(null);
+            mCameraDisposable.clear();
+            mRequestTemplates = null;
+            closeImageReader();
+        }
 
-        // start preview
+        @Override
+        public void switchCamera() {
+            switchCameraInternal();
+        }
 
-        Observable<CaptureSessionData> previewObservable = captureSessionConfiguredObservable
-            .flatMap(cameraCaptureSession -> {
-                Log.d(TAG, "\tstartPreview");
-                CaptureRequest.Builder previewBuilder = createPreviewBuilder(cameraCaptureSession, mSurface);
-                return CameraRxWrapper.fromSetRepeatingRequest(cameraCaptureSession, previewBuilder.build());
-            })
-            .share();
-
-        // react to shutter button
-
-        mCompositeDisposable.add(
-            Observable.combineLatest(previewObservable, mOnShutterClick, (captureSessionData, o) -> captureSessionData)
-                .firstElement().toObservable()
-                .doOnNext(__ -> Log.d(TAG, "\ton shutter click"))
-                .doOnNext(__ -> mCallback.onFocusStarted())
-                .flatMap(this::waitForAf)
-                .flatMap(this::waitForAe)
-                .doOnNext(__ -> mCallback.onFocusFinished())
-                .flatMap(captureSessionData -> captureStillPicture(captureSessionData.session))
-                .subscribe(__ -> {
-                }, this::onError)
-        );
+        @Override
+        public void onError(@NonNull Throwable throwable) {
+            if (throwable instanceof CameraAccessException) {
+                mCallback.onCameraAccessException();
+            }
+            else if (throwable instanceof OpenCameraException) {
+                mCallback.onCameraOpenException(((OpenCameraException) throwable).getReason());
+            }
+            else {
+                mCallback.onException(throwable);
+            }
+        }
 
-        // react to switch camera button
-
-        mCompositeDisposable.add(
-            Observable.combineLatest(previewObservable, mOnSwitchCameraClick, (captureSessionData, o) -> captureSessionData)
-                .firstElement().toObservable()
-                .doOnNext(__ -> Log.d(TAG, "\ton switch camera click"))
-                .doOnNext(captureSessionData -> captureSessionData.session.close())
-                .flatMap(__ -> captureSessionClosedObservable)
-                .doOnNext(cameraCaptureSession -> cameraCaptureSession.getDevice().close())
-                .flatMap(__ -> closeCameraObservable)
-                .doOnNext(__ -> closeImageReader())
-                .subscribe(__ -> switchCameraInternal(), this::onError)
-        );
+        @Override
+        public void onShutterRejected(@NonNull CaptureQueuePolicy.RejectReason reason) {
+            Log.d(TAG, "\tshutter rejected: " + reason);
+            mCallback.onShutterRejected(reason);
+        }
+    };
+
+    /**
+     * Counts the prepared outputs of a session, lets shots through when all are prepared or the time is out
+     */
+    private class SurfacePrewarm {
+        private final int mSurfaceCount;
+        private final long mStartMillis = SystemClock.elapsedRealtime();
+        private int mPreparedCount;
+        private boolean mReady;
+
+        SurfacePrewarm(int surfaceCount) {
+            mSurfaceCount = surfaceCount;
+        }
+
+        void onSurfacePrepared() {
+            if (++mPreparedCount == mSurfaceCount) {
+                onReady("all " + mSurfaceCount + " outputs prepared");
+            }
+        }
+
+        void onReady(@NonNull String reason) {
+            if (mReady) {
+                return;
+            }
+            mReady = true;
+            Log.d(TAG, "\tready to shoot " + (SystemClock.elapsedRealtime() - mStartMillis) + " ms after session start, " + reason);
+            mStateMachine.dispatch(Event.surfacesPrepared());
+        }
+    }
 
-        // react to onPause event
-
-        mCompositeDisposable.add(Observable.combineLatest(previewObservable, mOnPauseSubject, (state, o) -> state)
-            .firstElement().toObservable()
-            .doOnNext(__ -> Log.d(TAG, "\ton pause"))
-            .doOnNext(captureSessionData ->{
-                captureSessionData.session.stopRepeating();
-                captureSessionData.session.abortCaptures();
-                captureSessionData.session.close();
-            } )
-            .flatMap(__ -> captureSessionClosedObservable)
-            .doOnNext(cameraCaptureSession -> cameraCaptureSession.getDevice().close())
-            .flatMap(__ -> closeCameraObservable)
-            .doOnNext(__ -> closeImageReader())
-            .subscribe(__ -> unsubscribe(), this::onError)
+    @TargetApi(23)
+    private void prepareSurfaces(@NonNull CameraCaptureSession session, @NonNull List<Surface> surfaces, @NonNull SurfacePrewarm surfacePrewarm) {
+        try {
+            for (Surface surface : surfaces) {
+                session.prepare(surface);
+            }
+        }
+        catch (CameraAccessException | IllegalArgumentException e) {
+            Log.w(TAG, "\tcan't prepare the outputs", e);
+            surfacePrewarm.onReady("prepare failed");
+            return;
+        }
+        mCameraDisposable.add(
+            Completable.timer(SURFACE_PREPARE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS, AndroidSchedulers.mainThread())
+                .subscribe(() -> surfacePrewarm.onReady("timed out"))
         );
     }
 
-    private void onError(Throwable throwable) {
-        unsubscribe();
-        if (throwable instanceof CameraAccessException) {
-            mCallback.onCameraAccessException();
+    /**
+     * Back to continuous AF and metering of the whole frame
+     */
+    private void resetFocusRegions() {
+        mFocusLockedUntilMillis = 0;
+        if (!mFocusRegionsSet) {
+            return;
         }
-        else if (throwable instanceof OpenCameraException) {
-            mCallback.onCameraOpenException(((OpenCameraException) throwable).getReason());
+        mFocusRegionsSet = false;
+        Integer afMode = mCameraParams.auto3A.getAfMode();
+        if (afMode != null) {
+            mLiveParameters.set(CaptureRequest.CONTROL_AF_MODE, afMode);
         }
-        else {
-            mCallback.onException(throwable);
+        if (mLiveParameters.get(CaptureRequest.CONTROL_AF_REGIONS) != null) {
+            mLiveParameters.set(CaptureRequest.CONTROL_AF_REGIONS, DEFAULT_METERING_REGIONS);
+        }
+        if (mLiveParameters.get(CaptureRequest.CONTROL_AE_REGIONS) != null) {
+            mLiveParameters.set(CaptureRequest.CONTROL_AE_REGIONS, DEFAULT_METERING_REGIONS);
+        }
+    }
+
+    private static int getMaxRegions(@NonNull CameraCharacteristics characteristics, @NonNull CameraCharacteristics.Key<Integer> key) {
+        Integer maxRegions = characteristics.get(key);
+        return maxRegions == null ? 0 : maxRegions;
+    }
+
+    /**
+     * A single failed frame is tolerated, the camera is reopened only if the recent frames mostly fail
+     */
+    private void onFrameFailed(@NonNull CaptureFailure failure) {
+        boolean flushed = failure.getReason() == CaptureFailure.REASON_FLUSHED;
+        if (!flushed) {
+            Log.w(TAG, "\tframe " + failure.getFrameNumber() + " failed, image captured: " + failure.wasImageCaptured());
+        }
+        if (mCaptureFailureMonitor.onFailed(flushed)) {
+            Log.w(TAG, "\ttoo many failed frames, " + mCaptureFailureMonitor.getStats());
+            dispatchError(new CameraRxWrapper.CameraCaptureFailedException(failure));
         }
     }
 
-    private void unsubscribe() {
-        mCompositeDisposable.clear();
+    private void dispatchError(@NonNull Throwable throwable) {
+        mStateMachine.dispatch(Event.error(throwable));
+    }
+
+    /**
+     * Repeated events of the same texture are dropped here, the machine gets only new textures
+     */
+    private void onSurfaceAvailable(@NonNull SurfaceTexture surfaceTexture, int width, int height) {
+        if (mSurfaceManager.onSurfaceAvailable(surfaceTexture, width, height)) {
+            mStateMachine.dispatch(Event.surfaceAvailable(surfaceTexture));
+        }
     }
 
     private void setupSurface(@NonNull SurfaceTexture surfaceTexture) {
-        surfaceTexture.setDefaultBufferSize(mCameraParams.previewSize.getWidth(), mCameraParams.previewSize.getHeight());
-        mSurface = new Surface(surfaceTexture);
+        mSurface = mSurfaceManager.getSurface(surfaceTexture, mCameraParams.previewSize);
     }
 
     private void switchCameraInternal() {
         Log.d(TAG, "\tswitchCameraInternal");
-        try {
-            unsubscribe();
-            String cameraId = CameraStrategy.switchCamera(mCameraManager, mCameraParams.cameraId);
-            mCameraParams = getCameraParams(cameraId);
-            setTextureAspectRatio(mCameraParams);
-            subscribe();
-            // waiting for textureView to be measured
-        }
-        catch (CameraAccessException e) {
-            onError(e);
-        }
+        mLiveParameters.clear();
+        String currentCameraId = mCameraParams == null ? null : mCameraParams.cameraId;
+        selectCamera(() -> CameraStrategy.switchCamera(mCameraManager, currentCameraId, mCameraSelectionPriority));
     }
 
     private void initImageReader() {
         Log.d(TAG, "\tinitImageReader");
-        Size sizeForImageReader = CameraStrategy.getStillImageSize(mCameraParams.cameraCharacteristics, mCameraParams.previewSize);
-        mImageReader = ImageReader.newInstance(sizeForImageReader.getWidth(), sizeForImageReader.getHeight(), ImageFormat.JPEG, 1);
-        mCompositeDisposable.add(
-            ImageSaverRxWrapper.createOnImageAvailableObservable(mImageReader)
+        Size sizeForImageReader = mCameraParams.stillSize;
+        mImageReader = ImageReader.newInstance(sizeForImageReader.getWidth(), sizeForImageReader.getHeight(), ImageFormat.JPEG, MAX_JPEG_IMAGES);
+        // photos saved after a camera switch still belong to the camera which took them
+        Integer lensFacingPhotoType = getLensFacingPhotoType();
+        ShotMetadataCollector shotMetadataCollector = new ShotMetadataCollector(
+            lensFacingPhotoType == null ? ShotIndex.UNKNOWN : lensFacingPhotoType, this::indexShot);
+        mShotMetadataCollector = shotMetadataCollector;
+        mCameraDisposable.add(reportSavedPhotos(
+            ImageSaverRxWrapper.createOnImageAvailableObservable(mImageReader, ImageSaverRxWrapper.DrainPolicy.NEXT)
                 .observeOn(Schedulers.io())
-                .flatMap(imageReader -> ImageSaverRxWrapper.save(imageReader.acquireLatestImage(), mFile).toObservable())
+                .flatMap(image -> {
+                    long timestamp = image.getTimestamp();
+                    return ImageSaverRxWrapper.save(image, mCaptureStore)
+                        .doOnSuccess(file -> shotMetadataCollector.onSaved(timestamp, file))
+                        .toObservable();
+                }),
+            lensFacingPhotoType
+        ));
+
+        initRawImageReader();
+        initMultiFrameCapture(shotMetadataCollector, lensFacingPhotoType);
+    }
+
+    /**
+     * Feeds the JPEG policy and the thumbnails with the saved photos, then reports them on the main thread
+     */
+    @NonNull
+    private Disposable reportSavedPhotos(@NonNull Observable<File> photos, @Nullable Integer lensFacingPhotoType) {
+        return photos
+            .doOnNext(file -> {
+                JpegEncodingPolicy jpegEncodingPolicy = mJpegEncodingPolicy;
+                if (jpegEncodingPolicy != null) {
+                    jpegEncodingPolicy.onPhotoSaved(file.length());
+                }
+            })
+            .doOnNext(this::createThumbnail)
+            .observeOn(AndroidSchedulers.mainThread())
+            .subscribe(file -> mCallback.onPhotoTaken(file.getAbsolutePath(), lensFacingPhotoType));
+    }
+
+    /**
+     * Called when both the result and the file of a shot are there, on the main or the io thread
+     */
+    private void indexShot(@NonNull ShotIndex.Shot shot) {
+        // not bound to the camera, shots saved while it closes are still indexed
+        Completable.fromAction(() -> mShotIndex.append(shot))
+            .subscribeOn(Schedulers.io())
+            .subscribe(() -> Log.d(TAG, "\tindexed " + shot), throwable -> Log.w(TAG, "\tshot is not indexed", throwable));
+    }
+
+    private void createThumbnail(@NonNull File photo) {
+        // in the background of its own, the photo is reported without waiting for the thumbnail
+        Completable.fromAction(() -> mThumbnailCache.onPhotoTaken(photo))
+            .subscribeOn(Schedulers.io())
+            .subscribe(() -> {}, throwable -> Log.w(TAG, "\tno thumbnail for " + photo, throwable));
+    }
+
+    private void initRawImageReader() {
+        Size rawSize = mCameraParams.rawSize;
+        if (rawSize == null) {
+            return;
+        }
+        Log.d(TAG, "\tinitRawImageReader");
+        mRawImageReader = ImageReader.newInstance(rawSize.getWidth(), rawSize.getHeight(), ImageFormat.RAW_SENSOR, MAX_RAW_IMAGES);
+        DngWriter dngWriter = new DngWriter(mCaptureStore, mCameraParams.cameraCharacteristics,
+            (long) rawSize.getWidth() * rawSize.getHeight() * 2 * MAX_RAW_IMAGES, MAX_RAW_IMAGES);
+        mDngWriter = dngWriter;
+        mRawCaptureMatcher = new RawCaptureMatcher(mRawImageReader.getMaxImages(), (image, result) -> {
+            // one per shot, removed when done so the composite doesn't grow with every RAW shot of the session
+            DisposableSingleObserver<File> observer = new DisposableSingleObserver<File>() {
+                @Override
+                public void onSuccess(File file) {
+                    mCameraDisposable.delete(this);
+                    mCallback.onRawPhotoTaken(file.getAbsolutePath());
+                }
+
+                @Override
+                public void onError(Throwable throwable) {
+                    mCameraDisposable.delete(this);
+                    Log.w(TAG, "\tDNG is not saved", throwable);
+                }
+            };
+            // added first, so the write is cancelled and the image released if the camera is already closed
+            mCameraDisposable.add(observer);
+            dngWriter.write(image, result)
                 .observeOn(AndroidSchedulers.mainThread())
-                .subscribe(file -> mCallback.onPhotoTaken(file.getAbsolutePath(), getLensFacingPhotoType()))
+                .subscribe(observer);
+        });
+        mCameraDisposable.add(
+            ImageSaverRxWrapper.createOnImageAvailableObservable(mRawImageReader, ImageSaverRxWrapper.DrainPolicy.NEXT)
+                .observeOn(AndroidSchedulers.mainThread())
+                .subscribe(image -> {
+                    if (mRawCaptureMatcher != null) {
+                        mRawCaptureMatcher.onImage(image);
+                    }
+                    else {
+                        ImageTracker.close(image);
+                    }
+                })
         );
     }
 
-    @Nullable
-    private Integer getLensFacingPhotoType() {
-        return mCameraParams.cameraCharacteristics.get(CameraCharacteristics.LENS_FACING);
+    private void initMultiFrameCapture(@NonNull ShotMetadataCollector shotMetadataCollector, @Nullable Integer lensFacingPhotoType) {
+        MultiFrameMode multiFrameMode = mCameraParams.multiFrameMode;
+        Size yuvSize = mCameraParams.yuvSize;
+        if (multiFrameMode == null || yuvSize == null) {
+            return;
+        }
+        Log.d(TAG, "\tinitMultiFrameCapture " + multiFrameMode + " at " + yuvSize);
+        if (mMultiFrameMerger == null) {
+            mMultiFrameMerger = MultiFrameMerger.create(MULTI_FRAME_MEMORY_BUDGET_BYTES, MultiFrameMode.MAX_FRAMES);
+        }
+        MultiFrameMerger merger = mMultiFrameMerger;
+        PublishSubject<MultiFrameCapture.Burst> bursts = PublishSubject.create();
+        MultiFrameCapture multiFrameCapture = new MultiFrameCapture(multiFrameMode, yuvSize, mCameraParams.cameraCharacteristics, bursts::onNext);
+        mMultiFrameCapture = multiFrameCapture;
+        mCameraDisposable.add(
+            ImageSaverRxWrapper.createOnImageAvailableObservable(multiFrameCapture.getImageReader(), ImageSaverRxWrapper.DrainPolicy.NEXT)
+                // copied on the reader thread, the reader holds one burst only
+                .map(image -> {
+                    try {
+                        return FrameProcessingRxWrapper.copyToYuvFrame(image);
+                    }
+                    finally {
+                        ImageTracker.close(image);
+                    }
+                })
+                .observeOn(AndroidSchedulers.mainThread())
+                .subscribe(multiFrameCapture::onFrame, throwable -> Log.w(TAG, "\tmulti-frame reader failed", throwable))
+        );
+        mCameraDisposable.add(reportSavedPhotos(
+            bursts
+                .observeOn(Schedulers.io())
+                // one burst at a time, a merge takes all the merger's threads
+                .concatMap(burst -> mergeAndSave(merger, burst)
+                    .doOnSuccess(file -> shotMetadataCollector.onSaved(burst.getReferenceTimestamp(), file))
+                    .doOnError(throwable -> Log.w(TAG, "\tmulti-frame shot is not saved", throwable))
+                    .toMaybe()
+                    .onErrorComplete()
+                    .toObservable()),
+            lensFacingPhotoType
+        ));
     }
 
-    private static boolean contains(int[] modes, int mode) {
-        if (modes == null) {
-            return false;
-        }
-        for (int i : modes) {
-            if (i == mode) {
-                return true;
-            }
+    @NonNull
+    private Single<File> mergeAndSave(@NonNull MultiFrameMerger merger, @NonNull MultiFrameCapture.Burst burst) {
+        return Single
+            .fromCallable(() -> {
+                long span = Tracer.begin("merge");
+                try {
+                    MultiFrameMerger.MergedFrame merged = merger.merge(burst.frames, burst.exposureGains);
+                    Log.d(TAG, "\tmerged " + burst.frames.size() + " frames, rejected " + merged.rejectedFraction
+                        + " of samples, mean shift " + merged.averageShift + " px");
+                    return merged.rotate(burst.jpegOrientation);
+                }
+                finally {
+                    Tracer.end("merge", span);
+                }
+            })
+            .flatMap(merged -> {
+                JpegEncodingPolicy jpegEncodingPolicy = mJpegEncodingPolicy;
+                int quality = jpegEncodingPolicy == null ? JpegEncodingPolicy.INITIAL_QUALITY : jpegEncodingPolicy.getQuality();
+                return ImageSaverRxWrapper.save(merged, quality, mCaptureStore);
+            });
+    }
+
+    @NonNull
+    private List<Surface> getStillSurfaces() {
+        if (mRawImageReader == null) {
+            return Collections.singletonList(mImageReader.getSurface());
         }
-        return false;
+        return Arrays.asList(mImageReader.getSurface(), mRawImageReader.getSurface());
+    }
+
+    @Nullable
+    private Integer getLensFacingPhotoType() {
+        return mCameraParams.cameraCharacteristics.get(CameraCharacteristics.LENS_FACING);
     }
 
     private Observable<CaptureSessionData> waitForAf(@NonNull CaptureSessionData captureResultParams) {
         return Observable
-            .fromCallable(() -> createPreviewBuilder(captureResultParams.session, mSurface))
+            .fromCallable(this::createPreviewBuilder)
             .flatMap(
                 previewBuilder -> mAutoFocusConvergeWaiter
-                    .waitForConverge(captureResultParams, previewBuilder)
+                    .waitForConverge(captureResultParams, previewBuilder, mPreviewResults)
                     .toObservable()
             );
     }
@@ -387,10 +1132,10 @@ public class CameraController {
     @NonNull
     private Observable<CaptureSessionData> waitForAe(@NonNull CaptureSessionData captureResultParams) {
         return Observable
-            .fromCallable(() -> createPreviewBuilder(captureResultParams.session, mSurface))
+            .fromCallable(this::createPreviewBuilder)
             .flatMap(
                 previewBuilder -> mAutoExposureConvergeWaiter
-                    .waitForConverge(captureResultParams, previewBuilder)
+                    .waitForConverge(captureResultParams, previewBuilder, mPreviewResults)
                     .toObservable()
             );
     }
@@ -398,77 +1143,91 @@ public class CameraController {
     @NonNull
     private Observable<CaptureSessionData> captureStillPicture(@NonNull CameraCaptureSession cameraCaptureSession) {
         Log.d(TAG, "\tcaptureStillPicture");
+        long span = Tracer.begin("capture");
         return Observable
-            .fromCallable(() -> createStillPictureBuilder(cameraCaptureSession.getDevice()))
-            .flatMap(builder -> CameraRxWrapper.fromCapture(cameraCaptureSession, builder.build()));
+            .fromCallable(() -> {
+                long startNanos = System.nanoTime();
+                CaptureRequest request = createStillPictureBuilder().build();
+                // the first shot of a camera includes template creation, the rest show the cached cost
+                Log.d(TAG, "\tstill request ready in " + (System.nanoTime() - startNanos) / 1000 + " us, shot #" + mShotsSinceOpen);
+                return request;
+            })
+            .flatMap(request -> CameraRxWrapper.fromCapture(cameraCaptureSession, request))
+            .doOnNext(captureSessionData -> {
+                if (mRawCaptureMatcher != null) {
+                    mRawCaptureMatcher.onResult((TotalCaptureResult) captureSessionData.result);
+                }
+            })
+            .doFinally(() -> Tracer.end("capture", span));
     }
 
+    /**
+     * A burst of {@link MultiFrameCapture} frames, completes with the result of the reference frame once all frames are taken.
+     * The photo is saved later, when the frames are merged.
+     */
     @NonNull
-    private CaptureRequest.Builder createStillPictureBuilder(@NonNull CameraDevice cameraDevice) throws CameraAccessException {
-        final CaptureRequest.Builder builder;
-        builder = cameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
-        builder.set(CaptureRequest.CONTROL_CAPTURE_INTENT, CaptureRequest.CONTROL_CAPTURE_INTENT_STILL_CAPTURE);
-        builder.set(CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER, CameraMetadata.CONTROL_AE_PRECAPTURE_TRIGGER_IDLE);
-        builder.addTarget(mImageReader.getSurface());
-        setup3Auto(builder);
+    private Observable<CaptureSessionData> captureMultiFrame(@NonNull CameraCaptureSession cameraCaptureSession, @NonNull MultiFrameCapture multiFrameCapture) {
+        Log.d(TAG, "\tcaptureMultiFrame");
+        long span = Tracer.begin("capture");
+        return Observable
+            .fromCallable(() -> {
+                CaptureRequest.Builder builder = mRequestTemplates.multiFrameBuilder(multiFrameCapture.getSurface());
+                mLiveParameters.applyTo(builder);
+                Integer exposureCompensation = mLiveParameters.get(CaptureRequest.CONTROL_AE_EXPOSURE_COMPENSATION);
+                return multiFrameCapture.createBurst(builder, exposureCompensation == null ? 0 : exposureCompensation, getJpegOrientation());
+            })
+            .flatMap(requests -> CameraRxWrapper.fromCaptureBurst(cameraCaptureSession, requests)
+                .doOnNext(captureSessionData -> multiFrameCapture.onResult((TotalCaptureResult) captureSessionData.result))
+                .take(requests.size())
+                .toList()
+                .map(results -> results.get(0))
+                .toObservable())
+            .doFinally(() -> Tracer.end("capture", span));
+    }
 
+    private int getJpegOrientation() {
         int rotation = mWindowManager.getDefaultDisplay().getRotation();
-        builder.set(CaptureRequest.JPEG_ORIENTATION, CameraOrientationHelper.getJpegOrientation(mCameraParams.cameraCharacteristics, rotation));
-        return builder;
+        return CameraOrientationHelper.getJpegOrientation(mCameraParams.cameraCharacteristics, rotation);
     }
 
     @NonNull
-    CaptureRequest.Builder createPreviewBuilder(CameraCaptureSession captureSession, Surface previewSurface) throws CameraAccessException {
-        CaptureRequest.Builder builder = captureSession.getDevice().createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
-        builder.addTarget(previewSurface);
-        setup3Auto(builder);
+    private CaptureRequest.Builder createStillPictureBuilder() throws CameraAccessException {
+        CaptureRequest.Builder builder = mRequestTemplates.stillPictureBuilder(getJpegOrientation());
+        mLiveParameters.applyTo(builder);
+        JpegEncodingPolicy jpegEncodingPolicy = mJpegEncodingPolicy;
+        if (jpegEncodingPolicy != null) {
+            jpegEncodingPolicy.applyTo(builder, mCameraParams.cameraCharacteristics);
+        }
         return builder;
     }
 
-    private void setup3Auto(CaptureRequest.Builder builder) {
-        // Enable auto-magical 3A run by camera device
-        builder.set(CaptureRequest.CONTROL_MODE, CaptureRequest.CONTROL_MODE_AUTO);
-
-        Float minFocusDist = mCameraParams.cameraCharacteristics.get(CameraCharacteristics.LENS_INFO_MINIMUM_FOCUS_DISTANCE);
-
-        // If MINIMUM_FOCUS_DISTANCE is 0, lens is fixed-focus and we need to skip the AF run.
-        boolean noAFRun = (minFocusDist == null || minFocusDist == 0);
-
-        if (!noAFRun) {
-            // If there is a "continuous picture" mode available, use it, otherwise default to AUTO.
-            int[] afModes = mCameraParams.cameraCharacteristics.get(CameraCharacteristics.CONTROL_AF_AVAILABLE_MODES);
-            if (contains(afModes, CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE)) {
-                builder.set(CaptureRequest.CONTROL_AF_MODE, CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
-            }
-            else {
-                builder.set(CaptureRequest.CONTROL_AF_MODE, CaptureRequest.CONTROL_AF_MODE_AUTO);
-            }
-        }
-
-        // If there is an auto-magical flash control mode available, use it, otherwise default to
-        // the "on" mode, which is guaranteed to always be available.
-        int[] aeModes = mCameraParams.cameraCharacteristics.get(CameraCharacteristics.CONTROL_AE_AVAILABLE_MODES);
-        if (contains(aeModes, CaptureRequest.CONTROL_AE_MODE_ON_AUTO_FLASH)) {
-            builder.set(CaptureRequest.CONTROL_AE_MODE, CaptureRequest.CONTROL_AE_MODE_ON_AUTO_FLASH);
-        }
-        else {
-            builder.set(CaptureRequest.CONTROL_AE_MODE, CaptureRequest.CONTROL_AE_MODE_ON);
-        }
-
-        // If there is an auto-magical white balance control mode available, use it.
-        int[] awbModes = mCameraParams.cameraCharacteristics.get(CameraCharacteristics.CONTROL_AWB_AVAILABLE_MODES);
-        if (contains(awbModes, CaptureRequest.CONTROL_AWB_MODE_AUTO)) {
-            // Allow AWB to run auto-magically if this device supports this
-            builder.set(CaptureRequest.CONTROL_AWB_MODE, CaptureRequest.CONTROL_AWB_MODE_AUTO);
-        }
+    @NonNull
+    CaptureRequest.Builder createPreviewBuilder() throws CameraAccessException {
+        CaptureRequest.Builder builder = mRequestTemplates.previewBuilder();
+        mLiveParameters.applyTo(builder);
+        return builder;
     }
 
     private void closeImageReader() {
         Log.d(TAG, "\tcloseImageReader");
         if (mImageReader != null) {
+            ImageTracker.onReaderClosed(mImageReader);
             mImageReader.close();
             mImageReader = null;
         }
+        if (mRawCaptureMatcher != null) {
+            mRawCaptureMatcher.clear();
+            mRawCaptureMatcher = null;
+        }
+        if (mRawImageReader != null && mDngWriter != null) {
+            mDngWriter.closeWhenIdle(mRawImageReader);
+            mRawImageReader = null;
+            mDngWriter = null;
+        }
+        if (mMultiFrameCapture != null) {
+            mMultiFrameCapture.close();
+            mMultiFrameCapture = null;
+        }
     }
 
     public interface Callback {
@@ -478,11 +1237,29 @@ public class CameraController {
 
         void onPhotoTaken(@NonNull String photoUrl, @Nullable Integer photoSourceType);
 
+        /**
+         * Called after {@link #onPhotoTaken(String, Integer)} if RAW capture is enabled
+         */
+        default void onRawPhotoTaken(@NonNull String photoUrl) {
+        }
+
         void onCameraAccessException();
 
         void onCameraOpenException(@Nullable OpenCameraException.Reason reason);
 
         void onException(Throwable throwable);
+
+        /**
+         * The shot failed in the camera, the preview goes on
+         */
+        default void onPhotoFailed(@NonNull Throwable throwable) {
+        }
+
+        /**
+         * The shutter press didn't result in a photo, see {@link #setCaptureQueuePolicy(CaptureQueuePolicy)}
+         */
+        default void onShutterRejected(@NonNull CaptureQueuePolicy.RejectReason reason) {
+        }
     }
 
 }
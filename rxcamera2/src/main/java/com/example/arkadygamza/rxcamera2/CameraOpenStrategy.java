@@ -0,0 +1,128 @@
+package com.example.arkadygamza.rxcamera2;
+
+import android.annotation.TargetApi;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraManager;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import android.util.Pair;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import io.reactivex.Observable;
+import io.reactivex.android.schedulers.AndroidSchedulers;
+
+/**
+ * Opens a camera which may be briefly held by another app.
+ * <p>
+ * Every attempt is limited by the open timeout, the HAL is not guaranteed to call back. Attempts failing with a
+ * {@link OpenCameraException.Reason#isTransient() transient} reason or timing out are retried with exponential backoff,
+ * up to the retry limit. Errors after the camera is opened are never retried.
+ */
+@TargetApi(21)
+public class CameraOpenStrategy {
+
+    private static final String TAG = CameraOpenStrategy.class.getSimpleName();
+
+    public interface Listener {
+        void onOpenRetry(@NonNull String cameraId, int attempt, @NonNull Throwable error, long backoffMillis);
+
+        /**
+         * @param latencyMillis from the first attempt to {@link CameraDevice.StateCallback#onOpened(CameraDevice)}, including retries
+         */
+        void onOpened(@NonNull String cameraId, long latencyMillis, int retries);
+    }
+
+    private final long mOpenTimeoutMillis;
+    private final int mMaxRetries;
+    private final long mInitialBackoffMillis;
+    private final long mMaxBackoffMillis;
+    @Nullable
+    private volatile Listener mListener;
+
+    public CameraOpenStrategy(long openTimeoutMillis, int maxRetries, long initialBackoffMillis, long maxBackoffMillis) {
+        if (openTimeoutMillis <= 0 || maxRetries < 0 || initialBackoffMillis < 0 || maxBackoffMillis < initialBackoffMillis) {
+            throw new IllegalArgumentException("Invalid open strategy parameters");
+        }
+        mOpenTimeoutMillis = openTimeoutMillis;
+        mMaxRetries = maxRetries;
+        mInitialBackoffMillis = initialBackoffMillis;
+        mMaxBackoffMillis = maxBackoffMillis;
+    }
+
+    /**
+     * 3 s per attempt, up to 5 retries starting at 50 ms and capped at 1 s, gives up after about 1.5 s of contention
+     */
+    @NonNull
+    public static CameraOpenStrategy createDefault() {
+        return new CameraOpenStrategy(3000, 5, 50, 1000);
+    }
+
+    public void setListener(@Nullable Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Same events as {@link CameraRxWrapper#openCamera(String, CameraManager)}, must be subscribed on the main thread.
+     */
+    @NonNull
+    Observable<Pair<CameraRxWrapper.DeviceStateEvents, CameraDevice>> open(@NonNull String cameraId, @NonNull CameraManager cameraManager) {
+        return Observable.defer(() -> {
+            long startMillis = SystemClock.elapsedRealtime();
+            int[] retries = {0};
+            boolean[] opened = {false};
+            return CameraRxWrapper.openCamera(cameraId, cameraManager)
+                .timeout(Observable.timer(mOpenTimeoutMillis, TimeUnit.MILLISECONDS, AndroidSchedulers.mainThread()), __ -> Observable.never())
+                .doOnNext(pair -> {
+                    if (pair.first == CameraRxWrapper.DeviceStateEvents.ON_OPENED && !opened[0]) {
+                        opened[0] = true;
+                        onOpened(cameraId, SystemClock.elapsedRealtime() - startMillis, retries[0]);
+                    }
+                })
+                .retryWhen(errors -> errors.flatMap(error -> {
+                    if (opened[0] || retries[0] >= mMaxRetries || !isRetryable(error)) {
+                        return Observable.error(error);
+                    }
+                    long backoffMillis = getBackoffMillis(retries[0]);
+                    retries[0]++;
+                    onRetry(cameraId, retries[0], error, backoffMillis);
+                    // the retry opens the camera from the timer's thread, it has to be the main one
+                    return Observable.timer(backoffMillis, TimeUnit.MILLISECONDS, AndroidSchedulers.mainThread());
+                }));
+        });
+    }
+
+    long getBackoffMillis(int retry) {
+        return Math.min(mInitialBackoffMillis << Math.min(retry, 30), mMaxBackoffMillis);
+    }
+
+    private static boolean isRetryable(@NonNull Throwable error) {
+        if (error instanceof TimeoutException) {
+            return true;
+        }
+        if (error instanceof OpenCameraException) {
+            OpenCameraException.Reason reason = ((OpenCameraException) error).getReason();
+            return reason != null && reason.isTransient();
+        }
+        return false;
+    }
+
+    private void onRetry(@NonNull String cameraId, int attempt, @NonNull Throwable error, long backoffMillis) {
+        Log.w(TAG, "\tcamera " + cameraId + " open failed (" + error + "), retry #" + attempt + " in " + backoffMillis + " ms");
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onOpenRetry(cameraId, attempt, error, backoffMillis);
+        }
+    }
+
+    private void onOpened(@NonNull String cameraId, long latencyMillis, int retries) {
+        Log.d(TAG, "\tcamera " + cameraId + " opened in " + latencyMillis + " ms, retries: " + retries);
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onOpened(cameraId, latencyMillis, retries);
+        }
+    }
+}
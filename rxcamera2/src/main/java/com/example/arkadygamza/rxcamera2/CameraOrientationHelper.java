@@ -1,7 +1,9 @@
 package com.example.arkadygamza.rxcamera2;
 
 import android.annotation.TargetApi;
+import android.graphics.Rect;
 import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.params.MeteringRectangle;
 import android.support.annotation.NonNull;
 import android.util.Size;
 import android.util.SparseIntArray;
@@ -66,6 +68,57 @@ class CameraOrientationHelper {
         return 0;
     }
 
+    /**
+     * Maps a point of the preview view to a metering region of the sensor.
+     *
+     * @param viewX           horizontal position in the view showing the whole preview frame
+     * @param viewY           vertical position in the view
+     * @param displayDegrees  see {@link #rotationInDegrees(WindowManager)}
+     * @param cropRegion      current {@link android.hardware.camera2.CaptureRequest#SCALER_CROP_REGION}, the visible part of the active array
+     * @param regionFraction  size of the region relative to the shorter side of the crop region
+     */
+    @NonNull
+    static MeteringRectangle getMeteringRegion(@NonNull CameraCharacteristics characteristics, float viewX, float viewY,
+                                               int viewWidth, int viewHeight, int displayDegrees,
+                                               @NonNull Rect cropRegion, float regionFraction) {
+        float x = Math.max(0, Math.min(1, viewX / viewWidth));
+        float y = Math.max(0, Math.min(1, viewY / viewHeight));
+        Integer lensFacing = characteristics.get(CameraCharacteristics.LENS_FACING);
+        boolean front = lensFacing != null && lensFacing == CameraCharacteristics.LENS_FACING_FRONT;
+        if (front) {
+            x = 1 - x; // the front preview is mirrored
+        }
+        int sensorOrientation = getSensorOrientation(characteristics);
+        int rotation = front ? (sensorOrientation + displayDegrees) % 360 : (sensorOrientation - displayDegrees + 360) % 360;
+        // the sensor frame is shown rotated clockwise by rotation degrees, undo it
+        float sensorX;
+        float sensorY;
+        switch (rotation) {
+            case 90:
+                sensorX = y;
+                sensorY = 1 - x;
+                break;
+            case 180:
+                sensorX = 1 - x;
+                sensorY = 1 - y;
+                break;
+            case 270:
+                sensorX = 1 - y;
+                sensorY = x;
+                break;
+            default:
+                sensorX = x;
+                sensorY = y;
+                break;
+        }
+        int size = Math.max(1, (int) (Math.min(cropRegion.width(), cropRegion.height()) * regionFraction));
+        int left = cropRegion.left + (int) (sensorX * cropRegion.width()) - size / 2;
+        int top = cropRegion.top + (int) (sensorY * cropRegion.height()) - size / 2;
+        left = Math.max(cropRegion.left, Math.min(left, cropRegion.right - size));
+        top = Math.max(cropRegion.top, Math.min(top, cropRegion.bottom - size));
+        return new MeteringRectangle(left, top, size, size, MeteringRectangle.METERING_WEIGHT_MAX);
+    }
+
     /**
      * Sensor could be rotated in the device, this method returns normal orientation sensor dimension
      */
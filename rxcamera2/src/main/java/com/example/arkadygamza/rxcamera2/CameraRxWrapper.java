@@ -10,6 +10,7 @@ import android.hardware.camera2.CaptureRequest;
 import android.hardware.camera2.CaptureResult;
 import android.hardware.camera2.TotalCaptureResult;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.util.Log;
 import android.util.Pair;
 import android.view.Surface;
@@ -52,6 +53,7 @@ public class CameraRxWrapper {
     ) {
         return Observable.create(observableEmitter -> {
             Log.d(TAG, "\topenCamera");
+            long span = Tracer.begin("camera open");
 
             observableEmitter.setCancellable(() -> Log.d(TAG, "\topenCamera - unsubscribed"));
 
@@ -59,9 +61,14 @@ public class CameraRxWrapper {
                 @Override
                 public void onOpened(@NonNull CameraDevice cameraDevice) {
                     Log.d(TAG, "\topenCamera - onOpened");
+                    Tracer.end("camera open", span);
                     if (!observableEmitter.isDisposed()) {
                         observableEmitter.onNext(new Pair<>(DeviceStateEvents.ON_OPENED, cameraDevice));
                     }
+                    else {
+                        // opened after a timeout or unsubscription, nobody is going to close it
+                        cameraDevice.close();
+                    }
                 }
 
                 @Override
@@ -84,6 +91,8 @@ public class CameraRxWrapper {
                 @Override
                 public void onError(@NonNull CameraDevice camera, int error) {
                     Log.d(TAG, "\topenCamera - onError");
+                    Tracer.end("camera open", span);
+                    camera.close();
                     if (!observableEmitter.isDisposed()) {
                         observableEmitter.onError(new OpenCameraException(OpenCameraException.Reason.getReason(error)));
                     }
@@ -125,6 +134,7 @@ public class CameraRxWrapper {
     ) {
         return Observable.create(observableEmitter -> {
             Log.d(TAG, "\tcreateCaptureSession");
+            long span = Tracer.begin("session configure");
             observableEmitter.setCancellable(() -> Log.d(TAG, "\tcreateCaptureSession - unsubscribed"));
 
             cameraDevice.createCaptureSession(surfaceList, new CameraCaptureSession.StateCallback() {
@@ -132,6 +142,7 @@ public class CameraRxWrapper {
                 @Override
                 public void onConfigured(@NonNull CameraCaptureSession session) {
                     Log.d(TAG, "\tcreateCaptureSession - onConfigured");
+                    Tracer.end("session configure", span);
                     if (!observableEmitter.isDisposed()) {
                         observableEmitter.onNext(new Pair<>(CaptureSessionStateEvents.ON_CONFIGURED, session));
                     }
@@ -140,6 +151,7 @@ public class CameraRxWrapper {
                 @Override
                 public void onConfigureFailed(@NonNull CameraCaptureSession session) {
                     Log.d(TAG, "\tcreateCaptureSession - onConfigureFailed");
+                    Tracer.end("session configure", span);
                     if (!observableEmitter.isDisposed()) {
                         observableEmitter.onError(new CreateCaptureSessionException(session));
                     }
@@ -188,6 +200,10 @@ public class CameraRxWrapper {
         ON_STARTED,
         ON_PROGRESSED,
         ON_COMPLETED,
+        /**
+         * Emitted by repeating requests only, see {@link CaptureSessionData#failure}
+         */
+        ON_FAILED,
         ON_SEQUENCE_COMPLETED,
         ON_SEQUENCE_ABORTED
     }
@@ -196,31 +212,69 @@ public class CameraRxWrapper {
         final CaptureSessionEvents event;
         final CameraCaptureSession session;
         final CaptureRequest request;
+        /**
+         * Null for {@link CaptureSessionEvents#ON_FAILED}
+         */
         final CaptureResult result;
+        /**
+         * Set for {@link CaptureSessionEvents#ON_FAILED} only
+         */
+        @Nullable
+        final CaptureFailure failure;
 
         CaptureSessionData(CaptureSessionEvents event, CameraCaptureSession session, CaptureRequest request, CaptureResult result) {
             this.event = event;
             this.session = session;
             this.request = request;
             this.result = result;
+            this.failure = null;
+        }
+
+        CaptureSessionData(CameraCaptureSession session, CaptureRequest request, @NonNull CaptureFailure failure) {
+            this.event = CaptureSessionEvents.ON_FAILED;
+            this.session = session;
+            this.request = request;
+            this.result = null;
+            this.failure = failure;
         }
     }
 
     /**
+     * Sets every emitted request as the repeating one, results of all of them come through a single callback.
+     * Failed frames are emitted as {@link CaptureSessionEvents#ON_FAILED}.
      * Warning, emits a lot!
      */
-    static Observable<CaptureSessionData> fromSetRepeatingRequest(@NonNull CameraCaptureSession captureSession, @NonNull CaptureRequest request) {
-        return Observable
-            .create(observableEmitter -> captureSession.setRepeatingRequest(request, createCaptureCallback(observableEmitter), null));
+    static Observable<CaptureSessionData> fromRepeatingRequests(@NonNull CameraCaptureSession captureSession, @NonNull Observable<CaptureRequest> requests) {
+        return Observable.create(observableEmitter -> {
+            CameraCaptureSession.CaptureCallback callback = createCaptureCallback(observableEmitter, true);
+            observableEmitter.setDisposable(
+                requests.subscribe(request -> captureSession.setRepeatingRequest(request, callback, null), observableEmitter::tryOnError)
+            );
+        });
     }
 
+    /**
+     * Fails with {@link CameraCaptureFailedException} if the frame fails
+     */
     static Observable<CaptureSessionData> fromCapture(@NonNull CameraCaptureSession captureSession, @NonNull CaptureRequest request) {
         return Observable
-            .create(observableEmitter -> captureSession.capture(request, createCaptureCallback(observableEmitter), null));
+            .create(observableEmitter -> captureSession.capture(request, createCaptureCallback(observableEmitter, false), null));
     }
 
+    /**
+     * Results of all requests of the burst in order, never completes, take as many as there are requests.
+     * Fails with {@link CameraCaptureFailedException} if any frame fails.
+     */
+    static Observable<CaptureSessionData> fromCaptureBurst(@NonNull CameraCaptureSession captureSession, @NonNull List<CaptureRequest> requests) {
+        return Observable
+            .create(observableEmitter -> captureSession.captureBurst(requests, createCaptureCallback(observableEmitter, false), null));
+    }
+
+/**
+ * @param failuresAsEvents emit failed frames instead of failing, for repeating requests where the next frame comes anyway
+ */
 @NonNull
-private static CameraCaptureSession.CaptureCallback createCaptureCallback(final ObservableEmitter<CaptureSessionData> observableEmitter) {
+private static CameraCaptureSession.CaptureCallback createCaptureCallback(final ObservableEmitter<CaptureSessionData> observableEmitter, boolean failuresAsEvents) {
     return new CameraCaptureSession.CaptureCallback() {
 
         @Override
@@ -240,7 +294,13 @@ private static CameraCaptureSession.CaptureCallback createCaptureCallback(final
 
         @Override
         public void onCaptureFailed(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request, @NonNull CaptureFailure failure) {
-            if (!observableEmitter.isDisposed()) {
+            if (observableEmitter.isDisposed()) {
+                return;
+            }
+            if (failuresAsEvents) {
+                observableEmitter.onNext(new CaptureSessionData(session, request, failure));
+            }
+            else {
                 observableEmitter.onError(new CameraCaptureFailedException(failure));
             }
         }
@@ -268,6 +328,7 @@ private static CameraCaptureSession.CaptureCallback createCaptureCallback(final
         public final CaptureFailure mFailure;
 
         public CameraCaptureFailedException(CaptureFailure failure) {
+            super("Capture of frame " + failure.getFrameNumber() + " failed, reason " + failure.getReason());
             mFailure = failure;
         }
 
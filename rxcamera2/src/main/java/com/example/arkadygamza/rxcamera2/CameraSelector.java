@@ -0,0 +1,246 @@
+package com.example.arkadygamza.rxcamera2;
+
+import android.annotation.TargetApi;
+import android.graphics.ImageFormat;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Size;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Ranks the cameras of a facing by their capabilities instead of taking the first one, which on multi-camera phones is
+ * often a LEGACY logical camera or a slow auxiliary lens.
+ * <p>
+ * Scored: {@link CameraCharacteristics#INFO_SUPPORTED_HARDWARE_LEVEL}, the
+ * {@link CameraCharacteristics#REQUEST_AVAILABLE_CAPABILITIES_BURST_CAPTURE} capability, the biggest still size without
+ * a stall, the frame rate of the biggest JPEG and autofocus. Weights depend on the {@link Priority}. Every selection comes
+ * with a {@link Report} of all scores.
+ */
+@TargetApi(21)
+public class CameraSelector {
+
+    public enum Priority {
+        /**
+         * Fast shutter and bursts: hardware level, burst capability and frame rate weigh most
+         */
+        LATENCY(12, 20, 1, 40, 5),
+        /**
+         * Image quality: hardware level, stall-free resolution and autofocus weigh most
+         */
+        QUALITY(12, 5, 4, 10, 15);
+
+        private final int mHardwareLevelWeight;
+        private final int mBurstWeight;
+        private final int mMegapixelWeight;
+        /**
+         * For 30 fps, scaled linearly and capped at 60 fps
+         */
+        private final int mFrameRateWeight;
+        private final int mAutoFocusWeight;
+
+        Priority(int hardwareLevelWeight, int burstWeight, int megapixelWeight, int frameRateWeight, int autoFocusWeight) {
+            mHardwareLevelWeight = hardwareLevelWeight;
+            mBurstWeight = burstWeight;
+            mMegapixelWeight = megapixelWeight;
+            mFrameRateWeight = frameRateWeight;
+            mAutoFocusWeight = autoFocusWeight;
+        }
+    }
+
+    private static final float MAX_MEGAPIXELS = 20;
+    private static final float MAX_FRAME_RATE = 60;
+
+    /**
+     * Capabilities and the score of one camera
+     */
+    public static class Candidate {
+        @NonNull
+        public final String cameraId;
+        /**
+         * {@link CameraCharacteristics#LENS_FACING}, null if unknown
+         */
+        @Nullable
+        public final Integer lensFacing;
+        /**
+         * 0 for LEGACY (and unknown levels), 1 for LIMITED, 2 for FULL, 3 for LEVEL_3
+         */
+        public final int hardwareLevelRank;
+        public final boolean burstCapture;
+        public final float stallFreeMegapixels;
+        /**
+         * Max frame rate of the biggest JPEG, 0 if unknown
+         */
+        public final float stillFrameRate;
+        public final boolean autoFocus;
+        public final float score;
+
+        Candidate(@NonNull String cameraId, @Nullable Integer lensFacing, int hardwareLevelRank, boolean burstCapture,
+                  float stallFreeMegapixels, float stillFrameRate, boolean autoFocus, @NonNull Priority priority) {
+            this.cameraId = cameraId;
+            this.lensFacing = lensFacing;
+            this.hardwareLevelRank = hardwareLevelRank;
+            this.burstCapture = burstCapture;
+            this.stallFreeMegapixels = stallFreeMegapixels;
+            this.stillFrameRate = stillFrameRate;
+            this.autoFocus = autoFocus;
+            this.score = priority.mHardwareLevelWeight * hardwareLevelRank
+                + (burstCapture ? priority.mBurstWeight : 0)
+                + priority.mMegapixelWeight * Math.min(stallFreeMegapixels, MAX_MEGAPIXELS)
+                + priority.mFrameRateWeight * Math.min(stillFrameRate, MAX_FRAME_RATE) / 30
+                + (autoFocus ? priority.mAutoFocusWeight : 0);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "camera %s: score %.1f, level rank %d, burst %b, stall-free %.1f MP, still %.1f fps, AF %b",
+                cameraId, score, hardwareLevelRank, burstCapture, stallFreeMegapixels, stillFrameRate, autoFocus);
+        }
+    }
+
+    /**
+     * Why the camera was selected: all candidates of the facing, best first
+     */
+    public static class Report {
+        @Nullable
+        public final String cameraId;
+        public final int lensFacing;
+        @NonNull
+        public final Priority priority;
+        @NonNull
+        public final List<Candidate> candidates;
+        /**
+         * No camera has the facing, candidates are all cameras
+         */
+        public final boolean facingFallback;
+
+        Report(int lensFacing, @NonNull Priority priority, @NonNull List<Candidate> candidates, boolean facingFallback) {
+            this.cameraId = candidates.isEmpty() ? null : candidates.get(0).cameraId;
+            this.lensFacing = lensFacing;
+            this.priority = priority;
+            this.candidates = Collections.unmodifiableList(candidates);
+            this.facingFallback = facingFallback;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder()
+                .append("selected camera ").append(cameraId)
+                .append(" for facing ").append(lensFacing)
+                .append(" by ").append(priority);
+            if (facingFallback) {
+                builder.append(", no camera has the facing");
+            }
+            for (Candidate candidate : candidates) {
+                builder.append("\n\t").append(candidate);
+            }
+            return builder.toString();
+        }
+    }
+
+    /**
+     * @param lensFacing {@link CameraCharacteristics#LENS_FACING} wanted, any camera is taken if none has it
+     */
+    @NonNull
+    public static Report select(@NonNull CameraManager manager, int lensFacing, @NonNull Priority priority) throws CameraAccessException {
+        List<Candidate> facingCandidates = new ArrayList<>();
+        List<Candidate> allCandidates = new ArrayList<>();
+        for (String cameraId : manager.getCameraIdList()) {
+            Candidate candidate = evaluate(cameraId, manager.getCameraCharacteristics(cameraId), priority);
+            if (candidate == null) {
+                continue;
+            }
+            allCandidates.add(candidate);
+            if (candidate.lensFacing != null && candidate.lensFacing == lensFacing) {
+                facingCandidates.add(candidate);
+            }
+        }
+        boolean facingFallback = facingCandidates.isEmpty();
+        List<Candidate> candidates = facingFallback ? allCandidates : facingCandidates;
+        // stable, so equal scores keep the camera id order where the main camera comes first
+        Collections.sort(candidates, (lhs, rhs) -> Float.compare(rhs.score, lhs.score));
+        return new Report(lensFacing, priority, candidates, facingFallback);
+    }
+
+    /**
+     * @return null for cameras without stream configurations, they can't be used
+     */
+    @Nullable
+    private static Candidate evaluate(@NonNull String cameraId, @NonNull CameraCharacteristics characteristics, @NonNull Priority priority) {
+        StreamConfigurationMap map = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+        if (map == null) {
+            return null;
+        }
+        Size biggestJpeg = getBiggest(map.getOutputSizes(ImageFormat.JPEG));
+        long minFrameDuration = biggestJpeg == null ? 0 : map.getOutputMinFrameDuration(ImageFormat.JPEG, biggestJpeg);
+        Float minFocusDistance = characteristics.get(CameraCharacteristics.LENS_INFO_MINIMUM_FOCUS_DISTANCE);
+        return new Candidate(
+            cameraId,
+            characteristics.get(CameraCharacteristics.LENS_FACING),
+            getHardwareLevelRank(characteristics.get(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL)),
+            hasCapability(characteristics, CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES_BURST_CAPTURE),
+            Math.max(getStallFreeMegapixels(map, ImageFormat.JPEG), getStallFreeMegapixels(map, ImageFormat.YUV_420_888)),
+            minFrameDuration > 0 ? 1e9f / minFrameDuration : 0,
+            minFocusDistance != null && minFocusDistance > 0,
+            priority
+        );
+    }
+
+    private static int getHardwareLevelRank(@Nullable Integer hardwareLevel) {
+        if (hardwareLevel == null) {
+            return 0;
+        }
+        switch (hardwareLevel) {
+            case CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL_LIMITED: return 1;
+            case CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL_FULL: return 2;
+            case CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL_3: return 3;
+        }
+        return 0; // LEGACY and EXTERNAL
+    }
+
+    private static boolean hasCapability(@NonNull CameraCharacteristics characteristics, int capability) {
+        int[] capabilities = characteristics.get(CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES);
+        if (capabilities != null) {
+            for (int available : capabilities) {
+                if (available == capability) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static float getStallFreeMegapixels(@NonNull StreamConfigurationMap map, int format) {
+        Size[] sizes = map.getOutputSizes(format);
+        long biggestArea = 0;
+        if (sizes != null) {
+            for (Size size : sizes) {
+                long area = (long) size.getWidth() * size.getHeight();
+                if (area > biggestArea && map.getOutputStallDuration(format, size) == 0) {
+                    biggestArea = area;
+                }
+            }
+        }
+        return biggestArea / 1e6f;
+    }
+
+    @Nullable
+    private static Size getBiggest(@Nullable Size[] sizes) {
+        Size biggest = null;
+        if (sizes != null) {
+            for (Size size : sizes) {
+                if (biggest == null || (long) size.getWidth() * size.getHeight() > (long) biggest.getWidth() * biggest.getHeight()) {
+                    biggest = size;
+                }
+            }
+        }
+        return biggest;
+    }
+}
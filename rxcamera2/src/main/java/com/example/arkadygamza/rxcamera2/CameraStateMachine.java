@@ -0,0 +1,541 @@
+package com.example.arkadygamza.rxcamera2;
+
+import android.annotation.TargetApi;
+import android.graphics.SurfaceTexture;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.params.MeteringRectangle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.example.arkadygamza.rxcamera2.CameraRxWrapper.CaptureSessionData;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Single threaded state machine driving the camera: open, configure session, preview, capture and close.
+ * <p>
+ * Every external signal (lifecycle, surface, buttons, camera callbacks) is an {@link Event}. Events are handled one by one
+ * on the looper the machine was created with, events dispatched from other threads or while another event is being handled
+ * are queued, so the order of transitions is deterministic. Side effects are delegated to {@link Actions}.
+ */
+@TargetApi(21)
+class CameraStateMachine {
+
+    private static final String TAG = CameraStateMachine.class.getSimpleName();
+    private static final int TRANSITION_LOG_SIZE = 64;
+
+    enum State {
+        CLOSED,
+        OPENING,
+        OPENED,
+        SESSION_CONFIGURED,
+        PREVIEWING,
+        CAPTURING,
+        CLOSING
+    }
+
+    enum EventType {
+        RESUME,
+        PAUSE,
+        SURFACE_AVAILABLE,
+        SURFACE_DESTROYED,
+        SWITCH_CAMERA,
+        SHUTTER,
+        DEVICE_OPENED,
+        DEVICE_CLOSED,
+        DEVICE_DISCONNECTED,
+        SESSION_CONFIGURED,
+        SURFACES_PREPARED,
+        SESSION_CLOSED,
+        PREVIEW_STARTED,
+        CAPTURE_COMPLETED,
+        FOCUS,
+        ERROR
+    }
+
+    /**
+     * Event with optional payload, use factory methods to create them.
+     */
+    static final class Event {
+        private static final Event RESUME = new Event(EventType.RESUME, null);
+        private static final Event PAUSE = new Event(EventType.PAUSE, null);
+        private static final Event SURFACE_DESTROYED = new Event(EventType.SURFACE_DESTROYED, null);
+        private static final Event SWITCH_CAMERA = new Event(EventType.SWITCH_CAMERA, null);
+        private static final Event SHUTTER = new Event(EventType.SHUTTER, null);
+        private static final Event DEVICE_CLOSED = new Event(EventType.DEVICE_CLOSED, null);
+        private static final Event DEVICE_DISCONNECTED = new Event(EventType.DEVICE_DISCONNECTED, null);
+        private static final Event SESSION_CLOSED = new Event(EventType.SESSION_CLOSED, null);
+        private static final Event SURFACES_PREPARED = new Event(EventType.SURFACES_PREPARED, null);
+        private static final Event CAPTURE_COMPLETED = new Event(EventType.CAPTURE_COMPLETED, null);
+
+        @NonNull
+        final EventType type;
+        @Nullable
+        private final Object mPayload;
+
+        private Event(@NonNull EventType type, @Nullable Object payload) {
+            this.type = type;
+            mPayload = payload;
+        }
+
+        static Event resume() {
+            return RESUME;
+        }
+
+        static Event pause() {
+            return PAUSE;
+        }
+
+        static Event surfaceDestroyed() {
+            return SURFACE_DESTROYED;
+        }
+
+        static Event switchCamera() {
+            return SWITCH_CAMERA;
+        }
+
+        static Event shutter() {
+            return SHUTTER;
+        }
+
+        static Event deviceClosed() {
+            return DEVICE_CLOSED;
+        }
+
+        static Event deviceDisconnected() {
+            return DEVICE_DISCONNECTED;
+        }
+
+        static Event sessionClosed() {
+            return SESSION_CLOSED;
+        }
+
+        static Event surfacesPrepared() {
+            return SURFACES_PREPARED;
+        }
+
+        static Event captureCompleted() {
+            return CAPTURE_COMPLETED;
+        }
+
+        static Event surfaceAvailable(@NonNull SurfaceTexture surfaceTexture) {
+            return new Event(EventType.SURFACE_AVAILABLE, surfaceTexture);
+        }
+
+        static Event deviceOpened(@NonNull CameraDevice cameraDevice) {
+            return new Event(EventType.DEVICE_OPENED, cameraDevice);
+        }
+
+        static Event sessionConfigured(@NonNull CameraCaptureSession session) {
+            return new Event(EventType.SESSION_CONFIGURED, session);
+        }
+
+        static Event previewStarted(@NonNull CaptureSessionData captureSessionData) {
+            return new Event(EventType.PREVIEW_STARTED, captureSessionData);
+        }
+
+        static Event focus(@NonNull MeteringRectangle region) {
+            return new Event(EventType.FOCUS, region);
+        }
+
+        static Event error(@NonNull Throwable throwable) {
+            return new Event(EventType.ERROR, throwable);
+        }
+
+        @SuppressWarnings("unchecked")
+        @NonNull
+        private <T> T payload() {
+            if (mPayload == null) {
+                throw new IllegalStateException(type + " has no payload");
+            }
+            return (T) mPayload;
+        }
+    }
+
+    /**
+     * Side effects requested by the machine. Results must come back as events via {@link #dispatch(Event)}.
+     */
+    interface Actions {
+        /**
+         * Prepares outputs for the given surface and opens the camera.
+         * Expected to dispatch {@link EventType#DEVICE_OPENED}, {@link EventType#DEVICE_CLOSED}, {@link EventType#DEVICE_DISCONNECTED}.
+         */
+        void openCamera(@NonNull SurfaceTexture surfaceTexture);
+
+        /**
+         * Expected to dispatch {@link EventType#SESSION_CONFIGURED}, {@link EventType#SURFACES_PREPARED} once the still
+         * outputs are ready to shoot, and {@link EventType#SESSION_CLOSED}.
+         */
+        void createCaptureSession(@NonNull CameraDevice cameraDevice);
+
+        /**
+         * Expected to dispatch {@link EventType#PREVIEW_STARTED} on the first preview frame.
+         */
+        void startPreview(@NonNull CameraCaptureSession session);
+
+        /**
+         * Expected to dispatch {@link EventType#CAPTURE_COMPLETED}.
+         */
+        void capture(@NonNull CaptureSessionData previewData);
+
+        /**
+         * Focuses on the region while previewing, the state doesn't change.
+         */
+        void focus(@NonNull CaptureSessionData previewData, @NonNull MeteringRectangle region);
+
+        /**
+         * Stops any capture in progress and closes the session, expected to dispatch {@link EventType#SESSION_CLOSED}.
+         */
+        void closeCaptureSession(@NonNull CameraCaptureSession session);
+
+        /**
+         * Expected to dispatch {@link EventType#DEVICE_CLOSED}.
+         */
+        void closeCamera(@NonNull CameraDevice cameraDevice);
+
+        /**
+         * Releases everything allocated for the closed camera.
+         */
+        void release();
+
+        /**
+         * Selects the next camera, called only while closed.
+         */
+        void switchCamera();
+
+        void onError(@NonNull Throwable throwable);
+
+        void onShutterRejected(@NonNull CaptureQueuePolicy.RejectReason reason);
+    }
+
+    @NonNull
+    private final Actions mActions;
+    @NonNull
+    private final Handler mHandler;
+    private final ArrayDeque<Event> mPendingEvents = new ArrayDeque<>();
+    private boolean mDispatching;
+
+    @NonNull
+    private State mState = State.CLOSED;
+    private boolean mResumed;
+    @NonNull
+    private volatile CaptureQueuePolicy mCaptureQueuePolicy = CaptureQueuePolicy.coalesce();
+    /**
+     * Shutter presses waiting for the preview or for the previous shot
+     */
+    private int mPendingShots;
+    private boolean mPendingSwitch;
+    @Nullable
+    private SurfaceTexture mSurfaceTexture;
+    @Nullable
+    private CameraDevice mCameraDevice;
+    @Nullable
+    private CameraCaptureSession mCaptureSession;
+    @Nullable
+    private CaptureSessionData mPreviewData;
+    /**
+     * The still outputs of the session are prepared, shots before that wait as pending ones
+     */
+    private boolean mReadyToShoot;
+
+    // transition log, preallocated ring buffer
+    private final long[] mLogTimes = new long[TRANSITION_LOG_SIZE];
+    private final State[] mLogFrom = new State[TRANSITION_LOG_SIZE];
+    private final EventType[] mLogEvents = new EventType[TRANSITION_LOG_SIZE];
+    private final State[] mLogTo = new State[TRANSITION_LOG_SIZE];
+    private long mLogCount;
+
+    CameraStateMachine(@NonNull Actions actions, @NonNull Looper looper) {
+        mActions = actions;
+        mHandler = new Handler(looper);
+    }
+
+    void setCaptureQueuePolicy(@NonNull CaptureQueuePolicy captureQueuePolicy) {
+        mCaptureQueuePolicy = captureQueuePolicy;
+    }
+
+    @NonNull
+    State getState() {
+        return mState;
+    }
+
+    /**
+     * Can be called from any thread, the event is handled on the machine's looper.
+     */
+    void dispatch(@NonNull Event event) {
+        if (Looper.myLooper() != mHandler.getLooper()) {
+            mHandler.post(() -> dispatch(event));
+            return;
+        }
+        mPendingEvents.add(event);
+        if (mDispatching) {
+            return; // handled after the current event
+        }
+        mDispatching = true;
+        try {
+            Event next;
+            while ((next = mPendingEvents.poll()) != null) {
+                State from = mState;
+                handle(next);
+                logTransition(from, next.type, mState);
+            }
+        }
+        finally {
+            mDispatching = false;
+        }
+    }
+
+    /**
+     * @return the last transitions, oldest first, as "#number from --EVENT--> to (+elapsed ms)"
+     */
+    @NonNull
+    List<String> getTransitionLog() {
+        int size = (int) Math.min(mLogCount, TRANSITION_LOG_SIZE);
+        List<String> log = new ArrayList<>(size);
+        for (long number = mLogCount - size; number < mLogCount; number++) {
+            int i = (int) (number % TRANSITION_LOG_SIZE);
+            log.add(String.format(Locale.US, "#%d %s --%s--> %s (+%d ms)",
+                number, mLogFrom[i], mLogEvents[i], mLogTo[i], mLogTimes[i] - mLogTimes[(int) ((mLogCount - size) % TRANSITION_LOG_SIZE)]));
+        }
+        return log;
+    }
+
+    private void logTransition(@NonNull State from, @NonNull EventType event, @NonNull State to) {
+        int i = (int) (mLogCount % TRANSITION_LOG_SIZE);
+        mLogTimes[i] = SystemClock.elapsedRealtime();
+        mLogFrom[i] = from;
+        mLogEvents[i] = event;
+        mLogTo[i] = to;
+        mLogCount++;
+        if (from != to) {
+            Log.d(TAG, "\t" + from + " --" + event + "--> " + to);
+        }
+    }
+
+    private void handle(@NonNull Event event) {
+        switch (event.type) {
+            case RESUME:
+                mResumed = true;
+                tryOpen();
+                break;
+
+            case PAUSE:
+                mResumed = false;
+                mPendingShots = 0;
+                startClosing();
+                break;
+
+            case SURFACE_AVAILABLE:
+                SurfaceTexture surfaceTexture = event.payload();
+                if (surfaceTexture == mSurfaceTexture) {
+                    tryOpen();
+                    break;
+                }
+                mSurfaceTexture = surfaceTexture;
+                if (mState == State.CLOSED) {
+                    tryOpen();
+                }
+                else {
+                    startClosing(); // the session outputs into the old texture, reopened with the new one when closed
+                }
+                break;
+
+            case SURFACE_DESTROYED:
+                mSurfaceTexture = null;
+                startClosing();
+                break;
+
+            case SWITCH_CAMERA:
+                if (mState == State.CLOSED) {
+                    mActions.switchCamera();
+                    tryOpen();
+                }
+                else {
+                    mPendingSwitch = true;
+                    startClosing();
+                }
+                break;
+
+            case SHUTTER:
+                if (mState == State.PREVIEWING && mReadyToShoot) {
+                    startCapture();
+                }
+                else if (mState == State.CLOSING) {
+                    mActions.onShutterRejected(CaptureQueuePolicy.RejectReason.CLOSING);
+                }
+                else {
+                    enqueueShot();
+                }
+                break;
+
+            case DEVICE_OPENED:
+                mCameraDevice = event.payload();
+                if (mState == State.OPENING) {
+                    mState = State.OPENED;
+                    mActions.createCaptureSession(mCameraDevice);
+                }
+                else if (mState == State.CLOSING) {
+                    mActions.closeCamera(mCameraDevice);
+                }
+                break;
+
+            case SESSION_CONFIGURED:
+                mCaptureSession = event.payload();
+                if (mState == State.OPENED) {
+                    mState = State.SESSION_CONFIGURED;
+                    mReadyToShoot = false;
+                    mActions.startPreview(mCaptureSession);
+                }
+                else if (mState == State.CLOSING) {
+                    mActions.closeCaptureSession(mCaptureSession);
+                }
+                break;
+
+            case PREVIEW_STARTED:
+                if (mState == State.SESSION_CONFIGURED) {
+                    mPreviewData = event.payload();
+                    mState = State.PREVIEWING;
+                    if (mReadyToShoot) {
+                        startPendingShot();
+                    }
+                }
+                break;
+
+            case SURFACES_PREPARED:
+                if (mState == State.SESSION_CONFIGURED || mState == State.PREVIEWING) {
+                    mReadyToShoot = true;
+                    if (mState == State.PREVIEWING) {
+                        startPendingShot();
+                    }
+                }
+                break;
+
+            case CAPTURE_COMPLETED:
+                if (mState == State.CAPTURING) {
+                    mState = State.PREVIEWING;
+                    // the previous photo is still being saved, the next shot doesn't wait for it
+                    startPendingShot();
+                }
+                break;
+
+            case FOCUS:
+                if (mState == State.PREVIEWING) {
+                    //noinspection ConstantConditions set on PREVIEW_STARTED
+                    mActions.focus(mPreviewData, event.payload());
+                }
+                break;
+
+            case SESSION_CLOSED:
+                mCaptureSession = null;
+                mPreviewData = null;
+                if (mState == State.CLOSING && mCameraDevice != null) {
+                    mActions.closeCamera(mCameraDevice);
+                }
+                break;
+
+            case DEVICE_CLOSED:
+                if (mState != State.CLOSED) {
+                    onClosed();
+                }
+                break;
+
+            case DEVICE_DISCONNECTED:
+                if (mCameraDevice != null) {
+                    mActions.closeCamera(mCameraDevice);
+                }
+                if (mState != State.CLOSED) {
+                    onClosed();
+                }
+                break;
+
+            case ERROR:
+                Log.d(TAG, "\terror in " + mState + ", transitions: " + getTransitionLog());
+                if (mCameraDevice != null) {
+                    mActions.closeCamera(mCameraDevice);
+                }
+                mPendingSwitch = false;
+                mPendingShots = 0;
+                releaseAll();
+                mActions.onError(event.payload());
+                break;
+        }
+    }
+
+    private void tryOpen() {
+        if (mState == State.CLOSED && mResumed && mSurfaceTexture != null) {
+            mState = State.OPENING;
+            mActions.openCamera(mSurfaceTexture);
+        }
+    }
+
+    private void enqueueShot() {
+        CaptureQueuePolicy policy = mCaptureQueuePolicy;
+        if (mPendingShots < policy.getCapacity()) {
+            mPendingShots++;
+        }
+        else if (!policy.isCoalescing()) {
+            mActions.onShutterRejected(mPendingShots == 0 ? CaptureQueuePolicy.RejectReason.BUSY : CaptureQueuePolicy.RejectReason.QUEUE_FULL);
+        }
+        // else merged into the pending shot
+    }
+
+    private void startPendingShot() {
+        if (mPendingShots > 0) {
+            mPendingShots--;
+            startCapture();
+        }
+    }
+
+    private void startCapture() {
+        mState = State.CAPTURING;
+        //noinspection ConstantConditions set on PREVIEW_STARTED
+        mActions.capture(mPreviewData);
+    }
+
+    private void startClosing() {
+        switch (mState) {
+            case CLOSED:
+            case CLOSING:
+                return;
+            case OPENING:
+                break; // closed as soon as it is opened
+            case OPENED:
+                //noinspection ConstantConditions set on DEVICE_OPENED
+                mActions.closeCamera(mCameraDevice);
+                break;
+            case SESSION_CONFIGURED:
+            case PREVIEWING:
+            case CAPTURING:
+                //noinspection ConstantConditions set on SESSION_CONFIGURED
+                mActions.closeCaptureSession(mCaptureSession);
+                break;
+        }
+        mState = State.CLOSING;
+    }
+
+    private void onClosed() {
+        releaseAll();
+        if (mPendingSwitch) {
+            mPendingSwitch = false;
+            mActions.switchCamera();
+        }
+        tryOpen();
+    }
+
+    private void releaseAll() {
+        mCameraDevice = null;
+        mCaptureSession = null;
+        mPreviewData = null;
+        mReadyToShoot = false;
+        mState = State.CLOSED;
+        mActions.release();
+    }
+}
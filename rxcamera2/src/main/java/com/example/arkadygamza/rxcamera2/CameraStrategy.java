@@ -2,6 +2,7 @@ package com.example.arkadygamza.rxcamera2;
 
 import android.annotation.TargetApi;
 import android.graphics.ImageFormat;
+import android.graphics.Rect;
 import android.graphics.SurfaceTexture;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCharacteristics;
@@ -9,8 +10,12 @@ import android.hardware.camera2.CameraManager;
 import android.hardware.camera2.params.StreamConfigurationMap;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.util.Log;
+import android.util.Range;
 import android.util.Size;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
@@ -28,13 +33,13 @@ class CameraStrategy {
     private static final int MAX_STILL_IMAGE_WIDTH = 1920;
     private static final int MAX_STILL_IMAGE_HEIGHT = 1920;
 
-    @Nullable
-    static String chooseDefaultCamera(@NonNull CameraManager manager) throws CameraAccessException {
-        return getCameraWithFacing(manager, CameraCharacteristics.LENS_FACING_FRONT);
+    @NonNull
+    static CameraSelector.Report chooseDefaultCamera(@NonNull CameraManager manager, @NonNull CameraSelector.Priority priority) throws CameraAccessException {
+        return getCameraWithFacing(manager, CameraCharacteristics.LENS_FACING_FRONT, priority);
     }
 
-    @Nullable
-    static String switchCamera(@NonNull CameraManager manager, @Nullable String currentCameraId) throws CameraAccessException {
+    @NonNull
+    static CameraSelector.Report switchCamera(@NonNull CameraManager manager, @Nullable String currentCameraId, @NonNull CameraSelector.Priority priority) throws CameraAccessException {
         if (currentCameraId != null) {
             Integer currentFacing = manager.getCameraCharacteristics(currentCameraId).get(CameraCharacteristics.LENS_FACING);
             if (currentFacing != null) {
@@ -46,42 +51,76 @@ class CameraStrategy {
                 else {
                     lensFacing = CameraCharacteristics.LENS_FACING_FRONT;
                 }
-                return getCameraWithFacing(manager, lensFacing);
+                return getCameraWithFacing(manager, lensFacing, priority);
             }
         }
-        return chooseDefaultCamera(manager);
+        return chooseDefaultCamera(manager, priority);
     }
 
-    @Nullable
-    private static String getCameraWithFacing(@NonNull CameraManager manager, int lensFacing) throws CameraAccessException {
-        String possibleCandidate = null;
-        String[] cameraIdList = manager.getCameraIdList();
-        if (cameraIdList.length == 0) {
-            return null;
-        }
-        for (String cameraId : cameraIdList) {
-            CameraCharacteristics characteristics = manager.getCameraCharacteristics(cameraId);
-
-            StreamConfigurationMap map = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
-            if (map == null) {
-                continue;
-            }
+    /**
+     * @return report with the best scored camera with the facing, the best of all cameras if none has it
+     */
+    @NonNull
+    private static CameraSelector.Report getCameraWithFacing(@NonNull CameraManager manager, int lensFacing, @NonNull CameraSelector.Priority priority) throws CameraAccessException {
+        CameraSelector.Report report = CameraSelector.select(manager, lensFacing, priority);
+        Log.d(TAG, "\t" + report);
+        return report;
+    }
 
-            Integer facing = characteristics.get(CameraCharacteristics.LENS_FACING);
-            if (facing != null && facing == lensFacing) {
-                return cameraId;
-            }
+    /**
+     * Sizes of the preview, the JPEG, the RAW and the multi-frame YUV outputs which form a guaranteed
+     * {@link StreamCombinations} combination. The preferred sizes are degraded step by step until they fit: the preview
+     * is limited to the preview size class (the still follows its aspect ratio), RAW is dropped, the YUV and then the
+     * still are limited to the preview size class, and finally the YUV is dropped.
+     * If nothing fits, the last step is returned and the session may still be rejected.
+     *
+     * @param rawWanted RAW is added if the camera supports it
+     * @param yuvWanted YUV for multi-frame shots is added, of the still's aspect ratio
+     */
+    @NonNull
+    static StreamCombinations.StreamSizes chooseStreamSizes(@NonNull CameraCharacteristics characteristics, @NonNull Size displaySize,
+                                                           boolean rawWanted, boolean yuvWanted) {
+        StreamCombinations combinations = new StreamCombinations(characteristics, displaySize);
+        Size previewBound = combinations.getPreviewBound();
+        Size rawSize = rawWanted ? getRawImageSize(characteristics) : null;
 
-            //just in case device don't have any camera with given facing
-            possibleCandidate = cameraId;
+        Size preferredPreview = getPreviewSize(characteristics);
+        Size preferredStill = getStillImageSize(characteristics, preferredPreview);
+        Size boundedPreview = getPreviewSize(characteristics, previewBound.getWidth(), previewBound.getHeight());
+        Size still = getStillImageSize(characteristics, boundedPreview);
+        Size boundedStill = getStillImageSize(characteristics, boundedPreview, previewBound.getWidth(), previewBound.getHeight());
+        Size yuv = yuvWanted ? getYuvImageSize(characteristics, still, MAX_STILL_IMAGE_WIDTH, MAX_STILL_IMAGE_HEIGHT) : null;
+        Size boundedYuv = yuvWanted ? getYuvImageSize(characteristics, still, previewBound.getWidth(), previewBound.getHeight()) : null;
+        List<StreamCombinations.StreamSizes> fallbackChain = new ArrayList<>(Arrays.asList(
+            new StreamCombinations.StreamSizes(preferredPreview, preferredStill, rawSize,
+                yuvWanted ? getYuvImageSize(characteristics, preferredStill, MAX_STILL_IMAGE_WIDTH, MAX_STILL_IMAGE_HEIGHT) : null),
+            new StreamCombinations.StreamSizes(boundedPreview, still, rawSize, yuv),
+            new StreamCombinations.StreamSizes(boundedPreview, still, null, yuv),
+            new StreamCombinations.StreamSizes(boundedPreview, still, null, boundedYuv),
+            new StreamCombinations.StreamSizes(boundedPreview, boundedStill, null, boundedYuv)
+        ));
+        if (yuvWanted) {
+            fallbackChain.add(new StreamCombinations.StreamSizes(boundedPreview, boundedStill, null, null));
         }
-        if (possibleCandidate != null) {
-            return possibleCandidate;
+        for (int i = 0; i < fallbackChain.size(); i++) {
+            StreamCombinations.StreamSizes sizes = fallbackChain.get(i);
+            if (combinations.isGuaranteed(sizes.toStreams())) {
+                if (i > 0) {
+                    Log.d(TAG, "\tstreams degraded to " + sizes + " after " + i + " steps, " + fallbackChain.get(0) + " is not guaranteed");
+                }
+                return sizes;
+            }
         }
-        return cameraIdList[0];
+        StreamCombinations.StreamSizes last = fallbackChain.get(fallbackChain.size() - 1);
+        Log.w(TAG, "\tno guaranteed stream combination, trying " + last);
+        return last;
     }
 
     static Size getPreviewSize(@NonNull CameraCharacteristics characteristics) {
+        return getPreviewSize(characteristics, MAX_PREVIEW_WIDTH, MAX_PREVIEW_HEIGHT);
+    }
+
+    private static Size getPreviewSize(@NonNull CameraCharacteristics characteristics, int maxWidth, int maxHeight) {
         StreamConfigurationMap map = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
         Size[] outputSizes = map.getOutputSizes(SurfaceTexture.class);
 
@@ -89,7 +128,7 @@ class CameraStrategy {
             throw new IllegalStateException("No supported sizes for SurfaceTexture");
         }
         List<Size> filteredOutputSizes = Observable.fromArray(outputSizes)
-            .filter(size -> size.getWidth() <= MAX_PREVIEW_WIDTH && size.getHeight() <= MAX_PREVIEW_HEIGHT)
+            .filter(size -> size.getWidth() <= maxWidth && size.getHeight() <= maxHeight)
             .toList()
             .blockingGet();
 
@@ -104,6 +143,10 @@ class CameraStrategy {
      * Please note that aspect ratios should be the same for {@link #getPreviewSize(CameraCharacteristics)} and {@link #getStillImageSize(CameraCharacteristics, Size)}
      */
     static Size getStillImageSize(@NonNull CameraCharacteristics characteristics, @NonNull Size previewSize) {
+        return getStillImageSize(characteristics, previewSize, MAX_STILL_IMAGE_WIDTH, MAX_STILL_IMAGE_HEIGHT);
+    }
+
+    private static Size getStillImageSize(@NonNull CameraCharacteristics characteristics, @NonNull Size previewSize, int maxWidth, int maxHeight) {
         StreamConfigurationMap map = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
         Size[] outputSizes = map.getOutputSizes(ImageFormat.JPEG);
         if (outputSizes.length == 0) {
@@ -111,7 +154,7 @@ class CameraStrategy {
         }
         List<Size> filteredOutputSizes = Observable.fromArray(outputSizes)
             .filter(size -> size.getWidth() == size.getHeight() * previewSize.getWidth() / previewSize.getHeight())
-            .filter(size -> size.getWidth() <= MAX_STILL_IMAGE_WIDTH && size.getHeight() <= MAX_STILL_IMAGE_HEIGHT)
+            .filter(size -> size.getWidth() <= maxWidth && size.getHeight() <= maxHeight)
             .toList()
             .blockingGet();
 
@@ -122,6 +165,85 @@ class CameraStrategy {
         return Collections.max(filteredOutputSizes, new CompareSizesByArea());
     }
 
+    /**
+     * @return the biggest even {@link ImageFormat#YUV_420_888} size of the still's aspect ratio within the bounds, the
+     * smallest even size if none fits
+     */
+    @NonNull
+    private static Size getYuvImageSize(@NonNull CameraCharacteristics characteristics, @NonNull Size stillSize, int maxWidth, int maxHeight) {
+        StreamConfigurationMap map = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+        Size[] outputSizes = map.getOutputSizes(ImageFormat.YUV_420_888);
+        if (outputSizes == null || outputSizes.length == 0) {
+            throw new IllegalStateException("No supported sizes for YUV_420_888");
+        }
+        List<Size> evenSizes = Observable.fromArray(outputSizes)
+            .filter(size -> size.getWidth() % 2 == 0 && size.getHeight() % 2 == 0)
+            .toList()
+            .blockingGet();
+        List<Size> filteredOutputSizes = Observable.fromIterable(evenSizes)
+            .filter(size -> size.getWidth() == size.getHeight() * stillSize.getWidth() / stillSize.getHeight())
+            .filter(size -> size.getWidth() <= maxWidth && size.getHeight() <= maxHeight)
+            .toList()
+            .blockingGet();
+
+        if (filteredOutputSizes.size() == 0) {
+            return evenSizes.isEmpty() ? outputSizes[0] : Collections.min(evenSizes, new CompareSizesByArea());
+        }
+
+        return Collections.max(filteredOutputSizes, new CompareSizesByArea());
+    }
+
+    /**
+     * @return the biggest {@link ImageFormat#RAW_SENSOR} size, null if the camera can't output RAW
+     */
+    @Nullable
+    static Size getRawImageSize(@NonNull CameraCharacteristics characteristics) {
+        int[] capabilities = characteristics.get(CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES);
+        boolean rawSupported = false;
+        if (capabilities != null) {
+            for (int capability : capabilities) {
+                if (capability == CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES_RAW) {
+                    rawSupported = true;
+                }
+            }
+        }
+        StreamConfigurationMap map = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+        if (!rawSupported || map == null) {
+            return null;
+        }
+        Size[] outputSizes = map.getOutputSizes(ImageFormat.RAW_SENSOR);
+        if (outputSizes == null || outputSizes.length == 0) {
+            return null;
+        }
+        return Collections.max(Arrays.asList(outputSizes), new CompareSizesByArea());
+    }
+
+    /**
+     * @return centered crop region of the active array for the zoom, clamped between 1 and the max digital zoom
+     */
+    @NonNull
+    static Rect getCropRegion(@NonNull CameraCharacteristics characteristics, float zoom) {
+        Rect activeArray = characteristics.get(CameraCharacteristics.SENSOR_INFO_ACTIVE_ARRAY_SIZE);
+        Float maxZoom = characteristics.get(CameraCharacteristics.SCALER_AVAILABLE_MAX_DIGITAL_ZOOM);
+        float clampedZoom = Math.max(1f, Math.min(zoom, maxZoom == null ? 1f : maxZoom));
+        int width = (int) (activeArray.width() / clampedZoom);
+        int height = (int) (activeArray.height() / clampedZoom);
+        int left = (activeArray.width() - width) / 2;
+        int top = (activeArray.height() - height) / 2;
+        return new Rect(left, top, left + width, top + height);
+    }
+
+    /**
+     * @return exposure compensation clamped to the supported range, in steps
+     */
+    static int clampExposureCompensation(@NonNull CameraCharacteristics characteristics, int exposureCompensation) {
+        Range<Integer> range = characteristics.get(CameraCharacteristics.CONTROL_AE_COMPENSATION_RANGE);
+        if (range == null) {
+            return 0;
+        }
+        return range.clamp(exposureCompensation);
+    }
+
     /**
      * Compares two {@code Size}s based on their areas.
      */
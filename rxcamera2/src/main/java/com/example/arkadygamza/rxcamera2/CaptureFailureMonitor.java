@@ -0,0 +1,136 @@
+package com.example.arkadygamza.rxcamera2;
+
+import android.support.annotation.NonNull;
+
+import java.util.Locale;
+
+/**
+ * Tolerates single failed frames, the camera is reopened only when frames keep failing.
+ * <p>
+ * Outcomes of the last {@code windowFrames} frames are kept in a ring. A failure escalates once the window is full and
+ * the share of failures in it reaches the escalation rate, then the window starts over. Flushed frames, failed because
+ * captures were aborted on purpose, are counted but never escalate.
+ * Thread safe, outcomes are recorded on the camera callback thread and stats are read from anywhere.
+ */
+public class CaptureFailureMonitor {
+
+    public static final int DEFAULT_WINDOW_FRAMES = 30;
+    public static final float DEFAULT_ESCALATION_RATE = 0.5f;
+
+    /**
+     * Counters since the monitor was created, the window rate is of the current session
+     */
+    public static class Stats {
+        public final long completedFrames;
+        public final long failedFrames;
+        public final long flushedFrames;
+        /**
+         * Share of failed frames among the last frames of the window, 0 before any frame
+         */
+        public final float windowFailureRate;
+        public final int escalations;
+
+        Stats(long completedFrames, long failedFrames, long flushedFrames, float windowFailureRate, int escalations) {
+            this.completedFrames = completedFrames;
+            this.failedFrames = failedFrames;
+            this.flushedFrames = flushedFrames;
+            this.windowFailureRate = windowFailureRate;
+            this.escalations = escalations;
+        }
+
+        /**
+         * @return share of failed frames of all frames, flushed ones excluded
+         */
+        public float getFailureRate() {
+            long frames = completedFrames + failedFrames;
+            return frames == 0 ? 0 : (float) failedFrames / frames;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%d completed, %d failed (%.2f%%), %d flushed, window %.0f%%, %d escalations",
+                completedFrames, failedFrames, getFailureRate() * 100, flushedFrames, windowFailureRate * 100, escalations);
+        }
+    }
+
+    @NonNull
+    private final boolean[] mWindow;
+    private final float mEscalationRate;
+    private int mWindowPosition;
+    private int mWindowSize;
+    private int mWindowFailures;
+    private long mCompletedFrames;
+    private long mFailedFrames;
+    private long mFlushedFrames;
+    private int mEscalations;
+
+    public CaptureFailureMonitor() {
+        this(DEFAULT_WINDOW_FRAMES, DEFAULT_ESCALATION_RATE);
+    }
+
+    /**
+     * @param escalationRate share of failed frames in a full window which escalates, above 0 and up to 1
+     */
+    public CaptureFailureMonitor(int windowFrames, float escalationRate) {
+        if (windowFrames < 1 || escalationRate <= 0 || escalationRate > 1) {
+            throw new IllegalArgumentException("Invalid window of " + windowFrames + " frames at rate " + escalationRate);
+        }
+        mWindow = new boolean[windowFrames];
+        mEscalationRate = escalationRate;
+    }
+
+    synchronized void onCompleted() {
+        mCompletedFrames++;
+        record(false);
+    }
+
+    /**
+     * @param flushed the frame was dropped by {@code abortCaptures()} or a session close
+     * @return true if the failure rate of the window reached the escalation rate, the caller should reopen the camera
+     */
+    synchronized boolean onFailed(boolean flushed) {
+        if (flushed) {
+            mFlushedFrames++;
+            return false;
+        }
+        mFailedFrames++;
+        record(true);
+        if (mWindowSize == mWindow.length && mWindowFailures >= mEscalationRate * mWindow.length) {
+            mEscalations++;
+            resetWindow();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Starts a new window for a new session, the totals are kept
+     */
+    synchronized void resetWindow() {
+        mWindowPosition = 0;
+        mWindowSize = 0;
+        mWindowFailures = 0;
+    }
+
+    @NonNull
+    public synchronized Stats getStats() {
+        return new Stats(mCompletedFrames, mFailedFrames, mFlushedFrames,
+            mWindowSize == 0 ? 0 : (float) mWindowFailures / mWindowSize, mEscalations);
+    }
+
+    private void record(boolean failed) {
+        if (mWindowSize == mWindow.length) {
+            if (mWindow[mWindowPosition]) {
+                mWindowFailures--;
+            }
+        }
+        else {
+            mWindowSize++;
+        }
+        mWindow[mWindowPosition] = failed;
+        if (failed) {
+            mWindowFailures++;
+        }
+        mWindowPosition = (mWindowPosition + 1) % mWindow.length;
+    }
+}
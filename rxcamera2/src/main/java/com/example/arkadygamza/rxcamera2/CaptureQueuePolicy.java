@@ -0,0 +1,70 @@
+package com.example.arkadygamza.rxcamera2;
+
+import android.support.annotation.NonNull;
+
+/**
+ * What happens to shutter presses while a photo is being taken or the camera is not ready yet.
+ * <p>
+ * A shot is busy only until its capture result arrives, encoding and saving run in the background,
+ * so the 3A of a queued shot starts while the previous photo is still being written.
+ */
+public class CaptureQueuePolicy {
+
+    public enum RejectReason {
+        /**
+         * A photo is being taken and the policy doesn't queue presses
+         */
+        BUSY,
+        /**
+         * The queue of pending shots is full
+         */
+        QUEUE_FULL,
+        /**
+         * The camera is being closed or switched
+         */
+        CLOSING
+    }
+
+    private final int mCapacity;
+    private final boolean mCoalescing;
+
+    private CaptureQueuePolicy(int capacity, boolean coalescing) {
+        mCapacity = capacity;
+        mCoalescing = coalescing;
+    }
+
+    /**
+     * Every press is a shot, up to {@code maxPending} presses wait for their turn, the rest are rejected.
+     */
+    @NonNull
+    public static CaptureQueuePolicy queue(int maxPending) {
+        if (maxPending <= 0) {
+            throw new IllegalArgumentException("Queue must hold at least one shot");
+        }
+        return new CaptureQueuePolicy(maxPending, false);
+    }
+
+    /**
+     * Presses while busy are merged into a single next shot, nothing is rejected.
+     */
+    @NonNull
+    public static CaptureQueuePolicy coalesce() {
+        return new CaptureQueuePolicy(1, true);
+    }
+
+    /**
+     * Presses are honored only when the preview is running, the rest are rejected with {@link RejectReason#BUSY}.
+     */
+    @NonNull
+    public static CaptureQueuePolicy reject() {
+        return new CaptureQueuePolicy(0, false);
+    }
+
+    int getCapacity() {
+        return mCapacity;
+    }
+
+    boolean isCoalescing() {
+        return mCoalescing;
+    }
+}
@@ -0,0 +1,210 @@
+package com.example.arkadygamza.rxcamera2;
+
+import android.annotation.TargetApi;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.CaptureRequest;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Size;
+import android.view.Surface;
+
+import java.util.List;
+
+/**
+ * Request builders of an open camera, created once and reused for every shot.
+ * <p>
+ * {@link CameraDevice#createCaptureRequest(int)} is a call into the camera service and 3A setup needs several
+ * {@link CameraCharacteristics} lookups, so both are done once per camera. Per shot we only reset the fields
+ * which are changed by the previous shot and call {@link CaptureRequest.Builder#build()}.
+ * Not thread safe, used from the camera thread only.
+ */
+@TargetApi(21)
+class CaptureRequestTemplates {
+
+    /**
+     * 3A modes resolved from {@link CameraCharacteristics}
+     */
+    static class Auto3A {
+        /**
+         * null for fixed-focus lenses
+         */
+        @Nullable
+        private final Integer mAfMode;
+        private final int mAeMode;
+        @Nullable
+        private final Integer mAwbMode;
+
+        private Auto3A(@Nullable Integer afMode, int aeMode, @Nullable Integer awbMode) {
+            mAfMode = afMode;
+            mAeMode = aeMode;
+            mAwbMode = awbMode;
+        }
+
+        @NonNull
+        static Auto3A resolve(@NonNull CameraCharacteristics characteristics) {
+            return resolve(
+                characteristics.get(CameraCharacteristics.LENS_INFO_MINIMUM_FOCUS_DISTANCE),
+                characteristics.get(CameraCharacteristics.CONTROL_AF_AVAILABLE_MODES),
+                characteristics.get(CameraCharacteristics.CONTROL_AE_AVAILABLE_MODES),
+                characteristics.get(CameraCharacteristics.CONTROL_AWB_AVAILABLE_MODES)
+            );
+        }
+
+        /**
+         * Same as {@link #resolve(CameraCharacteristics)} on the values already read
+         */
+        @NonNull
+        static Auto3A resolve(@Nullable Float minFocusDist, @Nullable int[] afModes, @Nullable int[] aeModes, @Nullable int[] awbModes) {
+            // If MINIMUM_FOCUS_DISTANCE is 0, lens is fixed-focus and we need to skip the AF run.
+            boolean noAFRun = (minFocusDist == null || minFocusDist == 0);
+
+            Integer afMode = null;
+            if (!noAFRun) {
+                // If there is a "continuous picture" mode available, use it, otherwise default to AUTO.
+                if (contains(afModes, CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE)) {
+                    afMode = CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE;
+                }
+                else {
+                    afMode = CaptureRequest.CONTROL_AF_MODE_AUTO;
+                }
+            }
+
+            // If there is an auto-magical flash control mode available, use it, otherwise default to
+            // the "on" mode, which is guaranteed to always be available.
+            int aeMode = contains(aeModes, CaptureRequest.CONTROL_AE_MODE_ON_AUTO_FLASH)
+                ? CaptureRequest.CONTROL_AE_MODE_ON_AUTO_FLASH
+                : CaptureRequest.CONTROL_AE_MODE_ON;
+
+            // If there is an auto-magical white balance control mode available, use it.
+            Integer awbMode = contains(awbModes, CaptureRequest.CONTROL_AWB_MODE_AUTO) ? CaptureRequest.CONTROL_AWB_MODE_AUTO : null;
+
+            return new Auto3A(afMode, aeMode, awbMode);
+        }
+
+        /**
+         * @return null for fixed-focus lenses
+         */
+        @Nullable
+        Integer getAfMode() {
+            return mAfMode;
+        }
+
+        int getAeMode() {
+            return mAeMode;
+        }
+
+        @Nullable
+        Integer getAwbMode() {
+            return mAwbMode;
+        }
+
+        void applyTo(@NonNull CaptureRequest.Builder builder) {
+            // Enable auto-magical 3A run by camera device
+            builder.set(CaptureRequest.CONTROL_MODE, CaptureRequest.CONTROL_MODE_AUTO);
+            if (mAfMode != null) {
+                builder.set(CaptureRequest.CONTROL_AF_MODE, mAfMode);
+            }
+            builder.set(CaptureRequest.CONTROL_AE_MODE, mAeMode);
+            if (mAwbMode != null) {
+                builder.set(CaptureRequest.CONTROL_AWB_MODE, mAwbMode);
+            }
+        }
+
+        private static boolean contains(int[] modes, int mode) {
+            if (modes == null) {
+                return false;
+            }
+            for (int i : modes) {
+                if (i == mode) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    @NonNull
+    private final CameraDevice mCameraDevice;
+    @NonNull
+    private final Auto3A mAuto3A;
+    @NonNull
+    private final Surface mPreviewSurface;
+    @NonNull
+    private final List<Surface> mStillSurfaces;
+    @Nullable
+    private CaptureRequest.Builder mPreviewBuilder;
+    @Nullable
+    private CaptureRequest.Builder mStillBuilder;
+    /**
+     * Template defaults, restored for every shot so a policy turned off doesn't leave its values behind
+     */
+    @Nullable
+    private Byte mStillJpegQuality;
+    @Nullable
+    private Size mStillThumbnailSize;
+    @Nullable
+    private CaptureRequest.Builder mMultiFrameBuilder;
+
+    CaptureRequestTemplates(@NonNull CameraDevice cameraDevice, @NonNull Auto3A auto3A,
+                            @NonNull Surface previewSurface, @NonNull List<Surface> stillSurfaces) {
+        mCameraDevice = cameraDevice;
+        mAuto3A = auto3A;
+        mPreviewSurface = previewSurface;
+        mStillSurfaces = stillSurfaces;
+    }
+
+    /**
+     * @return preview builder with 3A triggers reset to idle, callers may set the triggers again
+     */
+    @NonNull
+    CaptureRequest.Builder previewBuilder() throws CameraAccessException {
+        if (mPreviewBuilder == null) {
+            mPreviewBuilder = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+            mPreviewBuilder.addTarget(mPreviewSurface);
+            mAuto3A.applyTo(mPreviewBuilder);
+        }
+        mPreviewBuilder.set(CaptureRequest.CONTROL_AF_TRIGGER, CameraMetadata.CONTROL_AF_TRIGGER_IDLE);
+        mPreviewBuilder.set(CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER, CameraMetadata.CONTROL_AE_PRECAPTURE_TRIGGER_IDLE);
+        return mPreviewBuilder;
+    }
+
+    /**
+     * @return still builder with the JPEG settings reset to the template defaults
+     */
+    @NonNull
+    CaptureRequest.Builder stillPictureBuilder(int jpegOrientation) throws CameraAccessException {
+        if (mStillBuilder == null) {
+            mStillBuilder = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
+            mStillBuilder.set(CaptureRequest.CONTROL_CAPTURE_INTENT, CaptureRequest.CONTROL_CAPTURE_INTENT_STILL_CAPTURE);
+            mStillBuilder.set(CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER, CameraMetadata.CONTROL_AE_PRECAPTURE_TRIGGER_IDLE);
+            for (Surface stillSurface : mStillSurfaces) {
+                mStillBuilder.addTarget(stillSurface);
+            }
+            mAuto3A.applyTo(mStillBuilder);
+            mStillJpegQuality = mStillBuilder.get(CaptureRequest.JPEG_QUALITY);
+            mStillThumbnailSize = mStillBuilder.get(CaptureRequest.JPEG_THUMBNAIL_SIZE);
+        }
+        mStillBuilder.set(CaptureRequest.JPEG_QUALITY, mStillJpegQuality);
+        mStillBuilder.set(CaptureRequest.JPEG_THUMBNAIL_SIZE, mStillThumbnailSize);
+        mStillBuilder.set(CaptureRequest.JPEG_ORIENTATION, jpegOrientation);
+        return mStillBuilder;
+    }
+
+    /**
+     * @param surface YUV output of the burst, the JPEG and RAW outputs are not targeted
+     */
+    @NonNull
+    CaptureRequest.Builder multiFrameBuilder(@NonNull Surface surface) throws CameraAccessException {
+        if (mMultiFrameBuilder == null) {
+            mMultiFrameBuilder = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
+            mMultiFrameBuilder.set(CaptureRequest.CONTROL_CAPTURE_INTENT, CaptureRequest.CONTROL_CAPTURE_INTENT_STILL_CAPTURE);
+            mMultiFrameBuilder.set(CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER, CameraMetadata.CONTROL_AE_PRECAPTURE_TRIGGER_IDLE);
+            mMultiFrameBuilder.addTarget(surface);
+            mAuto3A.applyTo(mMultiFrameBuilder);
+        }
+        return mMultiFrameBuilder;
+    }
+}
@@ -0,0 +1,139 @@
+package com.example.arkadygamza.rxcamera2;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact binary log of capture results, 29 bytes per frame: what the 3A did and when, without the rest of the metadata.
+ * <p>
+ * Format: magic {@code "RXCR"}, version byte, then records of frame number, sensor timestamp and arrival time
+ * (longs, big endian) followed by AF state, AE state, AWB state, AF trigger and AE precapture trigger (a byte each, -1 if absent).
+ */
+public class CaptureResultLog {
+
+    private static final int MAGIC = 0x52584352; // "RXCR"
+    private static final int VERSION = 1;
+    private static final byte ABSENT = -1;
+
+    private CaptureResultLog() {
+    }
+
+    public static class Record {
+        public final long frameNumber;
+        public final long sensorTimestampNanos;
+        /**
+         * When the result reached the app, elapsed realtime, replay keeps the intervals between arrivals
+         */
+        public final long arrivalNanos;
+        @Nullable
+        public final Integer afState;
+        @Nullable
+        public final Integer aeState;
+        @Nullable
+        public final Integer awbState;
+        @Nullable
+        public final Integer afTrigger;
+        @Nullable
+        public final Integer aePrecaptureTrigger;
+
+        public Record(long frameNumber, long sensorTimestampNanos, long arrivalNanos,
+                      @Nullable Integer afState, @Nullable Integer aeState, @Nullable Integer awbState,
+                      @Nullable Integer afTrigger, @Nullable Integer aePrecaptureTrigger) {
+            this.frameNumber = frameNumber;
+            this.sensorTimestampNanos = sensorTimestampNanos;
+            this.arrivalNanos = arrivalNanos;
+            this.afState = afState;
+            this.aeState = aeState;
+            this.awbState = awbState;
+            this.afTrigger = afTrigger;
+            this.aePrecaptureTrigger = aePrecaptureTrigger;
+        }
+
+        @Override
+        public String toString() {
+            return "#" + frameNumber + " af " + afState + " ae " + aeState + " awb " + awbState
+                + " triggers " + afTrigger + "/" + aePrecaptureTrigger;
+        }
+    }
+
+    /**
+     * Appends records to a stream, not thread safe.
+     */
+    public static class Writer implements Closeable {
+        @NonNull
+        private final DataOutputStream mOutput;
+
+        public Writer(@NonNull OutputStream output) throws IOException {
+            mOutput = new DataOutputStream(new BufferedOutputStream(output));
+            mOutput.writeInt(MAGIC);
+            mOutput.writeByte(VERSION);
+        }
+
+        public void append(@NonNull Record record) throws IOException {
+            mOutput.writeLong(record.frameNumber);
+            mOutput.writeLong(record.sensorTimestampNanos);
+            mOutput.writeLong(record.arrivalNanos);
+            writeState(record.afState);
+            writeState(record.aeState);
+            writeState(record.awbState);
+            writeState(record.afTrigger);
+            writeState(record.aePrecaptureTrigger);
+        }
+
+        public void flush() throws IOException {
+            mOutput.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mOutput.close();
+        }
+
+        private void writeState(@Nullable Integer state) throws IOException {
+            mOutput.writeByte(state == null ? ABSENT : state);
+        }
+    }
+
+    /**
+     * Reads the whole log, a truncated last record (the app died while writing) is ignored.
+     */
+    @NonNull
+    public static List<Record> read(@NonNull InputStream input) throws IOException {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(input));
+        if (data.readInt() != MAGIC) {
+            throw new IOException("Not a capture result log");
+        }
+        int version = data.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported capture result log version " + version);
+        }
+        List<Record> records = new ArrayList<>();
+        while (true) {
+            try {
+                records.add(new Record(data.readLong(), data.readLong(), data.readLong(),
+                    readState(data), readState(data), readState(data), readState(data), readState(data)));
+            }
+            catch (EOFException e) {
+                return records;
+            }
+        }
+    }
+
+    @Nullable
+    private static Integer readState(@NonNull DataInputStream data) throws IOException {
+        byte state = data.readByte();
+        return state == ABSENT ? null : (int) state;
+    }
+}
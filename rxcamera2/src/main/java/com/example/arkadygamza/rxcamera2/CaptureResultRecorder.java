@@ -0,0 +1,61 @@
+package com.example.arkadygamza.rxcamera2;
+
+import android.annotation.TargetApi;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.CaptureResult;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.example.arkadygamza.rxcamera2.CameraRxWrapper.CaptureSessionData;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Records the capture results the 3A waits look at into a {@link CaptureResultLog}, to replay them with {@link CaptureResultReplayer}.
+ * Stops recording on the first write error. Thread safe.
+ */
+@TargetApi(21)
+public class CaptureResultRecorder implements Closeable {
+
+    private static final String TAG = CaptureResultRecorder.class.getSimpleName();
+
+    @NonNull
+    private final CaptureResultLog.Writer mWriter;
+    private boolean mFailed;
+
+    public CaptureResultRecorder(@NonNull OutputStream output) throws IOException {
+        mWriter = new CaptureResultLog.Writer(output);
+    }
+
+    synchronized void record(@NonNull CaptureSessionData captureSessionData) {
+        if (mFailed) {
+            return;
+        }
+        CaptureResult result = captureSessionData.result;
+        Long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+        try {
+            mWriter.append(new CaptureResultLog.Record(
+                result.getFrameNumber(),
+                timestamp == null ? 0 : timestamp,
+                SystemClock.elapsedRealtimeNanos(),
+                result.get(CaptureResult.CONTROL_AF_STATE),
+                result.get(CaptureResult.CONTROL_AE_STATE),
+                result.get(CaptureResult.CONTROL_AWB_STATE),
+                captureSessionData.request.get(CaptureRequest.CONTROL_AF_TRIGGER),
+                captureSessionData.request.get(CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER)
+            ));
+        }
+        catch (IOException e) {
+            Log.w(TAG, "\tcapture results are not recorded anymore", e);
+            mFailed = true;
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        mWriter.close();
+    }
+}
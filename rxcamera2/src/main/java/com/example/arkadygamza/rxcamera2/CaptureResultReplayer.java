@@ -0,0 +1,111 @@
+package com.example.arkadygamza.rxcamera2;
+
+import android.support.annotation.NonNull;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import io.reactivex.Observable;
+import io.reactivex.Scheduler;
+import io.reactivex.Single;
+
+/**
+ * Replays a {@link CaptureResultLog} through the same {@link Convergence} rules the shutter flow uses, without a device.
+ * <p>
+ * Results are emitted with the recorded intervals divided by the speed, on the given scheduler: a real one replays in real
+ * or accelerated time, a {@link io.reactivex.schedulers.TestScheduler} replays instantly in virtual time.
+ * Latencies are reported in recorded time regardless of the speed.
+ */
+public class CaptureResultReplayer {
+
+    /**
+     * Same as the shutter flow, see {@link ConvergeWaiter}
+     */
+    static final long CONVERGE_TIMEOUT_MILLIS = 3000;
+
+    public static class ShutterReplay {
+        public final long autoFocusNanos;
+        public final long autoExposureNanos;
+        /**
+         * AF or AE didn't converge, the shot would have been taken after the timeout or at the end of the log
+         */
+        public final boolean timedOut;
+
+        ShutterReplay(long autoFocusNanos, long autoExposureNanos, boolean timedOut) {
+            this.autoFocusNanos = autoFocusNanos;
+            this.autoExposureNanos = autoExposureNanos;
+            this.timedOut = timedOut;
+        }
+
+        public long getTotalNanos() {
+            return autoFocusNanos + autoExposureNanos;
+        }
+    }
+
+    @NonNull
+    private final List<CaptureResultLog.Record> mRecords;
+    private final double mSpeed;
+    @NonNull
+    private final Scheduler mScheduler;
+
+    /**
+     * @param speed 1 for real time, 10 to replay ten times faster
+     */
+    public CaptureResultReplayer(@NonNull List<CaptureResultLog.Record> records, double speed, @NonNull Scheduler scheduler) {
+        if (speed <= 0) {
+            throw new IllegalArgumentException("Speed must be positive");
+        }
+        mRecords = records;
+        mSpeed = speed;
+        mScheduler = scheduler;
+    }
+
+    /**
+     * @return records from the given index, the first one right away, the rest at their recorded intervals
+     */
+    @NonNull
+    public Observable<CaptureResultLog.Record> replay(int fromIndex) {
+        return Observable.range(fromIndex, mRecords.size() - fromIndex)
+            .concatMap(index -> {
+                CaptureResultLog.Record record = mRecords.get(index);
+                if (index == fromIndex) {
+                    return Observable.just(record);
+                }
+                long intervalNanos = (long) ((record.arrivalNanos - mRecords.get(index - 1).arrivalNanos) / mSpeed);
+                return Observable.just(record).delay(Math.max(0, intervalNanos), TimeUnit.NANOSECONDS, mScheduler);
+            });
+    }
+
+    /**
+     * Runs the shutter flow on the records from the given index: AF converge, then AE converge on the following results.
+     * AE starts at the last result AF looked at, the converged one or the last one before the timeout.
+     */
+    @NonNull
+    public Single<ShutterReplay> replayShutter(int shutterIndex) {
+        CaptureResultLog.Record shutter = mRecords.get(shutterIndex);
+        long timeoutMillis = (long) Math.ceil(CONVERGE_TIMEOUT_MILLIS / mSpeed);
+        return Single.defer(() -> {
+            long startNanos = mScheduler.now(TimeUnit.NANOSECONDS);
+            int[] afResultCount = {0};
+            Observable<CaptureResultLog.Record> afResults = replay(shutterIndex).doOnNext(record -> afResultCount[0]++);
+            return Convergence.AUTO_FOCUS.await(afResults, record -> record.afState, shutter, timeoutMillis, mScheduler)
+                .flatMap(afRecord -> {
+                    long afNanos = toRecordedNanos(mScheduler.now(TimeUnit.NANOSECONDS) - startNanos);
+                    boolean afTimedOut = afRecord == shutter && !Convergence.AUTO_FOCUS.isReady(shutter.afState);
+                    int aeStartIndex = shutterIndex + Math.max(0, afResultCount[0] - 1);
+                    CaptureResultLog.Record aeStart = mRecords.get(aeStartIndex);
+                    long aeStartNanos = mScheduler.now(TimeUnit.NANOSECONDS);
+                    return Convergence.AUTO_EXPOSURE.await(replay(aeStartIndex), record -> record.aeState, aeStart, timeoutMillis, mScheduler)
+                        .map(aeRecord -> new ShutterReplay(
+                            afNanos,
+                            toRecordedNanos(mScheduler.now(TimeUnit.NANOSECONDS) - aeStartNanos),
+                            afTimedOut || aeRecord == aeStart && !Convergence.AUTO_EXPOSURE.isReady(aeStart.aeState)
+                        ));
+                });
+        });
+    }
+
+    private long toRecordedNanos(long replayNanos) {
+        return (long) (replayNanos * mSpeed);
+    }
+}
@@ -0,0 +1,309 @@
+package com.example.arkadygamza.rxcamera2;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Directory of captured photos, every shot gets its own file.
+ * <p>
+ * A shot is written into a temp file first and renamed into place only after the data has been synced,
+ * so a photo file is either complete or absent. Every shot is recorded in an append-only journal
+ * ({@code BEGIN name} / {@code COMMIT name} / {@code ABORT name}), on the next start unfinished shots are
+ * either completed (if rename happened) or their temp files are removed.
+ * <p>
+ * Shots don't share any mutable state except the name counter, so any number of them can be written concurrently.
+ */
+public class CaptureStore {
+
+    private static final String TAG = CaptureStore.class.getSimpleName();
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String JOURNAL_NAME = "captures.journal";
+    private static final String PHOTO_PREFIX = "IMG_";
+    private static final String PHOTO_SUFFIX = ".jpg";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String BEGIN = "BEGIN";
+    private static final String COMMIT = "COMMIT";
+    private static final String ABORT = "ABORT";
+
+    @NonNull
+    private final File mDirectory;
+    @NonNull
+    private final File mJournalFile;
+    private final AtomicLong mSequence = new AtomicLong();
+    private volatile FileChannel mJournal;
+
+    public CaptureStore(@NonNull File directory) {
+        mDirectory = directory;
+        mJournalFile = new File(directory, JOURNAL_NAME);
+    }
+
+    @NonNull
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    /**
+     * Starts a new JPEG shot with a unique file name. Performs crash recovery on the first call, so call it off the main thread.
+     */
+    @NonNull
+    public Capture begin() throws IOException {
+        return begin(PHOTO_SUFFIX);
+    }
+
+    /**
+     * Same as {@link #begin()} for other file types
+     *
+     * @param suffix file extension including the dot
+     */
+    @NonNull
+    public Capture begin(@NonNull String suffix) throws IOException {
+        FileChannel journal = openJournal();
+        File tempFile;
+        String name;
+        do {
+            name = String.format(Locale.US, "%s%d_%04d%s", PHOTO_PREFIX, System.currentTimeMillis(), mSequence.incrementAndGet(), suffix);
+            tempFile = new File(mDirectory, name + TEMP_SUFFIX);
+        } while (new File(mDirectory, name).exists() || !tempFile.createNewFile());
+        appendRecord(journal, BEGIN, name);
+        return new Capture(name, tempFile, new File(mDirectory, name));
+    }
+
+    /**
+     * Lists the directory only, recovery is left to the writing store, so it's safe while shots are being written.
+     *
+     * @return all committed JPEG photos, oldest first
+     */
+    @NonNull
+    public List<File> listCaptures() {
+        return listCaptures(mDirectory);
+    }
+
+    /**
+     * Same as {@link #listCaptures()} for readers which don't write, without a store of their own on the directory
+     */
+    @NonNull
+    public static List<File> listCaptures(@NonNull File directory) {
+        File[] files = directory.listFiles((dir, fileName) -> fileName.startsWith(PHOTO_PREFIX) && fileName.endsWith(PHOTO_SUFFIX));
+        if (files == null) {
+            return Collections.emptyList();
+        }
+        Arrays.sort(files, (lhs, rhs) -> lhs.getName().compareTo(rhs.getName()));
+        return Arrays.asList(files);
+    }
+
+    public synchronized void close() throws IOException {
+        if (mJournal != null) {
+            mJournal.close();
+            mJournal = null;
+        }
+    }
+
+    @NonNull
+    private FileChannel openJournal() throws IOException {
+        FileChannel journal = mJournal;
+        if (journal != null) {
+            return journal;
+        }
+        synchronized (this) {
+            if (mJournal == null) {
+                if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+                    throw new IOException("Can't create " + mDirectory);
+                }
+                recover();
+                mJournal = new FileOutputStream(mJournalFile, true).getChannel();
+            }
+            return mJournal;
+        }
+    }
+
+    /**
+     * Replays the journal left by the previous run, resolves unfinished shots and truncates the journal.
+     */
+    private void recover() throws IOException {
+        Map<String, String> lastRecords = new HashMap<>();
+        if (mJournalFile.exists()) {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(mJournalFile), UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    int separator = line.indexOf(' ');
+                    if (separator <= 0) {
+                        continue; // torn last record
+                    }
+                    lastRecords.put(line.substring(separator + 1), line.substring(0, separator));
+                }
+            }
+        }
+
+        int recovered = 0;
+        int discarded = 0;
+        for (Map.Entry<String, String> entry : lastRecords.entrySet()) {
+            if (!BEGIN.equals(entry.getValue())) {
+                continue;
+            }
+            File photo = new File(mDirectory, entry.getKey());
+            File temp = new File(mDirectory, entry.getKey() + TEMP_SUFFIX);
+            if (photo.exists()) {
+                recovered++;
+            }
+            else {
+                discarded++;
+            }
+            deleteIfExists(temp);
+        }
+
+        // temp files which didn't even make it to the journal
+        File[] strayTempFiles = mDirectory.listFiles((dir, fileName) -> fileName.startsWith(PHOTO_PREFIX) && fileName.endsWith(TEMP_SUFFIX));
+        if (strayTempFiles != null) {
+            for (File temp : strayTempFiles) {
+                deleteIfExists(temp);
+                discarded++;
+            }
+        }
+
+        if (mJournalFile.exists() && !mJournalFile.delete()) {
+            throw new IOException("Can't reset " + mJournalFile);
+        }
+        Log.d(TAG, "\trecover - recovered: " + recovered + ", discarded: " + discarded);
+    }
+
+    private static void appendRecord(@NonNull FileChannel journal, @NonNull String type, @NonNull String name) throws IOException {
+        // single write per record, the file is opened in append mode so records never interleave
+        journal.write(ByteBuffer.wrap((type + ' ' + name + '\n').getBytes(UTF_8)));
+    }
+
+    private static void deleteIfExists(@NonNull File file) {
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, "\tcan't delete " + file);
+        }
+    }
+
+    /**
+     * Single shot in progress. Not thread safe, expected to be written by one thread.
+     */
+    public class Capture {
+        @NonNull
+        private final String mName;
+        @NonNull
+        private final File mTempFile;
+        @NonNull
+        private final File mFile;
+        private FileChannel mOutput;
+        private boolean mFinished;
+
+        private Capture(@NonNull String name, @NonNull File tempFile, @NonNull File file) {
+            mName = name;
+            mTempFile = tempFile;
+            mFile = file;
+        }
+
+        /**
+         * @return the final location of the photo, exists only after {@link #commit()}
+         */
+        @NonNull
+        public File getFile() {
+            return mFile;
+        }
+
+        public void write(@NonNull ByteBuffer data) throws IOException {
+            FileChannel output = getOutput();
+            while (data.hasRemaining()) {
+                output.write(data);
+            }
+        }
+
+        /**
+         * For writers producing a stream, the stream doesn't need to be closed, {@link #commit()} does it.
+         */
+        @NonNull
+        public OutputStream getOutputStream() throws IOException {
+            return Channels.newOutputStream(getOutput());
+        }
+
+        @NonNull
+        private FileChannel getOutput() throws IOException {
+            if (mFinished) {
+                throw new IllegalStateException("Capture " + mName + " is already finished");
+            }
+            if (mOutput == null) {
+                mOutput = new FileOutputStream(mTempFile).getChannel();
+            }
+            return mOutput;
+        }
+
+        /**
+         * Syncs the data and atomically moves it to {@link #getFile()}.
+         */
+        @NonNull
+        public File commit() throws IOException {
+            if (mFinished) {
+                throw new IllegalStateException("Capture " + mName + " is already finished");
+            }
+            mFinished = true;
+            try {
+                if (mOutput != null) {
+                    mOutput.force(false);
+                    mOutput.close();
+                    mOutput = null;
+                }
+                if (!mTempFile.renameTo(mFile)) {
+                    throw new IOException("Can't rename " + mTempFile + " to " + mFile);
+                }
+            }
+            catch (IOException e) {
+                discard();
+                throw e;
+            }
+            appendRecord(openJournal(), COMMIT, mName);
+            return mFile;
+        }
+
+        /**
+         * Drops the shot, no-op if it is already committed.
+         */
+        public void abort() {
+            if (mFinished) {
+                return;
+            }
+            mFinished = true;
+            discard();
+        }
+
+        private void discard() {
+            if (mOutput != null) {
+                try {
+                    mOutput.close();
+                }
+                catch (IOException e) {
+                    Log.w(TAG, "\tcan't close " + mTempFile, e);
+                }
+                mOutput = null;
+            }
+            deleteIfExists(mTempFile);
+            try {
+                appendRecord(openJournal(), ABORT, mName);
+            }
+            catch (IOException e) {
+                Log.w(TAG, "\tcan't journal abort of " + mName, e);
+            }
+        }
+    }
+}
@@ -5,10 +5,8 @@ import android.hardware.camera2.CameraMetadata;
 import android.hardware.camera2.CaptureRequest;
 import android.hardware.camera2.CaptureResult;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 import com.example.arkadygamza.rxcamera2.CameraRxWrapper.CaptureSessionData;
@@ -21,86 +19,94 @@ class ConvergeWaiter {
 
     private static final int TIMEOUT_SECONDS = 3;
 
+    @NonNull
+    private final String mTraceName;
     private final CaptureRequest.Key<Integer> mRequestTriggerKey;
     private final int mRequestTriggerStartValue;
     private final CaptureResult.Key<Integer> mResultStateKey;
-    private final List<Integer> mResultReadyStates;
+    private final Convergence mConvergence;
+    @Nullable
+    private volatile CaptureResultRecorder mRecorder;
 
     private ConvergeWaiter(
+        @NonNull String traceName,
         @NonNull CaptureRequest.Key<Integer> requestTriggerKey,
         int requestTriggerStartValue,
         @NonNull CaptureResult.Key<Integer> resultStateKey,
-        @NonNull List<Integer> resultReadyStates
+        @NonNull Convergence convergence
     ) {
+        mTraceName = traceName;
         mRequestTriggerKey = requestTriggerKey;
         mRequestTriggerStartValue = requestTriggerStartValue;
         mResultStateKey = resultStateKey;
-        mResultReadyStates = resultReadyStates;
+        mConvergence = convergence;
     }
 
-    @NonNull
-    Single<CaptureSessionData> waitForConverge(@NonNull CaptureSessionData captureResultParams, @NonNull CaptureRequest.Builder builder) {
-        CaptureRequest previewRequest = builder.build();
+    /**
+     * @param recorder receives every result looked at while waiting, null to stop recording
+     */
+    void setRecorder(@Nullable CaptureResultRecorder recorder) {
+        mRecorder = recorder;
+    }
 
+    /**
+     * Issues the trigger as a single capture and watches the preview results, the repeating request stays untouched.
+     *
+     * @param previewResults completed results of the session's repeating request
+     */
+    @NonNull
+    Single<CaptureSessionData> waitForConverge(
+        @NonNull CaptureSessionData captureResultParams,
+        @NonNull CaptureRequest.Builder builder,
+        @NonNull Observable<CaptureSessionData> previewResults
+    ) {
+        long span = Tracer.begin(mTraceName);
         builder.set(mRequestTriggerKey, mRequestTriggerStartValue);
         CaptureRequest triggerRequest = builder.build();
 
         Observable<CaptureSessionData> triggerObservable = CameraRxWrapper.fromCapture(captureResultParams.session, triggerRequest);
-        Observable<CaptureSessionData> previewObservable = CameraRxWrapper.fromSetRepeatingRequest(captureResultParams.session, previewRequest);
-        Single<CaptureSessionData> convergeSingle = Observable
-            .merge(previewObservable, triggerObservable)
-            .filter(resultParams -> isStateReady(resultParams.result))
-            .first(captureResultParams);
-
-        Single<CaptureSessionData> timeOutSingle = Single
-            .just(captureResultParams)
-            .delay(TIMEOUT_SECONDS, TimeUnit.SECONDS, AndroidSchedulers.mainThread());
-
-        return Single
-            .merge(convergeSingle, timeOutSingle)
-            .firstElement()
-            .toSingle();
-    }
-
-    private boolean isStateReady(@NonNull CaptureResult result) {
-        Integer aeState = result.get(mResultStateKey);
-        return aeState == null || mResultReadyStates.contains(aeState);
+        long[] triggerFrameNumber = {-1};
+        Observable<CaptureSessionData> resultsObservable = Observable
+            .merge(previewResults, triggerObservable)
+            // frames before the trigger still show the state it is meant to change
+            .filter(resultParams -> {
+                long frameNumber = resultParams.result.getFrameNumber();
+                if (resultParams.request == triggerRequest) {
+                    triggerFrameNumber[0] = frameNumber;
+                }
+                return triggerFrameNumber[0] >= 0 && frameNumber >= triggerFrameNumber[0];
+            })
+            .doOnNext(resultParams -> {
+                CaptureResultRecorder recorder = mRecorder;
+                if (recorder != null) {
+                    recorder.record(resultParams);
+                }
+            });
+
+        return mConvergence
+            .await(resultsObservable, resultParams -> resultParams.result.get(mResultStateKey), captureResultParams,
+                TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS), AndroidSchedulers.mainThread())
+            .doFinally(() -> Tracer.end(mTraceName, span));
     }
 
     static class Factory {
-        private static final List<Integer> afReadyStates = Collections.unmodifiableList(
-            Arrays.asList(
-                CaptureResult.CONTROL_AF_STATE_INACTIVE,
-                CaptureResult.CONTROL_AF_STATE_PASSIVE_FOCUSED,
-                CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED,
-                CaptureResult.CONTROL_AF_STATE_NOT_FOCUSED_LOCKED
-            )
-        );
-
-        private static final List<Integer> aeReadyStates = Collections.unmodifiableList(
-            Arrays.asList(
-                CaptureResult.CONTROL_AE_STATE_INACTIVE,
-                CaptureResult.CONTROL_AE_STATE_FLASH_REQUIRED,
-                CaptureResult.CONTROL_AE_STATE_CONVERGED,
-                CaptureResult.CONTROL_AE_STATE_LOCKED
-            )
-        );
-
         static ConvergeWaiter createAutoFocusConvergeWaiter() {
             return new ConvergeWaiter(
+                "AF converge",
                 CaptureRequest.CONTROL_AF_TRIGGER,
                 CameraMetadata.CONTROL_AF_TRIGGER_START,
                 CaptureResult.CONTROL_AF_STATE,
-                afReadyStates
+                Convergence.AUTO_FOCUS
             );
         }
 
         static ConvergeWaiter createAutoExposureConvergeWaiter() {
             return new ConvergeWaiter(
+                "AE converge",
                 CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER,
                 CameraMetadata.CONTROL_AE_PRECAPTURE_TRIGGER_START,
                 CaptureResult.CONTROL_AE_STATE,
-                aeReadyStates
+                Convergence.AUTO_EXPOSURE
             );
         }
     }
@@ -0,0 +1,80 @@
+package com.example.arkadygamza.rxcamera2;
+
+import android.hardware.camera2.CameraMetadata;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.concurrent.TimeUnit;
+
+import io.reactivex.Observable;
+import io.reactivex.Scheduler;
+import io.reactivex.Single;
+import io.reactivex.functions.Function;
+
+/**
+ * 3A convergence rules, shared by {@link ConvergeWaiter} on the device and {@link CaptureResultReplayer} on the JVM.
+ * Uses only the state constants, which are inlined, so it runs without the Android framework.
+ */
+class Convergence {
+
+    static final Convergence AUTO_FOCUS = new Convergence(
+        CameraMetadata.CONTROL_AF_STATE_INACTIVE,
+        CameraMetadata.CONTROL_AF_STATE_PASSIVE_FOCUSED,
+        CameraMetadata.CONTROL_AF_STATE_FOCUSED_LOCKED,
+        CameraMetadata.CONTROL_AF_STATE_NOT_FOCUSED_LOCKED
+    );
+
+    static final Convergence AUTO_EXPOSURE = new Convergence(
+        CameraMetadata.CONTROL_AE_STATE_INACTIVE,
+        CameraMetadata.CONTROL_AE_STATE_FLASH_REQUIRED,
+        CameraMetadata.CONTROL_AE_STATE_CONVERGED,
+        CameraMetadata.CONTROL_AE_STATE_LOCKED
+    );
+
+    @NonNull
+    private final int[] mReadyStates;
+
+    private Convergence(@NonNull int... readyStates) {
+        mReadyStates = readyStates;
+    }
+
+    /**
+     * @param state null if the camera doesn't report it, such a camera is always ready
+     */
+    boolean isReady(@Nullable Integer state) {
+        if (state == null) {
+            return true;
+        }
+        for (int readyState : mReadyStates) {
+            if (readyState == state) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the first ready result, or the fallback if the results end or nothing is ready within the timeout
+     */
+    @NonNull
+    <T> Single<T> await(
+        @NonNull Observable<T> results,
+        @NonNull Function<T, Integer> stateOf,
+        @NonNull T fallback,
+        long timeoutMillis,
+        @NonNull Scheduler scheduler
+    ) {
+        Single<T> convergeSingle = results
+            .filter(result -> isReady(stateOf.apply(result)))
+            .first(fallback);
+
+        Single<T> timeOutSingle = Single
+            .just(fallback)
+            .delay(timeoutMillis, TimeUnit.MILLISECONDS, scheduler);
+
+        return Single
+            .merge(convergeSingle, timeOutSingle)
+            .firstElement()
+            .toSingle();
+    }
+}
@@ -0,0 +1,158 @@
+package com.example.arkadygamza.rxcamera2;
+
+import android.annotation.TargetApi;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.DngCreator;
+import android.hardware.camera2.TotalCaptureResult;
+import android.media.ExifInterface;
+import android.media.Image;
+import android.media.ImageReader;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.reactivex.Scheduler;
+import io.reactivex.Single;
+import io.reactivex.schedulers.Schedulers;
+
+/**
+ * Writes RAW images as DNG files of a {@link CaptureStore} on a background thread.
+ * <p>
+ * {@link DngCreator} streams pixels straight from the image buffer into the file, nothing image sized is allocated on the heap.
+ * RAW frames are big and slow to write, so the writer accepts an image only while the images waiting for it
+ * stay within {@link #mMaxPendingBytes} and {@link #mMaxPendingImages}, otherwise the image is closed and
+ * {@link WriterBusyException} is returned. Images are written one at a time.
+ */
+@TargetApi(21)
+class DngWriter {
+
+    private static final String TAG = DngWriter.class.getSimpleName();
+    private static final String DNG_SUFFIX = ".dng";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int PENDING = 0;
+    private static final int WRITING = 1;
+    private static final int CANCELLED = 2;
+    private static final Scheduler WRITER_SCHEDULER = Schedulers.from(Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "DngWriter");
+        thread.setPriority(Thread.NORM_PRIORITY - 1);
+        return thread;
+    }));
+
+    @NonNull
+    private final CaptureStore mCaptureStore;
+    @NonNull
+    private final CameraCharacteristics mCharacteristics;
+    private final long mMaxPendingBytes;
+    private final int mMaxPendingImages;
+    private final AtomicLong mPendingBytes = new AtomicLong();
+    private final AtomicInteger mPendingImages = new AtomicInteger();
+
+    DngWriter(@NonNull CaptureStore captureStore, @NonNull CameraCharacteristics characteristics, long maxPendingBytes, int maxPendingImages) {
+        mCaptureStore = captureStore;
+        mCharacteristics = characteristics;
+        mMaxPendingBytes = maxPendingBytes;
+        mMaxPendingImages = maxPendingImages;
+    }
+
+    /**
+     * Takes ownership of the image, it is closed when written or rejected.
+     */
+    @NonNull
+    Single<File> write(@NonNull Image image, @NonNull TotalCaptureResult result) {
+        long imageBytes = (long) image.getWidth() * image.getHeight() * 2; // RAW_SENSOR is 16 bits per pixel
+        int pendingImages = mPendingImages.incrementAndGet();
+        long pendingBytes = mPendingBytes.addAndGet(imageBytes);
+        if (pendingImages > mMaxPendingImages || pendingBytes > mMaxPendingBytes) {
+            mPendingImages.decrementAndGet();
+            mPendingBytes.addAndGet(-imageBytes);
+            ImageTracker.close(image);
+            return Single.error(new WriterBusyException());
+        }
+
+        // the image must not be closed while the writer thread reads it, whoever moves the state from PENDING releases it
+        AtomicInteger state = new AtomicInteger(PENDING);
+        Runnable release = () -> {
+            ImageTracker.close(image);
+            mPendingImages.decrementAndGet();
+            mPendingBytes.addAndGet(-imageBytes);
+        };
+        return Single
+            .fromCallable(() -> {
+                if (!state.compareAndSet(PENDING, WRITING)) {
+                    throw new CancellationException();
+                }
+                long span = Tracer.begin("DNG write");
+                try {
+                    return writeDng(image, result);
+                }
+                finally {
+                    release.run();
+                    Tracer.end("DNG write", span);
+                }
+            })
+            .subscribeOn(WRITER_SCHEDULER)
+            .doOnDispose(() -> {
+                if (state.compareAndSet(PENDING, CANCELLED)) {
+                    release.run();
+                }
+            });
+    }
+
+    @NonNull
+    private File writeDng(@NonNull Image image, @NonNull TotalCaptureResult result) throws IOException {
+        long startNanos = System.nanoTime();
+        CaptureStore.Capture capture = mCaptureStore.begin(DNG_SUFFIX);
+        try (DngCreator dngCreator = new DngCreator(mCharacteristics, result)) {
+            dngCreator.setOrientation(toExifOrientation(result.getRequest().get(CaptureRequest.JPEG_ORIENTATION)));
+            OutputStream output = new BufferedOutputStream(capture.getOutputStream(), BUFFER_SIZE);
+            dngCreator.writeImage(output, image);
+            output.flush();
+            File file = capture.commit();
+            long elapsedMillis = Math.max(1, (System.nanoTime() - startNanos) / 1_000_000);
+            Log.d(TAG, "\twritten " + file.length() + " bytes in " + elapsedMillis + " ms, "
+                + file.length() / elapsedMillis + " KB/s");
+            return file;
+        }
+        catch (IOException | RuntimeException e) {
+            capture.abort();
+            throw e;
+        }
+    }
+
+    /**
+     * Closes the reader after the image being written (if any) is done, closing it earlier would free the image under the writer.
+     */
+    void closeWhenIdle(@NonNull ImageReader imageReader) {
+        WRITER_SCHEDULER.scheduleDirect(() -> {
+            ImageTracker.onReaderClosed(imageReader);
+            imageReader.close();
+        });
+    }
+
+    private static int toExifOrientation(Integer degrees) {
+        if (degrees == null) {
+            return ExifInterface.ORIENTATION_NORMAL;
+        }
+        switch (degrees) {
+            case 90: return ExifInterface.ORIENTATION_ROTATE_90;
+            case 180: return ExifInterface.ORIENTATION_ROTATE_180;
+            case 270: return ExifInterface.ORIENTATION_ROTATE_270;
+        }
+        return ExifInterface.ORIENTATION_NORMAL;
+    }
+
+    /**
+     * The image was dropped because too much RAW data is waiting to be written
+     */
+    static class WriterBusyException extends Exception {
+    }
+}
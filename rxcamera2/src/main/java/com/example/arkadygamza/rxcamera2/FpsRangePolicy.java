@@ -0,0 +1,101 @@
+package com.example.arkadygamza.rxcamera2;
+
+import android.annotation.TargetApi;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CaptureRequest;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Range;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Chooses {@link CaptureRequest#CONTROL_AE_TARGET_FPS_RANGE} of the preview from
+ * {@link CameraCharacteristics#CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES}: the highest range, fixed if possible, while
+ * the user interacts, so shots and AF run at full speed, and a variable low range after {@link #getIdleTimeoutMillis()}
+ * without any interaction, which lets the camera and the compositor do less work during long idle previews.
+ */
+@TargetApi(21)
+public class FpsRangePolicy {
+
+    public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 10_000;
+    public static final int DEFAULT_MIN_IDLE_FPS = 10;
+
+    private final long mIdleTimeoutMillis;
+    private final int mMinIdleFps;
+
+    /**
+     * @param minIdleFps lowest max fps of the idle range, lower ones make the preview stutter
+     */
+    public FpsRangePolicy(long idleTimeoutMillis, int minIdleFps) {
+        mIdleTimeoutMillis = idleTimeoutMillis;
+        mMinIdleFps = minIdleFps;
+    }
+
+    @NonNull
+    public static FpsRangePolicy createDefault() {
+        return new FpsRangePolicy(DEFAULT_IDLE_TIMEOUT_MILLIS, DEFAULT_MIN_IDLE_FPS);
+    }
+
+    public long getIdleTimeoutMillis() {
+        return mIdleTimeoutMillis;
+    }
+
+    /**
+     * @return a range of the highest max fps, fixed if there is one, null if the camera lists none
+     */
+    @Nullable
+    Range<Integer> getActiveRange(@NonNull CameraCharacteristics characteristics) {
+        Range<Integer> best = null;
+        for (Range<Integer> range : getAvailableRanges(characteristics)) {
+            if (best == null || compareActive(range, best) > 0) {
+                best = range;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @return the range of the lowest max fps not below the minimum, widest first, the active range if none fits
+     */
+    @Nullable
+    Range<Integer> getIdleRange(@NonNull CameraCharacteristics characteristics) {
+        Range<Integer> best = null;
+        for (Range<Integer> range : getAvailableRanges(characteristics)) {
+            if (fps(range.getUpper()) < mMinIdleFps) {
+                continue;
+            }
+            if (best == null
+                || fps(range.getUpper()) < fps(best.getUpper())
+                || fps(range.getUpper()) == fps(best.getUpper()) && fps(range.getLower()) < fps(best.getLower())) {
+                best = range;
+            }
+        }
+        return best == null ? getActiveRange(characteristics) : best;
+    }
+
+    /**
+     * The higher max fps wins, then the higher min fps, so a fixed range beats a variable one of the same max
+     */
+    private static int compareActive(@NonNull Range<Integer> lhs, @NonNull Range<Integer> rhs) {
+        if (fps(lhs.getUpper()) != fps(rhs.getUpper())) {
+            return Integer.compare(fps(lhs.getUpper()), fps(rhs.getUpper()));
+        }
+        return Integer.compare(fps(lhs.getLower()), fps(rhs.getLower()));
+    }
+
+    @NonNull
+    private static List<Range<Integer>> getAvailableRanges(@NonNull CameraCharacteristics characteristics) {
+        Range<Integer>[] ranges = characteristics.get(CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES);
+        return ranges == null ? Collections.emptyList() : Arrays.asList(ranges);
+    }
+
+    /**
+     * Some LEGACY cameras list ranges in frames per 1000 seconds
+     */
+    private static int fps(int value) {
+        return value >= 1000 ? value / 1000 : value;
+    }
+}
@@ -0,0 +1,110 @@
+package com.example.arkadygamza.rxcamera2;
+
+import android.annotation.TargetApi;
+import android.graphics.ImageFormat;
+import android.media.Image;
+import android.media.ImageReader;
+import android.support.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+
+import io.reactivex.Observable;
+
+/**
+ * Connects {@code YUV_420_888} {@link ImageReader}s to a {@link TileProcessingEngine}.
+ * {@link CameraController} has no analysis output, apps add their own reader to their session and process it here.
+ */
+@TargetApi(21)
+public class FrameProcessingRxWrapper {
+
+    private FrameProcessingRxWrapper() {
+    }
+
+    /**
+     * Entry point for a caller-owned {@code YUV_420_888} reader, the reader needs at least 2 max images. Takes the reader's
+     * images with {@link ImageSaverRxWrapper.DrainPolicy#LATEST} and processes a frame each time the engine is free,
+     * the rest are closed. Results are emitted on the engine's pool. Dispose before closing the reader.
+     */
+    @NonNull
+    public static <R> Observable<R> process(
+        @NonNull ImageReader imageReader,
+        @NonNull TileProcessingEngine engine,
+        @NonNull FrameProcessor<R> processor
+    ) {
+        return process(ImageSaverRxWrapper.createOnImageAvailableObservable(imageReader, ImageSaverRxWrapper.DrainPolicy.LATEST),
+            engine, processor);
+    }
+
+    /**
+     * Processes a frame each time the engine is free, frames arriving while it is busy are closed right away.
+     * Results are emitted on the engine's pool.
+     *
+     * @param imageObservable see {@link ImageSaverRxWrapper#createOnImageAvailableObservable(ImageReader, ImageSaverRxWrapper.DrainPolicy)},
+     *                        {@link ImageSaverRxWrapper.DrainPolicy#LATEST} fits analysis best
+     */
+    @NonNull
+    static <R> Observable<R> process(
+        @NonNull Observable<Image> imageObservable,
+        @NonNull TileProcessingEngine engine,
+        @NonNull FrameProcessor<R> processor
+    ) {
+        return imageObservable.flatMap(image -> Observable.<R>create(emitter -> {
+            if (!engine.tryAcquire()) {
+                ImageTracker.close(image);
+                emitter.onComplete();
+                return;
+            }
+            // submitted tasks always run, so the image is closed and the engine released even if the emitter is disposed
+            engine.getPool().execute(() -> {
+                try {
+                    R result = engine.process(toYuvFrame(image), processor);
+                    if (!emitter.isDisposed()) {
+                        emitter.onNext(result);
+                        emitter.onComplete();
+                    }
+                }
+                catch (Throwable throwable) {
+                    emitter.tryOnError(throwable);
+                }
+                finally {
+                    ImageTracker.close(image);
+                    engine.release();
+                }
+            });
+        }));
+    }
+
+    @NonNull
+    static YuvFrame toYuvFrame(@NonNull Image image) {
+        if (image.getFormat() != ImageFormat.YUV_420_888) {
+            throw new IllegalArgumentException("Expected YUV_420_888, got " + image.getFormat());
+        }
+        Image.Plane[] planes = image.getPlanes();
+        return new YuvFrame(image.getWidth(), image.getHeight(), image.getTimestamp(),
+            toPlane(planes[0]), toPlane(planes[1]), toPlane(planes[2]));
+    }
+
+    @NonNull
+    private static YuvFrame.Plane toPlane(@NonNull Image.Plane plane) {
+        return new YuvFrame.Plane(plane.getBuffer(), plane.getRowStride(), plane.getPixelStride());
+    }
+
+    /**
+     * Same as {@link #toYuvFrame(Image)} but the planes are copied to the heap, so the image can be closed right away
+     */
+    @NonNull
+    static YuvFrame copyToYuvFrame(@NonNull Image image) {
+        YuvFrame frame = toYuvFrame(image);
+        return new YuvFrame(frame.width, frame.height, frame.timestamp, copy(frame.y), copy(frame.u), copy(frame.v));
+    }
+
+    @NonNull
+    private static YuvFrame.Plane copy(@NonNull YuvFrame.Plane plane) {
+        ByteBuffer source = plane.buffer.duplicate();
+        source.clear();
+        ByteBuffer copy = ByteBuffer.allocate(source.capacity());
+        copy.put(source);
+        copy.clear();
+        return new YuvFrame.Plane(copy, plane.rowStride, plane.pixelStride);
+    }
+}
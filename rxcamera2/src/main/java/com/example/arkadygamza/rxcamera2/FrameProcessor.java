@@ -0,0 +1,27 @@
+package com.example.arkadygamza.rxcamera2;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Per-frame computation split into tiles, see {@link TileProcessingEngine}.
+ * Tiles of one frame are processed concurrently, so {@link #processTile} may only write to the tile's own area of any shared output.
+ *
+ * @param <R> result of a tile, results are combined pairwise into the frame result
+ */
+public interface FrameProcessor<R> {
+
+    /**
+     * Called once per frame before any tile, e.g. to size output buffers.
+     */
+    default void onFrameStart(@NonNull YuvFrame frame) {
+    }
+
+    /**
+     * Processes pixels with {@code left <= x < right, top <= y < bottom}.
+     */
+    @NonNull
+    R processTile(@NonNull YuvFrame frame, int left, int top, int right, int bottom);
+
+    @NonNull
+    R combine(@NonNull R first, @NonNull R second);
+}
@@ -0,0 +1,205 @@
+package com.example.arkadygamza.rxcamera2;
+
+import android.support.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Common {@link FrameProcessor}s working on the luminance plane.
+ */
+public class FrameProcessors {
+
+    private FrameProcessors() {
+    }
+
+    @NonNull
+    public static FrameProcessor<LuminanceStatistics> luminanceStatistics() {
+        return new LuminanceStatisticsProcessor();
+    }
+
+    /**
+     * Sobel gradient magnitude, one byte per pixel. The output buffer is reused, it is valid until the next frame.
+     */
+    @NonNull
+    public static FrameProcessor<ByteBuffer> edgeMap() {
+        return new EdgeMapProcessor();
+    }
+
+    /**
+     * Box-filtered luminance, {@code factor} times smaller in each dimension, one byte per pixel.
+     * The output buffer is reused, it is valid until the next frame.
+     */
+    @NonNull
+    public static FrameProcessor<ByteBuffer> downscale(int factor) {
+        return new DownscaleProcessor(factor);
+    }
+
+    public static class LuminanceStatistics {
+        private final int[] mHistogram = new int[256];
+        private long mSum;
+        private long mCount;
+
+        @NonNull
+        public int[] getHistogram() {
+            return mHistogram;
+        }
+
+        public long getPixelCount() {
+            return mCount;
+        }
+
+        public double getMean() {
+            return mCount == 0 ? 0 : (double) mSum / mCount;
+        }
+
+        /**
+         * @return luminance below which the given fraction of pixels lies
+         */
+        public int getPercentile(float fraction) {
+            long threshold = (long) (mCount * fraction);
+            long accumulated = 0;
+            for (int luma = 0; luma < mHistogram.length; luma++) {
+                accumulated += mHistogram[luma];
+                if (accumulated > threshold) {
+                    return luma;
+                }
+            }
+            return mHistogram.length - 1;
+        }
+    }
+
+    private static class LuminanceStatisticsProcessor implements FrameProcessor<LuminanceStatistics> {
+        @NonNull
+        @Override
+        public LuminanceStatistics processTile(@NonNull YuvFrame frame, int left, int top, int right, int bottom) {
+            LuminanceStatistics statistics = new LuminanceStatistics();
+            int[] histogram = statistics.mHistogram;
+            long sum = 0;
+            for (int row = top; row < bottom; row++) {
+                for (int column = left; column < right; column++) {
+                    int luma = frame.luma(column, row);
+                    histogram[luma]++;
+                    sum += luma;
+                }
+            }
+            statistics.mSum = sum;
+            statistics.mCount = (long) (right - left) * (bottom - top);
+            return statistics;
+        }
+
+        @NonNull
+        @Override
+        public LuminanceStatistics combine(@NonNull LuminanceStatistics first, @NonNull LuminanceStatistics second) {
+            for (int i = 0; i < first.mHistogram.length; i++) {
+                first.mHistogram[i] += second.mHistogram[i];
+            }
+            first.mSum += second.mSum;
+            first.mCount += second.mCount;
+            return first;
+        }
+    }
+
+    /**
+     * Base for processors writing into a per-frame sized output buffer, every tile writes only its own area.
+     */
+    private abstract static class OutputBufferProcessor implements FrameProcessor<ByteBuffer> {
+        private ByteBuffer mOutput;
+
+        abstract int outputSize(@NonNull YuvFrame frame);
+
+        @Override
+        public void onFrameStart(@NonNull YuvFrame frame) {
+            int size = outputSize(frame);
+            if (mOutput == null || mOutput.capacity() != size) {
+                mOutput = ByteBuffer.allocateDirect(size);
+            }
+        }
+
+        @NonNull
+        ByteBuffer output() {
+            return mOutput;
+        }
+
+        @NonNull
+        @Override
+        public ByteBuffer combine(@NonNull ByteBuffer first, @NonNull ByteBuffer second) {
+            return first;
+        }
+    }
+
+    private static class EdgeMapProcessor extends OutputBufferProcessor {
+        @Override
+        int outputSize(@NonNull YuvFrame frame) {
+            return frame.width * frame.height;
+        }
+
+        @NonNull
+        @Override
+        public ByteBuffer processTile(@NonNull YuvFrame frame, int left, int top, int right, int bottom) {
+            ByteBuffer output = output();
+            int maxColumn = frame.width - 1;
+            int maxRow = frame.height - 1;
+            for (int row = top; row < bottom; row++) {
+                int up = Math.max(row - 1, 0);
+                int down = Math.min(row + 1, maxRow);
+                for (int column = left; column < right; column++) {
+                    int previous = Math.max(column - 1, 0);
+                    int next = Math.min(column + 1, maxColumn);
+                    int topLeft = frame.luma(previous, up);
+                    int topRight = frame.luma(next, up);
+                    int bottomLeft = frame.luma(previous, down);
+                    int bottomRight = frame.luma(next, down);
+                    int gx = topRight + 2 * frame.luma(next, row) + bottomRight - topLeft - 2 * frame.luma(previous, row) - bottomLeft;
+                    int gy = bottomLeft + 2 * frame.luma(column, down) + bottomRight - topLeft - 2 * frame.luma(column, up) - topRight;
+                    // |gx| + |gy| approximates the magnitude without sqrt
+                    output.put(row * frame.width + column, (byte) Math.min(255, (Math.abs(gx) + Math.abs(gy)) >> 2));
+                }
+            }
+            return output;
+        }
+    }
+
+    private static class DownscaleProcessor extends OutputBufferProcessor {
+        private final int mFactor;
+
+        DownscaleProcessor(int factor) {
+            if (factor <= 0) {
+                throw new IllegalArgumentException("Factor must be positive");
+            }
+            mFactor = factor;
+        }
+
+        @Override
+        int outputSize(@NonNull YuvFrame frame) {
+            return (frame.width / mFactor) * (frame.height / mFactor);
+        }
+
+        @NonNull
+        @Override
+        public ByteBuffer processTile(@NonNull YuvFrame frame, int left, int top, int right, int bottom) {
+            ByteBuffer output = output();
+            int outputWidth = frame.width / mFactor;
+            int outputHeight = frame.height / mFactor;
+            int area = mFactor * mFactor;
+            // an output pixel belongs to the tile containing the top-left corner of its block
+            int fromColumn = (left + mFactor - 1) / mFactor;
+            int toColumn = Math.min((right + mFactor - 1) / mFactor, outputWidth);
+            int fromRow = (top + mFactor - 1) / mFactor;
+            int toRow = Math.min((bottom + mFactor - 1) / mFactor, outputHeight);
+            for (int outputRow = fromRow; outputRow < toRow; outputRow++) {
+                for (int outputColumn = fromColumn; outputColumn < toColumn; outputColumn++) {
+                    int sum = 0;
+                    int sourceTop = outputRow * mFactor;
+                    int sourceLeft = outputColumn * mFactor;
+                    for (int row = sourceTop; row < sourceTop + mFactor; row++) {
+                        for (int column = sourceLeft; column < sourceLeft + mFactor; column++) {
+                            sum += frame.luma(column, row);
+                        }
+                    }
+                    output.put(outputRow * outputWidth + outputColumn, (byte) (sum / area));
+                }
+            }
+            return output;
+        }
+    }
+}
@@ -1,48 +1,167 @@
 package com.example.arkadygamza.rxcamera2;
 
 import android.annotation.TargetApi;
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
 import android.media.Image;
 import android.media.ImageReader;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
 
 import java.io.File;
-import java.io.FileOutputStream;
-import java.nio.channels.FileChannel;
+import java.io.IOException;
 
 import io.reactivex.Observable;
+import io.reactivex.ObservableEmitter;
 import io.reactivex.Single;
 
 
 /**
- * Saves a JPEG {@link Image} into the specified {@link File}.
+ * Saves a JPEG {@link Image} into a new shot of {@link CaptureStore}, or encodes a merged multi-frame shot into one.
  */
 @TargetApi(21)
 class ImageSaverRxWrapper {
 
+    private static final String TAG = ImageSaverRxWrapper.class.getSimpleName();
+
+    /**
+     * Writes the image into a new unique file of the store, the file appears only when fully written.
+     */
     @NonNull
-    public static Single<File> save(@NonNull Image image, @NonNull File file) {
+    public static Single<File> save(@NonNull Image image, @NonNull CaptureStore store) {
         return Single.fromCallable(() -> {
-            try (FileChannel output = new FileOutputStream(file).getChannel()) {
-                output.write(image.getPlanes()[0].getBuffer());
-                return file;
+            long span = Tracer.begin("file write");
+            CaptureStore.Capture capture = null;
+            try {
+                capture = store.begin();
+                capture.write(image.getPlanes()[0].getBuffer());
+                return capture.commit();
+            }
+            catch (Throwable throwable) {
+                if (capture != null) {
+                    capture.abort();
+                }
+                throw throwable;
             }
             finally {
-                image.close();
+                ImageTracker.close(image);
+                Tracer.end("file write", span);
             }
         });
     }
 
+    /**
+     * Encodes the merged frame into a new JPEG shot of the store, the file appears only when fully written.
+     */
     @NonNull
-    public static Observable<ImageReader> createOnImageAvailableObservable(@NonNull ImageReader imageReader) {
+    public static Single<File> save(@NonNull MultiFrameMerger.MergedFrame frame, int quality, @NonNull CaptureStore store) {
+        return Single.fromCallable(() -> {
+            long span = Tracer.begin("file write");
+            CaptureStore.Capture capture = null;
+            try {
+                capture = store.begin();
+                YuvImage image = new YuvImage(frame.nv21, ImageFormat.NV21, frame.width, frame.height, null);
+                if (!image.compressToJpeg(new Rect(0, 0, frame.width, frame.height), quality, capture.getOutputStream())) {
+                    throw new IOException("Can't encode " + frame.width + "x" + frame.height + " JPEG");
+                }
+                return capture.commit();
+            }
+            catch (Throwable throwable) {
+                if (capture != null) {
+                    capture.abort();
+                }
+                throw throwable;
+            }
+            finally {
+                Tracer.end("file write", span);
+            }
+        });
+    }
+
+    /**
+     * How images are taken from the reader when it signals availability
+     */
+    public enum DrainPolicy {
+        /**
+         * Every image in order, for bursts and stills where none may be lost
+         */
+        NEXT,
+        /**
+         * Only the newest image, older ones are discarded, for preview analysis. Needs a reader with at least 2 max images.
+         */
+        LATEST
+    }
+
+    /**
+     * Emits acquired images, listener runs on a dedicated looper thread so images are taken from the reader as soon as they
+     * are available. The subscriber owns every emitted image and must close it, images acquired after the subscriber is
+     * disposed are closed here. If the subscriber holds all {@code maxImages} images, new ones stay in the reader
+     * until an image is closed with {@link ImageTracker#close(Image)}, which drains the reader again.
+     */
+    @NonNull
+    public static Observable<Image> createOnImageAvailableObservable(@NonNull ImageReader imageReader, @NonNull DrainPolicy drainPolicy) {
         return Observable.create(subscriber -> {
+            HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_DISPLAY);
+            thread.start();
 
             ImageReader.OnImageAvailableListener listener = reader -> {
+                if (drainPolicy == DrainPolicy.LATEST) {
+                    deliver(subscriber, acquire(reader, drainPolicy));
+                    return;
+                }
+                Image image;
+                while ((image = acquire(reader, drainPolicy)) != null) {
+                    deliver(subscriber, image);
+                }
+            };
+            Handler handler = new Handler(thread.getLooper());
+            imageReader.setOnImageAvailableListener(listener, handler);
+            // the reader doesn't signal images queued while it was full again
+            Runnable drain = () -> {
                 if (!subscriber.isDisposed()) {
-                    subscriber.onNext(reader);
+                    listener.onImageAvailable(imageReader);
                 }
             };
-            imageReader.setOnImageAvailableListener(listener, null);
-            subscriber.setCancellable(() -> imageReader.setOnImageAvailableListener(null, null)); //remove listener on unsubscribe
+            ImageTracker.setOnImageClosed(imageReader, () -> handler.post(drain));
+            subscriber.setCancellable(() -> {
+                ImageTracker.setOnImageClosed(imageReader, null);
+                imageReader.setOnImageAvailableListener(null, null); //remove listener on unsubscribe
+                thread.quitSafely();
+            });
         });
     }
+
+    @Nullable
+    private static Image acquire(@NonNull ImageReader reader, @NonNull DrainPolicy drainPolicy) {
+        Image image;
+        try {
+            image = drainPolicy == DrainPolicy.LATEST ? reader.acquireLatestImage() : reader.acquireNextImage();
+        }
+        catch (IllegalStateException e) {
+            // all maxImages are held by the subscriber, the image stays in the reader for now
+            ImageTracker.onAcquireFailed(reader);
+            return null;
+        }
+        if (image != null) {
+            ImageTracker.onAcquired(reader, image);
+            Tracer.instant("image available");
+        }
+        return image;
+    }
+
+    private static void deliver(@NonNull ObservableEmitter<Image> subscriber, @Nullable Image image) {
+        if (image == null) {
+            return;
+        }
+        if (subscriber.isDisposed()) {
+            ImageTracker.close(image);
+            return;
+        }
+        subscriber.onNext(image);
+    }
 }
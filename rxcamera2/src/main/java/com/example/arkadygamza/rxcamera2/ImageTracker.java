@@ -0,0 +1,203 @@
+package com.example.arkadygamza.rxcamera2;
+
+import android.annotation.TargetApi;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Accounts every {@link Image} acquired from our {@link ImageReader}s until it is closed.
+ * <p>
+ * A reader with all {@code maxImages} images held stops delivering frames and the capture pipeline silently stalls,
+ * so the tracker reports a {@link Report} when a reader fails to acquire, or when all its images are held longer than
+ * {@link #HELD_WARNING_MILLIS}. With {@link #setRecordStacks(boolean)} the stack of every acquirer is recorded to point at the leak.
+ * Images must be closed via {@link #close(Image)} to be accounted. Thread safe.
+ */
+@TargetApi(21)
+public class ImageTracker {
+
+    private static final String TAG = ImageTracker.class.getSimpleName();
+    static final long HELD_WARNING_MILLIS = 500;
+
+    public interface Listener {
+        void onStarvationRisk(@NonNull Report report);
+    }
+
+    public static class Report {
+        @NonNull
+        public final String readerName;
+        public final int maxImages;
+        public final int outstanding;
+        public final long oldestHeldMillis;
+        /**
+         * Where the oldest held image was acquired, null unless stacks are recorded
+         */
+        @Nullable
+        public final Throwable oldestAcquirer;
+
+        Report(@NonNull String readerName, int maxImages, int outstanding, long oldestHeldMillis, @Nullable Throwable oldestAcquirer) {
+            this.readerName = readerName;
+            this.maxImages = maxImages;
+            this.outstanding = outstanding;
+            this.oldestHeldMillis = oldestHeldMillis;
+            this.oldestAcquirer = oldestAcquirer;
+        }
+
+        @Override
+        public String toString() {
+            return readerName + ": " + outstanding + "/" + maxImages + " images held, oldest for " + oldestHeldMillis + " ms";
+        }
+    }
+
+    private static class Record {
+        @NonNull
+        final ImageReader reader;
+        final long acquiredAtMillis;
+        @Nullable
+        final Throwable acquirer;
+
+        Record(@NonNull ImageReader reader, long acquiredAtMillis, @Nullable Throwable acquirer) {
+            this.reader = reader;
+            this.acquiredAtMillis = acquiredAtMillis;
+            this.acquirer = acquirer;
+        }
+    }
+
+    private static final ConcurrentHashMap<Image, Record> sRecords = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<ImageReader, AtomicInteger> sOutstanding = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<ImageReader, Runnable> sOnImageClosed = new ConcurrentHashMap<>();
+    private static volatile boolean sRecordStacks;
+    @Nullable
+    private static volatile Listener sListener;
+
+    private ImageTracker() {
+    }
+
+    public static void setListener(@Nullable Listener listener) {
+        sListener = listener;
+    }
+
+    /**
+     * Off by default, stacks cost an exception per image. Apps turn it on with their own {@code BuildConfig.DEBUG},
+     * the library's one is false for them as they get its release variant.
+     */
+    public static void setRecordStacks(boolean recordStacks) {
+        sRecordStacks = recordStacks;
+    }
+
+    static void onAcquired(@NonNull ImageReader reader, @NonNull Image image) {
+        long now = SystemClock.elapsedRealtime();
+        sRecords.put(image, new Record(reader, now, sRecordStacks ? new Throwable("Image acquired here") : null));
+        int outstanding = getCounter(reader).incrementAndGet();
+        if (outstanding >= reader.getMaxImages()) {
+            Report report = createReport(reader, now);
+            if (report.oldestHeldMillis >= HELD_WARNING_MILLIS) {
+                report(report);
+            }
+        }
+    }
+
+    /**
+     * @param onImageClosed runs on the closing thread after an image of the reader is closed, null to remove
+     */
+    static void setOnImageClosed(@NonNull ImageReader reader, @Nullable Runnable onImageClosed) {
+        if (onImageClosed == null) {
+            sOnImageClosed.remove(reader);
+        }
+        else {
+            sOnImageClosed.put(reader, onImageClosed);
+        }
+    }
+
+    /**
+     * The reader has no image to give because all of them are held, the pipeline is stalled.
+     */
+    static void onAcquireFailed(@NonNull ImageReader reader) {
+        report(createReport(reader, SystemClock.elapsedRealtime()));
+    }
+
+    /**
+     * Closes the image and stops accounting it, safe to call more than once.
+     */
+    static void close(@NonNull Image image) {
+        Record record = sRecords.remove(image);
+        AtomicInteger counter = record == null ? null : sOutstanding.get(record.reader);
+        if (counter != null) {
+            counter.decrementAndGet();
+        }
+        image.close();
+        Runnable onImageClosed = record == null ? null : sOnImageClosed.get(record.reader);
+        if (onImageClosed != null) {
+            onImageClosed.run();
+        }
+    }
+
+    /**
+     * Closing a reader closes all its images, forget them.
+     */
+    static void onReaderClosed(@NonNull ImageReader reader) {
+        sOutstanding.remove(reader);
+        sOnImageClosed.remove(reader);
+        for (Map.Entry<Image, Record> entry : sRecords.entrySet()) {
+            if (entry.getValue().reader == reader) {
+                sRecords.remove(entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * @return images of the reader acquired and not closed yet
+     */
+    public static int getOutstanding(@NonNull ImageReader reader) {
+        AtomicInteger counter = sOutstanding.get(reader);
+        return counter == null ? 0 : counter.get();
+    }
+
+    /**
+     * @return share of the reader's images held by consumers, at 1 the reader can't deliver anything new
+     */
+    public static float getUtilization(@NonNull ImageReader reader) {
+        return (float) getOutstanding(reader) / reader.getMaxImages();
+    }
+
+    @NonNull
+    private static AtomicInteger getCounter(@NonNull ImageReader reader) {
+        AtomicInteger counter = sOutstanding.get(reader);
+        if (counter == null) {
+            AtomicInteger newCounter = new AtomicInteger();
+            counter = sOutstanding.putIfAbsent(reader, newCounter);
+            if (counter == null) {
+                counter = newCounter;
+            }
+        }
+        return counter;
+    }
+
+    @NonNull
+    private static Report createReport(@NonNull ImageReader reader, long now) {
+        Record oldest = null;
+        for (Record record : sRecords.values()) {
+            if (record.reader == reader && (oldest == null || record.acquiredAtMillis < oldest.acquiredAtMillis)) {
+                oldest = record;
+            }
+        }
+        String readerName = "ImageReader(" + reader.getWidth() + "x" + reader.getHeight() + ", format " + reader.getImageFormat() + ")";
+        return new Report(readerName, reader.getMaxImages(), getOutstanding(reader),
+            oldest == null ? 0 : now - oldest.acquiredAtMillis, oldest == null ? null : oldest.acquirer);
+    }
+
+    private static void report(@NonNull Report report) {
+        Log.w(TAG, "\tstarvation risk, " + report, report.oldestAcquirer);
+        Listener listener = sListener;
+        if (listener != null) {
+            listener.onStarvationRisk(report);
+        }
+    }
+}
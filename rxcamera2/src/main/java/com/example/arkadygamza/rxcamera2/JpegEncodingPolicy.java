@@ -0,0 +1,140 @@
+package com.example.arkadygamza.rxcamera2;
+
+import android.annotation.TargetApi;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CaptureRequest;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import android.util.Size;
+
+/**
+ * Chooses {@link CaptureRequest#JPEG_QUALITY} and {@link CaptureRequest#JPEG_THUMBNAIL_SIZE} to keep photos
+ * around the target size, so encoding and disk writes keep up with the shot rate.
+ * <p>
+ * Starts from {@link #INITIAL_QUALITY} and corrects the quality after every saved photo: the average of the measured sizes
+ * is compared with the target and the quality moves by a step proportional to the miss.
+ * Thread safe, sizes are reported from the io thread while requests are built on the camera thread.
+ */
+@TargetApi(21)
+public class JpegEncodingPolicy {
+
+    private static final String TAG = JpegEncodingPolicy.class.getSimpleName();
+
+    static final int INITIAL_QUALITY = 90;
+    private static final int MIN_QUALITY = 50;
+    private static final int MAX_QUALITY = 98;
+    private static final int MAX_QUALITY_STEP = 10;
+    /**
+     * Misses within this fraction of the target don't change the quality
+     */
+    private static final float TOLERANCE = 0.1f;
+    /**
+     * Weight of the newest photo in the average size
+     */
+    private static final float SMOOTHING = 0.3f;
+    /**
+     * Share of the photo budget we are ready to spend on the embedded thumbnail
+     */
+    private static final float THUMBNAIL_SHARE = 0.02f;
+    /**
+     * Rough size of a thumbnail pixel after compression
+     */
+    private static final float THUMBNAIL_BYTES_PER_PIXEL = 0.5f;
+
+    private final long mTargetBytesPerShot;
+    private int mQuality = INITIAL_QUALITY;
+    private float mAverageBytes;
+
+    private JpegEncodingPolicy(long targetBytesPerShot) {
+        if (targetBytesPerShot <= 0) {
+            throw new IllegalArgumentException("Target size must be positive");
+        }
+        mTargetBytesPerShot = targetBytesPerShot;
+    }
+
+    /**
+     * @param targetBytesPerShot desired average photo size
+     */
+    @NonNull
+    public static JpegEncodingPolicy forTargetBytesPerShot(long targetBytesPerShot) {
+        return new JpegEncodingPolicy(targetBytesPerShot);
+    }
+
+    /**
+     * @param bytesPerSecond storage write speed we can sustain
+     * @param shotsPerSecond shot rate which must not fall behind
+     */
+    @NonNull
+    public static JpegEncodingPolicy forSustainedWriteBudget(long bytesPerSecond, float shotsPerSecond) {
+        if (shotsPerSecond <= 0) {
+            throw new IllegalArgumentException("Shot rate must be positive");
+        }
+        return new JpegEncodingPolicy((long) (bytesPerSecond / shotsPerSecond));
+    }
+
+    public long getTargetBytesPerShot() {
+        return mTargetBytesPerShot;
+    }
+
+    public synchronized int getQuality() {
+        return mQuality;
+    }
+
+    /**
+     * Sets quality and thumbnail size for the next shot.
+     */
+    void applyTo(@NonNull CaptureRequest.Builder builder, @NonNull CameraCharacteristics characteristics) {
+        builder.set(CaptureRequest.JPEG_QUALITY, (byte) getQuality());
+        Size thumbnailSize = chooseThumbnailSize(characteristics.get(CameraCharacteristics.JPEG_AVAILABLE_THUMBNAIL_SIZES));
+        if (thumbnailSize != null) {
+            builder.set(CaptureRequest.JPEG_THUMBNAIL_SIZE, thumbnailSize);
+        }
+    }
+
+    /**
+     * Reports the size of a saved photo encoded with the current quality.
+     */
+    public synchronized void onPhotoSaved(long bytes) {
+        mAverageBytes = mAverageBytes == 0 ? bytes : mAverageBytes + SMOOTHING * (bytes - mAverageBytes);
+
+        float miss = (mAverageBytes - mTargetBytesPerShot) / mTargetBytesPerShot;
+        if (Math.abs(miss) <= TOLERANCE) {
+            return;
+        }
+        int step = Math.round(Math.max(-MAX_QUALITY_STEP, Math.min(MAX_QUALITY_STEP, miss * MAX_QUALITY_STEP)));
+        int quality = Math.max(MIN_QUALITY, Math.min(MAX_QUALITY, mQuality - step));
+        if (quality != mQuality) {
+            Log.d(TAG, "\tquality " + mQuality + " -> " + quality + ", average " + (long) mAverageBytes + " of " + mTargetBytesPerShot + " bytes");
+            mQuality = quality;
+        }
+    }
+
+    /**
+     * @return the biggest thumbnail fitting the thumbnail budget, the smallest non-empty one if none fits,
+     * null if the camera doesn't list thumbnail sizes
+     */
+    @Nullable
+    private Size chooseThumbnailSize(@Nullable Size[] availableSizes) {
+        if (availableSizes == null) {
+            return null;
+        }
+        float thumbnailBudget = mTargetBytesPerShot * THUMBNAIL_SHARE;
+        Size best = null;
+        Size smallest = null;
+        for (Size size : availableSizes) {
+            long area = (long) size.getWidth() * size.getHeight();
+            if (area == 0) {
+                continue; // (0, 0) disables the thumbnail
+            }
+            if (smallest == null || area < (long) smallest.getWidth() * smallest.getHeight()) {
+                smallest = size;
+            }
+            if (area * THUMBNAIL_BYTES_PER_PIXEL <= thumbnailBudget
+                && (best == null || area > (long) best.getWidth() * best.getHeight())) {
+                best = size;
+            }
+        }
+        return best != null ? best : smallest;
+    }
+}
@@ -0,0 +1,93 @@
+package com.example.arkadygamza.rxcamera2;
+
+import android.annotation.TargetApi;
+import android.hardware.camera2.CaptureRequest;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import io.reactivex.Observable;
+import io.reactivex.subjects.PublishSubject;
+import io.reactivex.subjects.Subject;
+
+/**
+ * Request fields changed while the preview runs: zoom, exposure compensation, torch.
+ * <p>
+ * Values are kept and applied to every request built afterwards. Changes are coalesced: the preview request is rebuilt
+ * at most once per preview frame with the latest values, however often they are set. Values can be set from any thread.
+ */
+@TargetApi(21)
+class LiveParameters {
+
+    private static final Object CHANGE = new Object();
+
+    private final Map<CaptureRequest.Key<?>, Object> mValues = new LinkedHashMap<>();
+    private final Subject<Object> mChanges = PublishSubject.create().toSerialized();
+    private long mSetCount;
+    private long mUpdateCount;
+
+    <T> void set(@NonNull CaptureRequest.Key<T> key, @NonNull T value) {
+        synchronized (mValues) {
+            mValues.put(key, value);
+            mSetCount++;
+        }
+        mChanges.onNext(CHANGE);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Nullable
+    <T> T get(@NonNull CaptureRequest.Key<T> key) {
+        synchronized (mValues) {
+            return (T) mValues.get(key);
+        }
+    }
+
+    void clear() {
+        synchronized (mValues) {
+            mValues.clear();
+        }
+    }
+
+    void applyTo(@NonNull CaptureRequest.Builder builder) {
+        synchronized (mValues) {
+            for (Map.Entry<CaptureRequest.Key<?>, Object> entry : mValues.entrySet()) {
+                set(builder, entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * @param previewBuilder builder with the values applied
+     * @param frames         preview frame ticks, a new request is emitted on a tick only if values changed since the last one
+     * @return the first request right away, then a request per frame with changes
+     */
+    @NonNull
+    Observable<CaptureRequest> previewRequests(@NonNull Callable<CaptureRequest.Builder> previewBuilder, @NonNull Observable<?> frames) {
+        return mChanges
+            .sample(frames)
+            .doOnNext(__ -> {
+                synchronized (mValues) {
+                    mUpdateCount++;
+                }
+            })
+            .startWith(CHANGE)
+            .map(__ -> previewBuilder.call().build());
+    }
+
+    /**
+     * @return how many changes were merged into later ones instead of getting their own request
+     */
+    long getCoalescedCount() {
+        synchronized (mValues) {
+            return Math.max(0, mSetCount - mUpdateCount);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> void set(@NonNull CaptureRequest.Builder builder, @NonNull CaptureRequest.Key<T> key, @NonNull Object value) {
+        builder.set(key, (T) value);
+    }
+}
@@ -0,0 +1,181 @@
+package com.example.arkadygamza.rxcamera2;
+
+import android.annotation.TargetApi;
+import android.graphics.ImageFormat;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.TotalCaptureResult;
+import android.media.ImageReader;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import android.util.Rational;
+import android.util.Size;
+import android.view.Surface;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Takes the frames of a multi-frame shot: builds the burst requests, pairs the frames with their results with a
+ * {@link BurstAssembler} and hands the complete burst to the listener.
+ * <p>
+ * Frames are expected as heap copies made on the reader thread, see {@link FrameProcessingRxWrapper#copyToYuvFrame},
+ * so the reader, sized for one burst, is free for the next shot while this one is merged.
+ * Not thread safe, used from the main thread only.
+ */
+@TargetApi(21)
+class MultiFrameCapture {
+
+    private static final String TAG = MultiFrameCapture.class.getSimpleName();
+
+    interface Listener {
+        void onBurst(@NonNull Burst burst);
+    }
+
+    /**
+     * Frames of a shot in the request order, the reference first
+     */
+    static class Burst {
+        @NonNull
+        final List<YuvFrame> frames;
+        /**
+         * Exposure time times sensitivity of every frame, as reported by the results
+         */
+        @NonNull
+        final float[] exposureGains;
+        final int jpegOrientation;
+
+        Burst(@NonNull List<YuvFrame> frames, @NonNull float[] exposureGains, int jpegOrientation) {
+            this.frames = frames;
+            this.exposureGains = exposureGains;
+            this.jpegOrientation = jpegOrientation;
+        }
+
+        long getReferenceTimestamp() {
+            return frames.get(0).getTimestamp();
+        }
+    }
+
+    @NonNull
+    private final MultiFrameMode mMode;
+    @NonNull
+    private final CameraCharacteristics mCharacteristics;
+    @NonNull
+    private final Listener mListener;
+    @NonNull
+    private final ImageReader mImageReader;
+    @Nullable
+    private BurstAssembler<CaptureRequest, TotalCaptureResult, YuvFrame> mPending;
+    private int mPendingJpegOrientation;
+
+    MultiFrameCapture(@NonNull MultiFrameMode mode, @NonNull Size size, @NonNull CameraCharacteristics characteristics, @NonNull Listener listener) {
+        mMode = mode;
+        mCharacteristics = characteristics;
+        mListener = listener;
+        mImageReader = ImageReader.newInstance(size.getWidth(), size.getHeight(), ImageFormat.YUV_420_888, mode.getFrameCount());
+    }
+
+    @NonNull
+    ImageReader getImageReader() {
+        return mImageReader;
+    }
+
+    @NonNull
+    Surface getSurface() {
+        return mImageReader.getSurface();
+    }
+
+    /**
+     * Starts a new shot, frames of an unfinished previous one are dropped.
+     *
+     * @param builder              targeting {@link #getSurface()} only
+     * @param exposureCompensation current compensation the brackets are relative to
+     * @return requests for {@link android.hardware.camera2.CameraCaptureSession#captureBurst}
+     */
+    @NonNull
+    List<CaptureRequest> createBurst(@NonNull CaptureRequest.Builder builder, int exposureCompensation, int jpegOrientation) {
+        if (mPending != null) {
+            Log.w(TAG, "\tburst of " + mPending.getFrameCount() + " frames is not finished, dropped");
+        }
+        List<CaptureRequest> requests = new ArrayList<>();
+        for (int frame = 0; frame < mMode.getFrameCount(); frame++) {
+            // the builder is cached, so both keys are set for every frame
+            builder.set(CaptureRequest.CONTROL_AE_LOCK, !mMode.isBracketed());
+            builder.set(CaptureRequest.CONTROL_AE_EXPOSURE_COMPENSATION,
+                CameraStrategy.clampExposureCompensation(mCharacteristics, exposureCompensation + mMode.getExposureStep(frame)));
+            requests.add(builder.build());
+        }
+        builder.set(CaptureRequest.CONTROL_AE_LOCK, false);
+        builder.set(CaptureRequest.CONTROL_AE_EXPOSURE_COMPENSATION, exposureCompensation);
+        mPending = new BurstAssembler<>(requests);
+        mPendingJpegOrientation = jpegOrientation;
+        return requests;
+    }
+
+    void onFrame(@NonNull YuvFrame frame) {
+        if (mPending == null) {
+            Log.w(TAG, "\tframe " + frame.getTimestamp() + " out of any burst, dropped");
+            return;
+        }
+        mPending.onFrame(frame.getTimestamp(), frame);
+        completeIfReady();
+    }
+
+    void onResult(@NonNull TotalCaptureResult result) {
+        if (mPending == null) {
+            return;
+        }
+        if (mPending.onResult(result.getRequest(), result, result.get(CaptureResult.SENSOR_TIMESTAMP))) {
+            completeIfReady();
+        }
+    }
+
+    void clear() {
+        mPending = null;
+    }
+
+    void close() {
+        clear();
+        ImageTracker.onReaderClosed(mImageReader);
+        mImageReader.close();
+    }
+
+    private void completeIfReady() {
+        BurstAssembler<CaptureRequest, TotalCaptureResult, YuvFrame> pending = mPending;
+        if (pending == null || !pending.isFilled()) {
+            return;
+        }
+        mPending = null;
+        List<YuvFrame> frames = pending.getFrames();
+        if (frames == null) {
+            Log.w(TAG, "\tburst frames don't match the results " + pending.getFrameTimestamps() + ", dropped");
+            return;
+        }
+        float[] gains = new float[pending.size()];
+        for (int i = 0; i < gains.length; i++) {
+            // every result is there once filled
+            //noinspection ConstantConditions
+            gains[i] = getExposureGain(pending.getResult(i), i);
+        }
+        Log.d(TAG, "\tburst of " + mMode + " complete, exposure gains " + Arrays.toString(gains));
+        mListener.onBurst(new Burst(frames, gains, mPendingJpegOrientation));
+    }
+
+    /**
+     * AE applies compensation with a delay, so the exposure actually used is taken from the result. Without it in the
+     * result, as on LEGACY cameras, the requested compensation is assumed.
+     */
+    private float getExposureGain(@NonNull TotalCaptureResult result, int frame) {
+        Long exposureTime = result.get(CaptureResult.SENSOR_EXPOSURE_TIME);
+        Integer sensitivity = result.get(CaptureResult.SENSOR_SENSITIVITY);
+        if (exposureTime != null && sensitivity != null && exposureTime > 0 && sensitivity > 0) {
+            return (float) exposureTime * sensitivity;
+        }
+        Rational step = mCharacteristics.get(CameraCharacteristics.CONTROL_AE_COMPENSATION_STEP);
+        float stepEv = step == null ? 0 : step.floatValue();
+        return (float) Math.pow(2, mMode.getExposureStep(frame) * stepEv);
+    }
+}
@@ -0,0 +1,436 @@
+package com.example.arkadygamza.rxcamera2;
+
+import android.support.annotation.NonNull;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Aligns and merges a burst of {@code YUV_420_888} frames into one NV21 image, for low-light noise reduction
+ * (frames of the same exposure) and HDR (frames bracketed around the first one).
+ * <p>
+ * Works tile by tile on a {@link TileProcessingEngine}. For every tile each frame is aligned to the first one by an
+ * integer translation within {@link #SEARCH_RADIUS} pixels, coarse to fine on the exposure-normalized luminance.
+ * Samples are averaged with weights that drop clipped pixels and samples too different from the reference, so moving
+ * objects don't ghost. What is too different follows the noise, estimated per tile from the alignment residual.
+ * HDR results above the reference exposure's white are compressed by a knee into the top of the range.
+ * <p>
+ * Scratch memory is per pool thread: a luminance window of every frame around the tile. The tile size is the biggest
+ * one keeping all threads' scratch within the memory budget, the output image itself is not part of the budget.
+ */
+public class MultiFrameMerger {
+
+    public static final int SEARCH_RADIUS = 8;
+    private static final int MIN_TILE_SIZE = 32;
+    private static final int MAX_TILE_SIZE = 256;
+    private static final int TILE_SIZE_STEP = 16;
+    /**
+     * Luminance difference from the reference up to which a sample keeps full weight, at least this and twice the mean
+     * alignment residual of the tile. The weight falls to zero at double the threshold.
+     */
+    private static final float MIN_GHOST_THRESHOLD = 8;
+    private static final int CLIP_LOW = 4;
+    private static final int CLIP_HIGH = 250;
+    private static final float KNEE = 192;
+
+    /**
+     * Merged image in the NV21 layout: the full Y plane, then interleaved V and U subsampled 2x2
+     */
+    public static class MergedFrame {
+        public final int width;
+        public final int height;
+        @NonNull
+        public final byte[] nv21;
+        /**
+         * Share of the non-reference samples rejected as ghosts or clipped
+         */
+        public final float rejectedFraction;
+        /**
+         * Mean length of the tile alignment offsets, in pixels
+         */
+        public final float averageShift;
+
+        MergedFrame(int width, int height, @NonNull byte[] nv21, float rejectedFraction, float averageShift) {
+            this.width = width;
+            this.height = height;
+            this.nv21 = nv21;
+            this.rejectedFraction = rejectedFraction;
+            this.averageShift = averageShift;
+        }
+
+        /**
+         * @param degrees clockwise, 0, 90, 180 or 270
+         * @return the frame rotated into a new buffer, this one if the rotation is 0
+         */
+        @NonNull
+        public MergedFrame rotate(int degrees) {
+            if (degrees == 0) {
+                return this;
+            }
+            if (degrees != 90 && degrees != 180 && degrees != 270) {
+                throw new IllegalArgumentException("Unsupported rotation " + degrees);
+            }
+            boolean swap = degrees != 180;
+            int rotatedWidth = swap ? height : width;
+            int rotatedHeight = swap ? width : height;
+            byte[] rotated = new byte[nv21.length];
+            for (int row = 0; row < height; row++) {
+                for (int column = 0; column < width; column++) {
+                    rotated[rotatedIndex(column, row, degrees)] = nv21[row * width + column];
+                }
+            }
+            int chromaWidth = width / 2;
+            int chromaHeight = height / 2;
+            int rotatedChromaWidth = rotatedWidth / 2;
+            for (int row = 0; row < chromaHeight; row++) {
+                for (int column = 0; column < chromaWidth; column++) {
+                    int rotatedColumn;
+                    int rotatedRow;
+                    if (degrees == 90) {
+                        rotatedColumn = chromaHeight - 1 - row;
+                        rotatedRow = column;
+                    }
+                    else if (degrees == 180) {
+                        rotatedColumn = chromaWidth - 1 - column;
+                        rotatedRow = chromaHeight - 1 - row;
+                    }
+                    else {
+                        rotatedColumn = row;
+                        rotatedRow = chromaWidth - 1 - column;
+                    }
+                    int from = width * height + row * width + column * 2;
+                    int to = width * height + rotatedRow * rotatedChromaWidth * 2 + rotatedColumn * 2;
+                    rotated[to] = nv21[from];
+                    rotated[to + 1] = nv21[from + 1];
+                }
+            }
+            return new MergedFrame(rotatedWidth, rotatedHeight, rotated, rejectedFraction, averageShift);
+        }
+
+        private int rotatedIndex(int column, int row, int degrees) {
+            if (degrees == 90) {
+                return column * height + (height - 1 - row);
+            }
+            if (degrees == 180) {
+                return (height - 1 - row) * width + (width - 1 - column);
+            }
+            return (width - 1 - column) * height + row;
+        }
+    }
+
+    @NonNull
+    private final TileProcessingEngine mEngine;
+    private final int mTileSize;
+    private final int mMaxFrames;
+    private final ThreadLocal<byte[][]> mWindows = new ThreadLocal<byte[][]>() {
+        @Override
+        protected byte[][] initialValue() {
+            int windowSize = mTileSize + 2 * SEARCH_RADIUS;
+            return new byte[mMaxFrames][windowSize * windowSize];
+        }
+    };
+
+    /**
+     * @param memoryBudgetBytes scratch memory for all threads of the pool together
+     * @param maxFrames         the biggest burst to merge
+     */
+    public MultiFrameMerger(@NonNull ForkJoinPool pool, long memoryBudgetBytes, int maxFrames) {
+        if (maxFrames < 1) {
+            throw new IllegalArgumentException("At least one frame is needed");
+        }
+        mTileSize = chooseTileSize(memoryBudgetBytes, pool.getParallelism(), maxFrames);
+        mMaxFrames = maxFrames;
+        mEngine = new TileProcessingEngine(pool, mTileSize);
+    }
+
+    /**
+     * Merger on a pool leaving one core to the UI and camera threads
+     */
+    @NonNull
+    public static MultiFrameMerger create(long memoryBudgetBytes, int maxFrames) {
+        return new MultiFrameMerger(new ForkJoinPool(Math.max(1, Runtime.getRuntime().availableProcessors() - 1)), memoryBudgetBytes, maxFrames);
+    }
+
+    static int chooseTileSize(long memoryBudgetBytes, int threads, int frames) {
+        for (int tileSize = MAX_TILE_SIZE; tileSize >= MIN_TILE_SIZE; tileSize -= TILE_SIZE_STEP) {
+            if (threads * getScratchBytes(tileSize, frames) <= memoryBudgetBytes) {
+                return tileSize;
+            }
+        }
+        throw new IllegalArgumentException("Memory budget of " + memoryBudgetBytes + " bytes is too small for "
+            + frames + " frames on " + threads + " threads");
+    }
+
+    static long getScratchBytes(int tileSize, int frames) {
+        long windowSize = tileSize + 2 * SEARCH_RADIUS;
+        return frames * windowSize * windowSize;
+    }
+
+    public int getTileSize() {
+        return mTileSize;
+    }
+
+    @NonNull
+    public TileProcessingEngine getEngine() {
+        return mEngine;
+    }
+
+    /**
+     * @param frames        burst with the reference first, all of the same even size
+     * @param exposureGains exposure of every frame relative to any common unit, e.g. exposure time times ISO
+     */
+    @NonNull
+    public MergedFrame merge(@NonNull List<YuvFrame> frames, @NonNull float[] exposureGains) {
+        if (frames.isEmpty() || frames.size() > mMaxFrames) {
+            throw new IllegalArgumentException("Expected 1 to " + mMaxFrames + " frames, got " + frames.size());
+        }
+        if (exposureGains.length != frames.size()) {
+            throw new IllegalArgumentException("Expected an exposure gain per frame");
+        }
+        YuvFrame reference = frames.get(0);
+        if ((reference.width & 1) != 0 || (reference.height & 1) != 0) {
+            throw new IllegalArgumentException("Frame size must be even, got " + reference.width + "x" + reference.height);
+        }
+        for (YuvFrame frame : frames) {
+            if (frame.width != reference.width || frame.height != reference.height) {
+                throw new IllegalArgumentException("Frames differ in size");
+            }
+        }
+        byte[] nv21 = new byte[reference.width * reference.height * 3 / 2];
+        MergeStats stats = mEngine.process(reference, new MergeProcessor(frames, exposureGains, nv21));
+        return new MergedFrame(reference.width, reference.height, nv21,
+            stats.samples == 0 ? 0 : (float) stats.rejectedSamples / stats.samples,
+            stats.alignments == 0 ? 0 : (float) (stats.shiftSum / stats.alignments));
+    }
+
+    private static class MergeStats {
+        long samples;
+        long rejectedSamples;
+        long alignments;
+        double shiftSum;
+
+        @NonNull
+        MergeStats add(@NonNull MergeStats other) {
+            samples += other.samples;
+            rejectedSamples += other.rejectedSamples;
+            alignments += other.alignments;
+            shiftSum += other.shiftSum;
+            return this;
+        }
+    }
+
+    private class MergeProcessor implements FrameProcessor<MergeStats> {
+        @NonNull
+        private final List<YuvFrame> mFrames;
+        /**
+         * Per frame, raw luminance to the reference exposure
+         */
+        @NonNull
+        private final float[][] mNormalized;
+        @NonNull
+        private final byte[] mOutput;
+        /**
+         * Brightest normalized value, above 255 if some frame is darker than the reference
+         */
+        private final float mMaxValue;
+
+        MergeProcessor(@NonNull List<YuvFrame> frames, @NonNull float[] exposureGains, @NonNull byte[] output) {
+            mFrames = frames;
+            mOutput = output;
+            mNormalized = new float[frames.size()][256];
+            float maxValue = 255;
+            for (int frame = 0; frame < frames.size(); frame++) {
+                float ratio = exposureGains[frame] / exposureGains[0];
+                maxValue = Math.max(maxValue, 255 / ratio);
+                for (int value = 0; value < 256; value++) {
+                    mNormalized[frame][value] = value / ratio;
+                }
+            }
+            mMaxValue = maxValue;
+        }
+
+        @NonNull
+        @Override
+        public MergeStats processTile(@NonNull YuvFrame reference, int left, int top, int right, int bottom) {
+            MergeStats stats = new MergeStats();
+            int frameCount = mFrames.size();
+            int windowWidth = right - left + 2 * SEARCH_RADIUS;
+            int windowHeight = bottom - top + 2 * SEARCH_RADIUS;
+            byte[][] windows = mWindows.get();
+            for (int frame = 0; frame < frameCount; frame++) {
+                copyWindow(mFrames.get(frame), left - SEARCH_RADIUS, top - SEARCH_RADIUS, windowWidth, windowHeight, windows[frame]);
+            }
+            int[] offsetX = new int[frameCount];
+            int[] offsetY = new int[frameCount];
+            float[] thresholds = new float[frameCount];
+            for (int frame = 1; frame < frameCount; frame++) {
+                float residual = align(windows[0], windows[frame], mNormalized[frame], windowWidth, right - left, bottom - top, frame, offsetX, offsetY);
+                thresholds[frame] = Math.max(MIN_GHOST_THRESHOLD, 2 * residual);
+                stats.alignments++;
+                stats.shiftSum += Math.sqrt(offsetX[frame] * offsetX[frame] + offsetY[frame] * offsetY[frame]);
+            }
+
+            float[] weights = new float[frameCount];
+            int width = reference.width;
+            int height = reference.height;
+            int chromaOffset = width * height;
+            for (int row = top; row < bottom; row++) {
+                int windowRow = row - top + SEARCH_RADIUS;
+                for (int column = left; column < right; column++) {
+                    int windowColumn = column - left + SEARCH_RADIUS;
+                    int referenceValue = windows[0][windowRow * windowWidth + windowColumn] & 0xFF;
+                    boolean referenceClipped = isClipped(referenceValue);
+                    float referenceWeight = referenceClipped ? 0 : 1;
+                    weights[0] = referenceWeight;
+                    float weightSum = referenceWeight;
+                    float valueSum = referenceWeight * referenceValue;
+                    for (int frame = 1; frame < frameCount; frame++) {
+                        int value = windows[frame][(windowRow + offsetY[frame]) * windowWidth + windowColumn + offsetX[frame]] & 0xFF;
+                        float normalized = mNormalized[frame][value];
+                        float weight = 0;
+                        if (!isClipped(value)) {
+                            weight = referenceClipped ? 1 : robustness(Math.abs(normalized - referenceValue), thresholds[frame]);
+                        }
+                        stats.samples++;
+                        if (weight == 0) {
+                            stats.rejectedSamples++;
+                        }
+                        weights[frame] = weight;
+                        weightSum += weight;
+                        valueSum += weight * normalized;
+                    }
+                    float merged = weightSum == 0 ? referenceValue : valueSum / weightSum;
+                    mOutput[row * width + column] = (byte) toneMap(merged);
+
+                    if ((row & 1) == 0 && (column & 1) == 0) {
+                        float uSum = 0;
+                        float vSum = 0;
+                        for (int frame = 0; frame < frameCount; frame++) {
+                            if (weights[frame] == 0) {
+                                continue;
+                            }
+                            YuvFrame source = mFrames.get(frame);
+                            int sourceColumn = clamp(column + offsetX[frame], width);
+                            int sourceRow = clamp(row + offsetY[frame], height);
+                            uSum += weights[frame] * source.chromaU(sourceColumn, sourceRow);
+                            vSum += weights[frame] * source.chromaV(sourceColumn, sourceRow);
+                        }
+                        int index = chromaOffset + (row >> 1) * width + column;
+                        if (weightSum == 0) {
+                            mOutput[index] = (byte) reference.chromaV(column, row);
+                            mOutput[index + 1] = (byte) reference.chromaU(column, row);
+                        }
+                        else {
+                            mOutput[index] = (byte) Math.round(vSum / weightSum);
+                            mOutput[index + 1] = (byte) Math.round(uSum / weightSum);
+                        }
+                    }
+                }
+            }
+            return stats;
+        }
+
+        @NonNull
+        @Override
+        public MergeStats combine(@NonNull MergeStats first, @NonNull MergeStats second) {
+            return first.add(second);
+        }
+
+        /**
+         * Identity up to the knee, then a rational curve with the slope of 1 at the knee reaching 255 at the max value
+         */
+        private int toneMap(float value) {
+            if (mMaxValue <= 255 || value <= KNEE) {
+                return Math.min(255, Math.round(value));
+            }
+            float x = (value - KNEE) / (mMaxValue - KNEE);
+            float c = 1 / ((mMaxValue - KNEE) / (255 - KNEE) - 1);
+            return Math.min(255, Math.round(KNEE + (255 - KNEE) * x * (1 + c) / (x + c)));
+        }
+    }
+
+    private static float robustness(float difference, float threshold) {
+        if (difference <= threshold) {
+            return 1;
+        }
+        return Math.max(0, 2 - difference / threshold);
+    }
+
+    /**
+     * Finds the offset of the frame window minimizing the absolute difference to the reference tile: a search over even
+     * offsets on every other pixel, then the neighbours of the best one on all pixels.
+     *
+     * @return mean absolute difference per pixel at the found offset
+     */
+    private static float align(@NonNull byte[] referenceWindow, @NonNull byte[] frameWindow, @NonNull float[] normalized,
+                              int windowWidth, int tileWidth, int tileHeight, int frame, @NonNull int[] offsetX, @NonNull int[] offsetY) {
+        int bestX = 0;
+        int bestY = 0;
+        float bestCost = Float.MAX_VALUE;
+        for (int dy = -SEARCH_RADIUS; dy <= SEARCH_RADIUS; dy += 2) {
+            for (int dx = -SEARCH_RADIUS; dx <= SEARCH_RADIUS; dx += 2) {
+                float cost = cost(referenceWindow, frameWindow, normalized, windowWidth, tileWidth, tileHeight, dx, dy, 2, bestCost);
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    bestX = dx;
+                    bestY = dy;
+                }
+            }
+        }
+        int coarseX = bestX;
+        int coarseY = bestY;
+        bestCost = Float.MAX_VALUE;
+        for (int dy = Math.max(-SEARCH_RADIUS, coarseY - 1); dy <= Math.min(SEARCH_RADIUS, coarseY + 1); dy++) {
+            for (int dx = Math.max(-SEARCH_RADIUS, coarseX - 1); dx <= Math.min(SEARCH_RADIUS, coarseX + 1); dx++) {
+                float cost = cost(referenceWindow, frameWindow, normalized, windowWidth, tileWidth, tileHeight, dx, dy, 1, bestCost);
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    bestX = dx;
+                    bestY = dy;
+                }
+            }
+        }
+        offsetX[frame] = bestX;
+        offsetY[frame] = bestY;
+        return bestCost / (tileWidth * tileHeight);
+    }
+
+    /**
+     * @return sum of absolute differences, stops early once it exceeds the limit
+     */
+    private static float cost(@NonNull byte[] referenceWindow, @NonNull byte[] frameWindow, @NonNull float[] normalized,
+                              int windowWidth, int tileWidth, int tileHeight, int dx, int dy, int step, float limit) {
+        float cost = 0;
+        for (int y = 0; y < tileHeight; y += step) {
+            int referenceRow = (y + SEARCH_RADIUS) * windowWidth + SEARCH_RADIUS;
+            int frameRow = (y + SEARCH_RADIUS + dy) * windowWidth + SEARCH_RADIUS + dx;
+            for (int x = 0; x < tileWidth; x += step) {
+                cost += Math.abs((referenceWindow[referenceRow + x] & 0xFF) - normalized[frameWindow[frameRow + x] & 0xFF]);
+            }
+            if (cost >= limit) {
+                return cost;
+            }
+        }
+        return cost;
+    }
+
+    /**
+     * Copies luminance around the tile, pixels outside the frame repeat the edge
+     */
+    private static void copyWindow(@NonNull YuvFrame frame, int left, int top, int windowWidth, int windowHeight, @NonNull byte[] window) {
+        for (int y = 0; y < windowHeight; y++) {
+            int row = clamp(top + y, frame.height);
+            for (int x = 0; x < windowWidth; x++) {
+                window[y * windowWidth + x] = (byte) frame.luma(clamp(left + x, frame.width), row);
+            }
+        }
+    }
+
+    private static boolean isClipped(int value) {
+        return value <= CLIP_LOW || value >= CLIP_HIGH;
+    }
+
+    private static int clamp(int value, int size) {
+        return value < 0 ? 0 : value >= size ? size - 1 : value;
+    }
+}
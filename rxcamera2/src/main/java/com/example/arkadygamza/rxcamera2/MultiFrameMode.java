@@ -0,0 +1,65 @@
+package com.example.arkadygamza.rxcamera2;
+
+import android.support.annotation.NonNull;
+
+import java.util.Arrays;
+
+/**
+ * How a multi-frame shot is taken: a burst of YUV frames merged by {@link MultiFrameMerger} into one photo.
+ */
+public class MultiFrameMode {
+
+    public static final int MAX_FRAMES = 8;
+
+    @NonNull
+    private final int[] mExposureSteps;
+    private final boolean mBracketed;
+
+    private MultiFrameMode(@NonNull int[] exposureSteps, boolean bracketed) {
+        if (exposureSteps.length < 2 || exposureSteps.length > MAX_FRAMES) {
+            throw new IllegalArgumentException("Expected 2 to " + MAX_FRAMES + " frames, got " + exposureSteps.length);
+        }
+        mExposureSteps = exposureSteps;
+        mBracketed = bracketed;
+    }
+
+    /**
+     * Frames of the same exposure, locked after the AE converges, averaged for less noise
+     */
+    @NonNull
+    public static MultiFrameMode lowLight(int frameCount) {
+        return new MultiFrameMode(new int[frameCount], false);
+    }
+
+    /**
+     * Frames bracketed with {@link android.hardware.camera2.CaptureRequest#CONTROL_AE_EXPOSURE_COMPENSATION}, merged for
+     * more dynamic range
+     *
+     * @param exposureSteps per frame, in the camera's compensation steps on top of the current compensation. The first
+     *                      frame is the reference the others are aligned to, usually 0.
+     */
+    @NonNull
+    public static MultiFrameMode hdr(@NonNull int... exposureSteps) {
+        return new MultiFrameMode(Arrays.copyOf(exposureSteps, exposureSteps.length), true);
+    }
+
+    public int getFrameCount() {
+        return mExposureSteps.length;
+    }
+
+    /**
+     * @return compensation of the frame relative to the current one, 0 for all frames if not bracketed
+     */
+    public int getExposureStep(int frame) {
+        return mExposureSteps[frame];
+    }
+
+    public boolean isBracketed() {
+        return mBracketed;
+    }
+
+    @Override
+    public String toString() {
+        return mBracketed ? "hdr " + Arrays.toString(mExposureSteps) : "low light x" + mExposureSteps.length;
+    }
+}
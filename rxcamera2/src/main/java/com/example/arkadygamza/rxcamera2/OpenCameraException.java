@@ -41,5 +41,12 @@ public class OpenCameraException extends Exception {
             }
             return null;
         }
+
+        /**
+         * @return true if the camera is held by someone else and opening it again shortly may succeed
+         */
+        public boolean isTransient() {
+            return this == ERROR_CAMERA_IN_USE || this == ERROR_MAX_CAMERAS_IN_USE;
+        }
     }
 }
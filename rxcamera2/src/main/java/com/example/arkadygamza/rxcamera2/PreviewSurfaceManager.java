@@ -0,0 +1,96 @@
+package com.example.arkadygamza.rxcamera2;
+
+import android.annotation.TargetApi;
+import android.graphics.SurfaceTexture;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import android.util.Size;
+import android.view.Surface;
+
+/**
+ * Filters the stream of {@link android.view.TextureView} surface events and owns the preview {@link Surface}.
+ * <p>
+ * The same texture is reported by the texture listener, by every layout change and on resume. Only a new texture
+ * needs the camera to reconfigure, a new view size is handled by the view itself, because the preview buffer size
+ * comes from the camera. The {@link Surface} is reused while both the texture and the buffer size stay the same.
+ * Used from the main thread only.
+ */
+@TargetApi(21)
+class PreviewSurfaceManager {
+
+    private static final String TAG = PreviewSurfaceManager.class.getSimpleName();
+
+    @Nullable
+    private SurfaceTexture mSurfaceTexture;
+    private int mViewWidth;
+    private int mViewHeight;
+    @Nullable
+    private Surface mSurface;
+    /**
+     * Texture and buffer size {@link #mSurface} was created for
+     */
+    @Nullable
+    private SurfaceTexture mSurfaceSource;
+    @Nullable
+    private Size mBufferSize;
+    private int mAvoidedReconfigurations;
+
+    /**
+     * @return true if the texture is new and the camera has to use it, false for repeated events
+     */
+    boolean onSurfaceAvailable(@NonNull SurfaceTexture surfaceTexture, int viewWidth, int viewHeight) {
+        if (surfaceTexture == mSurfaceTexture) {
+            if (viewWidth != mViewWidth || viewHeight != mViewHeight) {
+                Log.d(TAG, "\tview resized to " + viewWidth + "x" + viewHeight + ", the preview buffer stays");
+                mViewWidth = viewWidth;
+                mViewHeight = viewHeight;
+            }
+            mAvoidedReconfigurations++;
+            return false;
+        }
+        // the old surface may still be used by the closing session, it is released when the next one is created
+        mSurfaceTexture = surfaceTexture;
+        mViewWidth = viewWidth;
+        mViewHeight = viewHeight;
+        return true;
+    }
+
+    void onSurfaceDestroyed() {
+        releaseSurface();
+        mSurfaceTexture = null;
+    }
+
+    /**
+     * @return the surface of the texture with the given buffer size, the previous one if nothing changed
+     */
+    @NonNull
+    Surface getSurface(@NonNull SurfaceTexture surfaceTexture, @NonNull Size bufferSize) {
+        if (mSurface != null && surfaceTexture == mSurfaceSource && bufferSize.equals(mBufferSize)) {
+            mAvoidedReconfigurations++;
+            return mSurface;
+        }
+        releaseSurface();
+        surfaceTexture.setDefaultBufferSize(bufferSize.getWidth(), bufferSize.getHeight());
+        mSurfaceSource = surfaceTexture;
+        mBufferSize = bufferSize;
+        mSurface = new Surface(surfaceTexture);
+        return mSurface;
+    }
+
+    /**
+     * @return repeated surface events and reused surfaces since the manager was created
+     */
+    int getAvoidedReconfigurations() {
+        return mAvoidedReconfigurations;
+    }
+
+    private void releaseSurface() {
+        if (mSurface != null) {
+            mSurface.release();
+            mSurface = null;
+            mSurfaceSource = null;
+            mBufferSize = null;
+        }
+    }
+}
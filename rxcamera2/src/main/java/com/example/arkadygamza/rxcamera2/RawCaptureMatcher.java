@@ -0,0 +1,93 @@
+package com.example.arkadygamza.rxcamera2;
+
+import android.annotation.TargetApi;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.TotalCaptureResult;
+import android.media.Image;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Pairs RAW {@link Image}s with their {@link TotalCaptureResult}s, they arrive independently in any order.
+ * Matching is done by {@link Image#getTimestamp()} == {@link CaptureResult#SENSOR_TIMESTAMP}.
+ * Keeps one image less than the reader holds, so the reader always has a free one, and at most {@link #MAX_PENDING_RESULTS}
+ * unmatched results, the oldest are dropped (images closed).
+ * Not thread safe, used from the camera thread only.
+ */
+@TargetApi(21)
+class RawCaptureMatcher {
+
+    private static final String TAG = RawCaptureMatcher.class.getSimpleName();
+    private static final int MAX_PENDING_RESULTS = 4;
+
+    interface Listener {
+        /**
+         * Ownership of the image is passed to the listener, it has to close it.
+         */
+        void onMatched(@NonNull Image image, @NonNull TotalCaptureResult result);
+    }
+
+    private final int mMaxPendingImages;
+    @NonNull
+    private final Listener mListener;
+    private final LinkedHashMap<Long, Image> mPendingImages = new LinkedHashMap<>();
+    private final LinkedHashMap<Long, TotalCaptureResult> mPendingResults = new LinkedHashMap<>();
+
+    /**
+     * @param readerMaxImages {@link android.media.ImageReader#getMaxImages()} of the RAW reader
+     */
+    RawCaptureMatcher(int readerMaxImages, @NonNull Listener listener) {
+        mMaxPendingImages = Math.max(1, readerMaxImages - 1);
+        mListener = listener;
+    }
+
+    void onImage(@NonNull Image image) {
+        long timestamp = image.getTimestamp();
+        TotalCaptureResult result = mPendingResults.remove(timestamp);
+        if (result != null) {
+            mListener.onMatched(image, result);
+            return;
+        }
+        mPendingImages.put(timestamp, image);
+        if (mPendingImages.size() > mMaxPendingImages) {
+            Iterator<Map.Entry<Long, Image>> iterator = mPendingImages.entrySet().iterator();
+            Map.Entry<Long, Image> oldest = iterator.next();
+            Log.w(TAG, "\tno result for RAW image " + oldest.getKey() + ", dropped");
+            ImageTracker.close(oldest.getValue());
+            iterator.remove();
+        }
+    }
+
+    void onResult(@NonNull TotalCaptureResult result) {
+        Long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+        if (timestamp == null) {
+            return;
+        }
+        Image image = mPendingImages.remove(timestamp);
+        if (image != null) {
+            mListener.onMatched(image, result);
+            return;
+        }
+        mPendingResults.put(timestamp, result);
+        if (mPendingResults.size() > MAX_PENDING_RESULTS) {
+            Iterator<Long> oldest = mPendingResults.keySet().iterator();
+            Log.w(TAG, "\tno RAW image for result " + oldest.next() + ", dropped");
+            oldest.remove();
+        }
+    }
+
+    /**
+     * Closes every unmatched image, call before closing the reader.
+     */
+    void clear() {
+        for (Image image : mPendingImages.values()) {
+            ImageTracker.close(image);
+        }
+        mPendingImages.clear();
+        mPendingResults.clear();
+    }
+}
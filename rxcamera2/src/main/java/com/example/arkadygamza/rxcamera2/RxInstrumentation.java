@@ -0,0 +1,360 @@
+package com.example.arkadygamza.rxcamera2;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.reactivex.Observable;
+import io.reactivex.ObservableSource;
+import io.reactivex.Observer;
+import io.reactivex.Single;
+import io.reactivex.SingleObserver;
+import io.reactivex.SingleSource;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.functions.Function;
+import io.reactivex.plugins.RxJavaPlugins;
+
+/**
+ * Measures the reactive plumbing of this library through the {@link RxJavaPlugins} assembly hooks.
+ * <p>
+ * Every {@link Observable} and {@link Single} operator assembled by a class of this package is wrapped, streams are
+ * named by the call site which assembled them, like {@code CameraController.initImageReader:612}. Per stream it counts
+ * live and total subscriptions, emissions, emissions per second since the previous {@link #getStreams()} and the time
+ * spent downstream of the operator in {@code onNext}. Live subscriptions left after the camera is closed are leaks.
+ * <p>
+ * Off by default. Naming takes a stack trace per assembled operator, so install it for diagnostics only, before the
+ * streams to measure are assembled. Hooks installed before are kept and run first.
+ */
+public class RxInstrumentation {
+
+    private static final String PACKAGE_PREFIX = RxInstrumentation.class.getPackage().getName() + ".";
+
+    private static final ConcurrentMap<String, StreamStats> sStreams = new ConcurrentHashMap<>();
+    private static boolean sInstalled;
+    @SuppressWarnings("rawtypes")
+    @Nullable
+    private static Function<? super Observable, ? extends Observable> sPreviousObservableHook;
+    @SuppressWarnings("rawtypes")
+    @Nullable
+    private static Function<? super Single, ? extends Single> sPreviousSingleHook;
+
+    private RxInstrumentation() {
+    }
+
+    /**
+     * Counters of one stream at the time of {@link #getStreams()}
+     */
+    public static class Stream {
+        @NonNull
+        public final String name;
+        public final int liveSubscriptions;
+        public final long totalSubscriptions;
+        public final long emissions;
+        public final float emissionsPerSecond;
+        public final long onNextNanos;
+
+        Stream(@NonNull String name, int liveSubscriptions, long totalSubscriptions, long emissions, float emissionsPerSecond, long onNextNanos) {
+            this.name = name;
+            this.liveSubscriptions = liveSubscriptions;
+            this.totalSubscriptions = totalSubscriptions;
+            this.emissions = emissions;
+            this.emissionsPerSecond = emissionsPerSecond;
+            this.onNextNanos = onNextNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s: %d live of %d subscriptions, %d emissions, %.1f/s, %d us in onNext",
+                name, liveSubscriptions, totalSubscriptions, emissions, emissionsPerSecond, onNextNanos / 1000);
+        }
+    }
+
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    public static synchronized void install() {
+        if (sInstalled) {
+            return;
+        }
+        sInstalled = true;
+        Function<? super Observable, ? extends Observable> previousObservableHook = RxJavaPlugins.getOnObservableAssembly();
+        Function<? super Single, ? extends Single> previousSingleHook = RxJavaPlugins.getOnSingleAssembly();
+        sPreviousObservableHook = previousObservableHook;
+        sPreviousSingleHook = previousSingleHook;
+        RxJavaPlugins.setOnObservableAssembly(observable -> {
+            Observable assembled = previousObservableHook == null ? observable : previousObservableHook.apply(observable);
+            StreamStats stats = findStats();
+            return stats == null ? assembled : new InstrumentedObservable(assembled, stats);
+        });
+        RxJavaPlugins.setOnSingleAssembly(single -> {
+            Single assembled = previousSingleHook == null ? single : previousSingleHook.apply(single);
+            StreamStats stats = findStats();
+            return stats == null ? assembled : new InstrumentedSingle(assembled, stats);
+        });
+    }
+
+    /**
+     * Restores the hooks from before {@link #install()}, streams assembled meanwhile stay instrumented
+     */
+    public static synchronized void uninstall() {
+        if (!sInstalled) {
+            return;
+        }
+        sInstalled = false;
+        RxJavaPlugins.setOnObservableAssembly(sPreviousObservableHook);
+        RxJavaPlugins.setOnSingleAssembly(sPreviousSingleHook);
+        sPreviousObservableHook = null;
+        sPreviousSingleHook = null;
+    }
+
+    public static synchronized boolean isInstalled() {
+        return sInstalled;
+    }
+
+    /**
+     * Forgets the counters, live subscriptions are still counted when they end
+     */
+    public static void reset() {
+        for (StreamStats stats : sStreams.values()) {
+            stats.reset();
+        }
+    }
+
+    /**
+     * @return all streams by name, the emission rate is measured since the previous call
+     */
+    @NonNull
+    public static List<Stream> getStreams() {
+        List<Stream> streams = new ArrayList<>();
+        long now = System.nanoTime();
+        for (StreamStats stats : sStreams.values()) {
+            streams.add(stats.snapshot(now));
+        }
+        Collections.sort(streams, (lhs, rhs) -> lhs.name.compareTo(rhs.name));
+        return streams;
+    }
+
+    /**
+     * @return streams with live subscriptions, after the camera is closed these are leaks
+     */
+    @NonNull
+    public static List<Stream> getUndisposedStreams() {
+        List<Stream> undisposed = new ArrayList<>();
+        for (Stream stream : getStreams()) {
+            if (stream.liveSubscriptions > 0) {
+                undisposed.add(stream);
+            }
+        }
+        return undisposed;
+    }
+
+    @Nullable
+    private static StreamStats findStats() {
+        for (StackTraceElement element : new Throwable().getStackTrace()) {
+            String className = element.getClassName();
+            if (className.startsWith(PACKAGE_PREFIX) && !isInstrumentationClass(className)) {
+                String name = className.substring(PACKAGE_PREFIX.length()) + "." + element.getMethodName() + ":" + element.getLineNumber();
+                StreamStats stats = sStreams.get(name);
+                if (stats == null) {
+                    StreamStats newStats = new StreamStats(name);
+                    stats = sStreams.putIfAbsent(name, newStats);
+                    if (stats == null) {
+                        stats = newStats;
+                    }
+                }
+                return stats;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isInstrumentationClass(@NonNull String className) {
+        String name = RxInstrumentation.class.getName();
+        return className.equals(name) || className.startsWith(name + "$");
+    }
+
+    private static class StreamStats {
+        @NonNull
+        final String name;
+        final AtomicInteger live = new AtomicInteger();
+        final AtomicLong total = new AtomicLong();
+        final AtomicLong emissions = new AtomicLong();
+        final AtomicLong onNextNanos = new AtomicLong();
+        private long mEmissionsAtSnapshot;
+        private long mSnapshotNanos = System.nanoTime();
+
+        StreamStats(@NonNull String name) {
+            this.name = name;
+        }
+
+        void onSubscribe() {
+            live.incrementAndGet();
+            total.incrementAndGet();
+        }
+
+        void onNext(long nanos) {
+            emissions.incrementAndGet();
+            onNextNanos.addAndGet(nanos);
+        }
+
+        synchronized void reset() {
+            total.set(0);
+            emissions.set(0);
+            onNextNanos.set(0);
+            mEmissionsAtSnapshot = 0;
+            mSnapshotNanos = System.nanoTime();
+        }
+
+        @NonNull
+        synchronized Stream snapshot(long now) {
+            long emitted = emissions.get();
+            long elapsedNanos = now - mSnapshotNanos;
+            float perSecond = elapsedNanos > 0 ? (emitted - mEmissionsAtSnapshot) * 1e9f / elapsedNanos : 0;
+            mEmissionsAtSnapshot = emitted;
+            mSnapshotNanos = now;
+            return new Stream(name, live.get(), total.get(), emitted, perSecond, onNextNanos.get());
+        }
+    }
+
+    /**
+     * Ends the counted subscription once, whichever of terminate or dispose comes first
+     */
+    private static abstract class InstrumentedSubscription implements Disposable {
+        @NonNull
+        final StreamStats mStats;
+        private final AtomicBoolean mReleased = new AtomicBoolean();
+        Disposable mUpstream;
+
+        InstrumentedSubscription(@NonNull StreamStats stats) {
+            mStats = stats;
+        }
+
+        void onSubscribe(@NonNull Disposable upstream) {
+            mUpstream = upstream;
+            mStats.onSubscribe();
+        }
+
+        void release() {
+            if (mReleased.compareAndSet(false, true)) {
+                mStats.live.decrementAndGet();
+            }
+        }
+
+        @Override
+        public void dispose() {
+            release();
+            mUpstream.dispose();
+        }
+
+        @Override
+        public boolean isDisposed() {
+            return mUpstream.isDisposed();
+        }
+    }
+
+    private static class InstrumentedObservable<T> extends Observable<T> {
+        @NonNull
+        private final ObservableSource<T> mSource;
+        @NonNull
+        private final StreamStats mStats;
+
+        InstrumentedObservable(@NonNull ObservableSource<T> source, @NonNull StreamStats stats) {
+            mSource = source;
+            mStats = stats;
+        }
+
+        @Override
+        protected void subscribeActual(Observer<? super T> observer) {
+            mSource.subscribe(new InstrumentedObserver<>(observer, mStats));
+        }
+    }
+
+    private static class InstrumentedObserver<T> extends InstrumentedSubscription implements Observer<T> {
+        @NonNull
+        private final Observer<? super T> mDownstream;
+
+        InstrumentedObserver(@NonNull Observer<? super T> downstream, @NonNull StreamStats stats) {
+            super(stats);
+            mDownstream = downstream;
+        }
+
+        @Override
+        public void onSubscribe(Disposable upstream) {
+            super.onSubscribe(upstream);
+            mDownstream.onSubscribe(this);
+        }
+
+        @Override
+        public void onNext(T value) {
+            long startNanos = System.nanoTime();
+            mDownstream.onNext(value);
+            mStats.onNext(System.nanoTime() - startNanos);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            release();
+            mDownstream.onError(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            release();
+            mDownstream.onComplete();
+        }
+    }
+
+    private static class InstrumentedSingle<T> extends Single<T> {
+        @NonNull
+        private final SingleSource<T> mSource;
+        @NonNull
+        private final StreamStats mStats;
+
+        InstrumentedSingle(@NonNull SingleSource<T> source, @NonNull StreamStats stats) {
+            mSource = source;
+            mStats = stats;
+        }
+
+        @Override
+        protected void subscribeActual(SingleObserver<? super T> observer) {
+            mSource.subscribe(new InstrumentedSingleObserver<>(observer, mStats));
+        }
+    }
+
+    private static class InstrumentedSingleObserver<T> extends InstrumentedSubscription implements SingleObserver<T> {
+        @NonNull
+        private final SingleObserver<? super T> mDownstream;
+
+        InstrumentedSingleObserver(@NonNull SingleObserver<? super T> downstream, @NonNull StreamStats stats) {
+            super(stats);
+            mDownstream = downstream;
+        }
+
+        @Override
+        public void onSubscribe(Disposable upstream) {
+            super.onSubscribe(upstream);
+            mDownstream.onSubscribe(this);
+        }
+
+        @Override
+        public void onSuccess(T value) {
+            release();
+            long startNanos = System.nanoTime();
+            mDownstream.onSuccess(value);
+            mStats.onNext(System.nanoTime() - startNanos);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            release();
+            mDownstream.onError(throwable);
+        }
+    }
+}
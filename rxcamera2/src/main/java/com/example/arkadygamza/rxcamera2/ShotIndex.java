@@ -0,0 +1,255 @@
+package com.example.arkadygamza.rxcamera2;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Append-only index of per-shot metadata kept next to the photos, so galleries and analytics don't parse EXIF.
+ * <p>
+ * Records have a fixed size of {@link #RECORD_SIZE} bytes and are ordered by {@link Shot#takenAtMillis}, time range queries
+ * binary search the file and read only the matching records. A torn last record (the app died while appending) is cut off
+ * when the index is opened. Thread safe.
+ */
+public class ShotIndex implements Closeable {
+
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    public static final String FILE_NAME = "shots.index";
+    private static final int NAME_SIZE = 32;
+    static final int RECORD_SIZE = 8 + 8 + 8 + 4 + 4 + 4 + 4 * 4 + NAME_SIZE;
+
+    public static final int UNKNOWN = -1;
+
+    /**
+     * Metadata of a single photo, {@link #UNKNOWN} for values the camera didn't report
+     */
+    public static class Shot {
+        /**
+         * Photo file name in the capture directory
+         */
+        @NonNull
+        public final String fileName;
+        /**
+         * Wall clock time, never less than the previous shot's
+         */
+        public final long takenAtMillis;
+        public final long sensorTimestampNanos;
+        public final long exposureTimeNanos;
+        public final int iso;
+        /**
+         * In diopters, 0 is infinity
+         */
+        public final float focusDistance;
+        /**
+         * {@link android.hardware.camera2.CameraCharacteristics#LENS_FACING}
+         */
+        public final int lensFacing;
+        public final int autoFocusMillis;
+        public final int autoExposureMillis;
+        /**
+         * From the capture request to its result
+         */
+        public final int captureMillis;
+        /**
+         * From the capture result to the committed file
+         */
+        public final int saveMillis;
+
+        public Shot(@NonNull String fileName, long takenAtMillis, long sensorTimestampNanos, long exposureTimeNanos, int iso,
+                    float focusDistance, int lensFacing, int autoFocusMillis, int autoExposureMillis, int captureMillis, int saveMillis) {
+            this.fileName = fileName;
+            this.takenAtMillis = takenAtMillis;
+            this.sensorTimestampNanos = sensorTimestampNanos;
+            this.exposureTimeNanos = exposureTimeNanos;
+            this.iso = iso;
+            this.focusDistance = focusDistance;
+            this.lensFacing = lensFacing;
+            this.autoFocusMillis = autoFocusMillis;
+            this.autoExposureMillis = autoExposureMillis;
+            this.captureMillis = captureMillis;
+            this.saveMillis = saveMillis;
+        }
+
+        @NonNull
+        Shot withTakenAtMillis(long takenAtMillis) {
+            return new Shot(fileName, takenAtMillis, sensorTimestampNanos, exposureTimeNanos, iso, focusDistance, lensFacing,
+                autoFocusMillis, autoExposureMillis, captureMillis, saveMillis);
+        }
+
+        @Override
+        public String toString() {
+            return fileName + " at " + takenAtMillis + ", exposure " + exposureTimeNanos + " ns, ISO " + iso
+                + ", stages " + autoFocusMillis + "/" + autoExposureMillis + "/" + captureMillis + "/" + saveMillis + " ms";
+        }
+    }
+
+    @NonNull
+    private final File mFile;
+    private final ByteBuffer mRecord = ByteBuffer.allocate(RECORD_SIZE);
+    @Nullable
+    private FileChannel mChannel;
+    private long mLastTakenAtMillis = Long.MIN_VALUE;
+
+    public ShotIndex(@NonNull File file) {
+        mFile = file;
+    }
+
+    /**
+     * Appends the shot, its time is raised to the last shot's if the wall clock went back.
+     */
+    public synchronized void append(@NonNull Shot shot) throws IOException {
+        FileChannel channel = open();
+        if (shot.takenAtMillis < mLastTakenAtMillis) {
+            shot = shot.withTakenAtMillis(mLastTakenAtMillis);
+        }
+        mRecord.clear();
+        mRecord.putLong(shot.takenAtMillis)
+            .putLong(shot.sensorTimestampNanos)
+            .putLong(shot.exposureTimeNanos)
+            .putInt(shot.iso)
+            .putFloat(shot.focusDistance)
+            .putInt(shot.lensFacing)
+            .putInt(shot.autoFocusMillis)
+            .putInt(shot.autoExposureMillis)
+            .putInt(shot.captureMillis)
+            .putInt(shot.saveMillis);
+        byte[] name = shot.fileName.getBytes(US_ASCII);
+        if (name.length > NAME_SIZE) {
+            throw new IllegalArgumentException("File name is too long: " + shot.fileName);
+        }
+        mRecord.put(name);
+        while (mRecord.hasRemaining()) {
+            mRecord.put((byte) 0);
+        }
+        mRecord.flip();
+        long position = channel.size();
+        while (mRecord.hasRemaining()) {
+            position += channel.write(mRecord, position);
+        }
+        mLastTakenAtMillis = shot.takenAtMillis;
+    }
+
+    public synchronized int size() throws IOException {
+        return (int) (open().size() / RECORD_SIZE);
+    }
+
+    /**
+     * @param fromMillis inclusive
+     * @param toMillis   exclusive
+     * @param lensFacing only shots of this camera facing, null for all
+     * @return shots in the range, oldest first
+     */
+    @NonNull
+    public synchronized List<Shot> query(long fromMillis, long toMillis, @Nullable Integer lensFacing) throws IOException {
+        List<Shot> shots = new ArrayList<>();
+        int count = size();
+        for (int i = lowerBound(fromMillis, count); i < count; i++) {
+            Shot shot = read(i);
+            if (shot.takenAtMillis >= toMillis) {
+                break;
+            }
+            if (lensFacing == null || shot.lensFacing == lensFacing) {
+                shots.add(shot);
+            }
+        }
+        return shots;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (mChannel != null) {
+            mChannel.close();
+            mChannel = null;
+        }
+    }
+
+    /**
+     * @return index of the first record taken at or after the time
+     */
+    private int lowerBound(long millis, int count) throws IOException {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (readTakenAtMillis(middle) < millis) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private long readTakenAtMillis(int index) throws IOException {
+        mRecord.clear();
+        mRecord.limit(8);
+        readFully((long) index * RECORD_SIZE);
+        return mRecord.getLong(0);
+    }
+
+    @NonNull
+    private Shot read(int index) throws IOException {
+        mRecord.clear();
+        readFully((long) index * RECORD_SIZE);
+        mRecord.flip();
+        long takenAtMillis = mRecord.getLong();
+        long sensorTimestampNanos = mRecord.getLong();
+        long exposureTimeNanos = mRecord.getLong();
+        int iso = mRecord.getInt();
+        float focusDistance = mRecord.getFloat();
+        int lensFacing = mRecord.getInt();
+        int autoFocusMillis = mRecord.getInt();
+        int autoExposureMillis = mRecord.getInt();
+        int captureMillis = mRecord.getInt();
+        int saveMillis = mRecord.getInt();
+        int nameLength = 0;
+        while (nameLength < NAME_SIZE && mRecord.get(mRecord.position() + nameLength) != 0) {
+            nameLength++;
+        }
+        String fileName = new String(mRecord.array(), mRecord.position(), nameLength, US_ASCII);
+        return new Shot(fileName, takenAtMillis, sensorTimestampNanos, exposureTimeNanos, iso, focusDistance, lensFacing,
+            autoFocusMillis, autoExposureMillis, captureMillis, saveMillis);
+    }
+
+    private void readFully(long position) throws IOException {
+        FileChannel channel = open();
+        while (mRecord.hasRemaining()) {
+            int read = channel.read(mRecord, position + mRecord.position());
+            if (read < 0) {
+                throw new IOException("Unexpected end of " + mFile);
+            }
+        }
+    }
+
+    @NonNull
+    private FileChannel open() throws IOException {
+        if (mChannel == null) {
+            File directory = mFile.getParentFile();
+            if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Can't create " + directory);
+            }
+            FileChannel channel = new RandomAccessFile(mFile, "rw").getChannel();
+            long size = channel.size();
+            if (size % RECORD_SIZE != 0) {
+                channel.truncate(size - size % RECORD_SIZE);
+            }
+            mChannel = channel;
+            int count = (int) (channel.size() / RECORD_SIZE);
+            if (count > 0) {
+                mLastTakenAtMillis = readTakenAtMillis(count - 1);
+            }
+        }
+        return mChannel;
+    }
+}
@@ -0,0 +1,76 @@
+package com.example.arkadygamza.rxcamera2;
+
+import android.support.annotation.NonNull;
+
+import java.util.Locale;
+
+/**
+ * Time from the start of a shot (AF and AE waits included) to its capture result, the first shot of every session
+ * apart from the rest. The first one also pays for output buffers allocated lazily, unless they are prepared, see
+ * {@link CameraController#setSurfacePrewarmEnabled(boolean)}.
+ * Thread safe.
+ */
+public class ShotLatencyStats {
+
+    public static class Latency {
+        public final int shots;
+        public final long meanMillis;
+        public final long maxMillis;
+
+        Latency(int shots, long meanMillis, long maxMillis) {
+            this.shots = shots;
+            this.meanMillis = meanMillis;
+            this.maxMillis = maxMillis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%d shots, mean %d ms, max %d ms", shots, meanMillis, maxMillis);
+        }
+    }
+
+    private final Accumulator mFirstShots = new Accumulator();
+    private final Accumulator mSteadyShots = new Accumulator();
+
+    synchronized void onShot(boolean firstInSession, long millis) {
+        (firstInSession ? mFirstShots : mSteadyShots).add(millis);
+    }
+
+    /**
+     * @return the first shots of the sessions
+     */
+    @NonNull
+    public synchronized Latency getFirstShot() {
+        return mFirstShots.toLatency();
+    }
+
+    /**
+     * @return all shots but the first ones of the sessions
+     */
+    @NonNull
+    public synchronized Latency getSteadyState() {
+        return mSteadyShots.toLatency();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "first shot: " + getFirstShot() + ", steady state: " + getSteadyState();
+    }
+
+    private static class Accumulator {
+        private int mShots;
+        private long mTotalMillis;
+        private long mMaxMillis;
+
+        void add(long millis) {
+            mShots++;
+            mTotalMillis += millis;
+            mMaxMillis = Math.max(mMaxMillis, millis);
+        }
+
+        @NonNull
+        Latency toLatency() {
+            return new Latency(mShots, mShots == 0 ? 0 : mTotalMillis / mShots, mMaxMillis);
+        }
+    }
+}
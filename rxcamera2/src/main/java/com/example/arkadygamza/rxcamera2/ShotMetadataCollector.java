@@ -0,0 +1,145 @@
+package com.example.arkadygamza.rxcamera2;
+
+import android.annotation.TargetApi;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.TotalCaptureResult;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Builds {@link ShotIndex.Shot}s of one camera from the capture results and the saved JPEG files, they arrive independently
+ * in any order and are paired by {@link CaptureResult#SENSOR_TIMESTAMP} like in {@link RawCaptureMatcher}.
+ * Keeps at most {@link #MAX_PENDING} unmatched items of each kind. Results come on the main thread, files on the io one.
+ */
+@TargetApi(21)
+class ShotMetadataCollector {
+
+    private static final String TAG = ShotMetadataCollector.class.getSimpleName();
+    private static final int MAX_PENDING = 4;
+
+    interface Listener {
+        void onShot(@NonNull ShotIndex.Shot shot);
+    }
+
+    /**
+     * Measures consecutive stages of a shot
+     */
+    static class StageTimer {
+        private long mStageStartMillis = SystemClock.elapsedRealtime();
+
+        /**
+         * @return duration of the stage that just ended, the next one starts now
+         */
+        int lap() {
+            long now = SystemClock.elapsedRealtime();
+            int millis = (int) (now - mStageStartMillis);
+            mStageStartMillis = now;
+            return millis;
+        }
+    }
+
+    private static class PendingResult {
+        final long takenAtMillis;
+        final long resultAtElapsedMillis;
+        @NonNull
+        final TotalCaptureResult result;
+        final int autoFocusMillis;
+        final int autoExposureMillis;
+        final int captureMillis;
+
+        PendingResult(@NonNull TotalCaptureResult result, int autoFocusMillis, int autoExposureMillis, int captureMillis) {
+            this.takenAtMillis = System.currentTimeMillis();
+            this.resultAtElapsedMillis = SystemClock.elapsedRealtime();
+            this.result = result;
+            this.autoFocusMillis = autoFocusMillis;
+            this.autoExposureMillis = autoExposureMillis;
+            this.captureMillis = captureMillis;
+        }
+    }
+
+    private final int mLensFacing;
+    @NonNull
+    private final Listener mListener;
+    private final LinkedHashMap<Long, PendingResult> mPendingResults = new LinkedHashMap<>();
+    private final LinkedHashMap<Long, File> mPendingFiles = new LinkedHashMap<>();
+
+    /**
+     * @param lensFacing {@link ShotIndex#UNKNOWN} if the camera doesn't report it
+     */
+    ShotMetadataCollector(int lensFacing, @NonNull Listener listener) {
+        mLensFacing = lensFacing;
+        mListener = listener;
+    }
+
+    void onResult(@NonNull TotalCaptureResult result, int autoFocusMillis, int autoExposureMillis, int captureMillis) {
+        Long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+        if (timestamp == null) {
+            Log.w(TAG, "\tno sensor timestamp in the still result, the shot is not indexed");
+            return;
+        }
+        PendingResult pendingResult = new PendingResult(result, autoFocusMillis, autoExposureMillis, captureMillis);
+        File file;
+        synchronized (this) {
+            file = mPendingFiles.remove(timestamp);
+            if (file == null) {
+                putBounded(mPendingResults, timestamp, pendingResult);
+                return;
+            }
+        }
+        mListener.onShot(createShot(timestamp, file, pendingResult));
+    }
+
+    void onSaved(long timestamp, @NonNull File file) {
+        PendingResult pendingResult;
+        synchronized (this) {
+            pendingResult = mPendingResults.remove(timestamp);
+            if (pendingResult == null) {
+                putBounded(mPendingFiles, timestamp, file);
+                return;
+            }
+        }
+        mListener.onShot(createShot(timestamp, file, pendingResult));
+    }
+
+    @NonNull
+    private ShotIndex.Shot createShot(long timestamp, @NonNull File file, @NonNull PendingResult pending) {
+        TotalCaptureResult result = pending.result;
+        return new ShotIndex.Shot(
+            file.getName(),
+            pending.takenAtMillis,
+            timestamp,
+            orUnknown(result.get(CaptureResult.SENSOR_EXPOSURE_TIME)),
+            (int) orUnknown(result.get(CaptureResult.SENSOR_SENSITIVITY)),
+            orUnknown(result.get(CaptureResult.LENS_FOCUS_DISTANCE)),
+            mLensFacing,
+            pending.autoFocusMillis,
+            pending.autoExposureMillis,
+            pending.captureMillis,
+            (int) (SystemClock.elapsedRealtime() - pending.resultAtElapsedMillis)
+        );
+    }
+
+    private static <T> void putBounded(@NonNull LinkedHashMap<Long, T> pending, long timestamp, @NonNull T value) {
+        pending.put(timestamp, value);
+        if (pending.size() > MAX_PENDING) {
+            Iterator<Map.Entry<Long, T>> iterator = pending.entrySet().iterator();
+            Log.w(TAG, "\tshot " + iterator.next().getKey() + " is not matched, not indexed");
+            iterator.remove();
+        }
+    }
+
+    private static long orUnknown(@Nullable Number value) {
+        return value == null ? ShotIndex.UNKNOWN : value.longValue();
+    }
+
+    private static float orUnknown(@Nullable Float value) {
+        return value == null ? ShotIndex.UNKNOWN : value;
+    }
+}
@@ -0,0 +1,303 @@
+package com.example.arkadygamza.rxcamera2;
+
+import android.annotation.TargetApi;
+import android.graphics.ImageFormat;
+import android.graphics.SurfaceTexture;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Size;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Guaranteed stream combinations of {@link android.hardware.camera2.CameraDevice#createCaptureSession}, checked before the
+ * session is created, so a configuration the HAL may reject is degraded locally instead of failing in
+ * {@code onConfigureFailed} after a round trip.
+ * <p>
+ * Tables follow the {@code CameraDevice} documentation per hardware level, plus the RAW capability ones.
+ * The RECORD size is taken as PREVIEW, because the recording profile isn't known here, which only makes checks stricter.
+ */
+@TargetApi(21)
+class StreamCombinations {
+
+    enum Format {
+        /**
+         * Implementation defined, {@link SurfaceTexture} preview
+         */
+        PRIV,
+        YUV,
+        JPEG,
+        RAW
+    }
+
+    enum SizeClass {
+        VGA,
+        /**
+         * The smaller of the display size and 1080p
+         */
+        PREVIEW,
+        RECORD,
+        /**
+         * The biggest size of the format
+         */
+        MAXIMUM
+    }
+
+    static class Stream {
+        @NonNull
+        final Format format;
+        @NonNull
+        final Size size;
+
+        Stream(@NonNull Format format, @NonNull Size size) {
+            this.format = format;
+            this.size = size;
+        }
+
+        @Override
+        public String toString() {
+            return format + " " + size;
+        }
+    }
+
+    private static class Slot {
+        @NonNull
+        final Format format;
+        @NonNull
+        final SizeClass sizeClass;
+
+        Slot(@NonNull Format format, @NonNull SizeClass sizeClass) {
+            this.format = format;
+            this.sizeClass = sizeClass;
+        }
+    }
+
+    private static final Size VGA = new Size(640, 480);
+    private static final Size MAX_PREVIEW = new Size(1920, 1080);
+
+    private static final Slot[][] LEGACY = {
+        {slot(Format.PRIV, SizeClass.MAXIMUM)},
+        {slot(Format.JPEG, SizeClass.MAXIMUM)},
+        {slot(Format.YUV, SizeClass.MAXIMUM)},
+        {slot(Format.PRIV, SizeClass.PREVIEW), slot(Format.JPEG, SizeClass.MAXIMUM)},
+        {slot(Format.YUV, SizeClass.PREVIEW), slot(Format.JPEG, SizeClass.MAXIMUM)},
+        {slot(Format.PRIV, SizeClass.PREVIEW), slot(Format.PRIV, SizeClass.PREVIEW)},
+        {slot(Format.PRIV, SizeClass.PREVIEW), slot(Format.YUV, SizeClass.PREVIEW)},
+        {slot(Format.PRIV, SizeClass.PREVIEW), slot(Format.YUV, SizeClass.PREVIEW), slot(Format.JPEG, SizeClass.MAXIMUM)},
+    };
+
+    private static final Slot[][] LIMITED = {
+        {slot(Format.PRIV, SizeClass.PREVIEW), slot(Format.PRIV, SizeClass.RECORD)},
+        {slot(Format.PRIV, SizeClass.PREVIEW), slot(Format.YUV, SizeClass.RECORD)},
+        {slot(Format.YUV, SizeClass.PREVIEW), slot(Format.YUV, SizeClass.RECORD)},
+        {slot(Format.PRIV, SizeClass.PREVIEW), slot(Format.PRIV, SizeClass.RECORD), slot(Format.JPEG, SizeClass.RECORD)},
+        {slot(Format.PRIV, SizeClass.PREVIEW), slot(Format.YUV, SizeClass.RECORD), slot(Format.JPEG, SizeClass.RECORD)},
+        {slot(Format.YUV, SizeClass.PREVIEW), slot(Format.YUV, SizeClass.PREVIEW), slot(Format.JPEG, SizeClass.MAXIMUM)},
+    };
+
+    private static final Slot[][] FULL = {
+        {slot(Format.PRIV, SizeClass.PREVIEW), slot(Format.PRIV, SizeClass.MAXIMUM)},
+        {slot(Format.PRIV, SizeClass.PREVIEW), slot(Format.YUV, SizeClass.MAXIMUM)},
+        {slot(Format.YUV, SizeClass.PREVIEW), slot(Format.YUV, SizeClass.MAXIMUM)},
+        {slot(Format.PRIV, SizeClass.PREVIEW), slot(Format.PRIV, SizeClass.PREVIEW), slot(Format.JPEG, SizeClass.MAXIMUM)},
+        {slot(Format.YUV, SizeClass.VGA), slot(Format.PRIV, SizeClass.PREVIEW), slot(Format.YUV, SizeClass.MAXIMUM)},
+        {slot(Format.YUV, SizeClass.VGA), slot(Format.YUV, SizeClass.PREVIEW), slot(Format.YUV, SizeClass.MAXIMUM)},
+    };
+
+    private static final Slot[][] RAW = {
+        {slot(Format.RAW, SizeClass.MAXIMUM)},
+        {slot(Format.PRIV, SizeClass.PREVIEW), slot(Format.RAW, SizeClass.MAXIMUM)},
+        {slot(Format.YUV, SizeClass.PREVIEW), slot(Format.RAW, SizeClass.MAXIMUM)},
+        {slot(Format.PRIV, SizeClass.PREVIEW), slot(Format.PRIV, SizeClass.PREVIEW), slot(Format.RAW, SizeClass.MAXIMUM)},
+        {slot(Format.PRIV, SizeClass.PREVIEW), slot(Format.YUV, SizeClass.PREVIEW), slot(Format.RAW, SizeClass.MAXIMUM)},
+        {slot(Format.YUV, SizeClass.PREVIEW), slot(Format.YUV, SizeClass.PREVIEW), slot(Format.RAW, SizeClass.MAXIMUM)},
+        {slot(Format.PRIV, SizeClass.PREVIEW), slot(Format.JPEG, SizeClass.MAXIMUM), slot(Format.RAW, SizeClass.MAXIMUM)},
+        {slot(Format.YUV, SizeClass.PREVIEW), slot(Format.JPEG, SizeClass.MAXIMUM), slot(Format.RAW, SizeClass.MAXIMUM)},
+    };
+
+    private static final Slot[][] LEVEL_3 = {
+        {slot(Format.PRIV, SizeClass.PREVIEW), slot(Format.PRIV, SizeClass.VGA), slot(Format.YUV, SizeClass.MAXIMUM), slot(Format.RAW, SizeClass.MAXIMUM)},
+        {slot(Format.PRIV, SizeClass.PREVIEW), slot(Format.PRIV, SizeClass.VGA), slot(Format.JPEG, SizeClass.MAXIMUM), slot(Format.RAW, SizeClass.MAXIMUM)},
+    };
+
+    @NonNull
+    private final List<Slot[]> mCombinations = new ArrayList<>();
+    @NonNull
+    private final StreamConfigurationMap mMap;
+    @NonNull
+    private final Size mPreviewBound;
+
+    /**
+     * @param displaySize size of the display in pixels, in any orientation
+     */
+    StreamCombinations(@NonNull CameraCharacteristics characteristics, @NonNull Size displaySize) {
+        mMap = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+        Size landscapeDisplay = toLandscape(displaySize);
+        mPreviewBound = new Size(
+            Math.min(landscapeDisplay.getWidth(), MAX_PREVIEW.getWidth()),
+            Math.min(landscapeDisplay.getHeight(), MAX_PREVIEW.getHeight())
+        );
+        Integer level = characteristics.get(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL);
+        mCombinations.addAll(Arrays.asList(LEGACY));
+        boolean limited = level != null && level != CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY;
+        boolean full = level != null && (level == CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL_FULL
+            || level == CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL_3);
+        if (limited) {
+            mCombinations.addAll(Arrays.asList(LIMITED));
+        }
+        if (full) {
+            mCombinations.addAll(Arrays.asList(FULL));
+        }
+        if (hasRawCapability(characteristics)) {
+            mCombinations.addAll(Arrays.asList(RAW));
+        }
+        if (level != null && level == CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL_3) {
+            mCombinations.addAll(Arrays.asList(LEVEL_3));
+        }
+    }
+
+    /**
+     * @return the largest size a stream of the preview size class may have, landscape
+     */
+    @NonNull
+    Size getPreviewBound() {
+        return mPreviewBound;
+    }
+
+    /**
+     * @return true if the streams fit one of the guaranteed combinations
+     */
+    boolean isGuaranteed(@NonNull List<Stream> streams) {
+        for (Slot[] combination : mCombinations) {
+            if (combination.length >= streams.size() && assign(streams, 0, combination, new boolean[combination.length])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Backtracks over the slots, combinations have at most four of them
+     */
+    private boolean assign(@NonNull List<Stream> streams, int index, @NonNull Slot[] combination, @NonNull boolean[] used) {
+        if (index == streams.size()) {
+            return true;
+        }
+        Stream stream = streams.get(index);
+        for (int i = 0; i < combination.length; i++) {
+            if (!used[i] && fits(stream, combination[i])) {
+                used[i] = true;
+                if (assign(streams, index + 1, combination, used)) {
+                    return true;
+                }
+                used[i] = false;
+            }
+        }
+        return false;
+    }
+
+    private boolean fits(@NonNull Stream stream, @NonNull Slot slot) {
+        if (stream.format != slot.format) {
+            return false;
+        }
+        Size bound;
+        switch (slot.sizeClass) {
+            case VGA:
+                bound = VGA;
+                break;
+            case PREVIEW:
+            case RECORD:
+                bound = mPreviewBound;
+                break;
+            default:
+                // any size the format lists, MAXIMUM is the biggest of them
+                return isListed(stream);
+        }
+        Size size = toLandscape(stream.size);
+        return size.getWidth() <= bound.getWidth() && size.getHeight() <= bound.getHeight() && isListed(stream);
+    }
+
+    private boolean isListed(@NonNull Stream stream) {
+        Size[] sizes;
+        switch (stream.format) {
+            case PRIV:
+                sizes = mMap.getOutputSizes(SurfaceTexture.class);
+                break;
+            case YUV:
+                sizes = mMap.getOutputSizes(ImageFormat.YUV_420_888);
+                break;
+            case JPEG:
+                sizes = mMap.getOutputSizes(ImageFormat.JPEG);
+                break;
+            default:
+                sizes = mMap.getOutputSizes(ImageFormat.RAW_SENSOR);
+        }
+        return sizes != null && Arrays.asList(sizes).contains(stream.size);
+    }
+
+    private static boolean hasRawCapability(@NonNull CameraCharacteristics characteristics) {
+        int[] capabilities = characteristics.get(CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES);
+        if (capabilities != null) {
+            for (int capability : capabilities) {
+                if (capability == CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES_RAW) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    @NonNull
+    private static Size toLandscape(@NonNull Size size) {
+        return size.getWidth() >= size.getHeight() ? size : new Size(size.getHeight(), size.getWidth());
+    }
+
+    @NonNull
+    private static Slot slot(@NonNull Format format, @NonNull SizeClass sizeClass) {
+        return new Slot(format, sizeClass);
+    }
+
+    /**
+     * Sizes of the session outputs, RAW and the multi-frame YUV are null if not used
+     */
+    static class StreamSizes {
+        @NonNull
+        final Size previewSize;
+        @NonNull
+        final Size stillSize;
+        @Nullable
+        final Size rawSize;
+        @Nullable
+        final Size yuvSize;
+
+        StreamSizes(@NonNull Size previewSize, @NonNull Size stillSize, @Nullable Size rawSize, @Nullable Size yuvSize) {
+            this.previewSize = previewSize;
+            this.stillSize = stillSize;
+            this.rawSize = rawSize;
+            this.yuvSize = yuvSize;
+        }
+
+        @NonNull
+        List<Stream> toStreams() {
+            List<Stream> streams = new ArrayList<>();
+            streams.add(new Stream(Format.PRIV, previewSize));
+            streams.add(new Stream(Format.JPEG, stillSize));
+            if (rawSize != null) {
+                streams.add(new Stream(Format.RAW, rawSize));
+            }
+            if (yuvSize != null) {
+                streams.add(new Stream(Format.YUV, yuvSize));
+            }
+            return streams;
+        }
+
+        @Override
+        public String toString() {
+            return toStreams().toString();
+        }
+    }
+}
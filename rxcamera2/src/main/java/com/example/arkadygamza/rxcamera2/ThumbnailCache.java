@@ -0,0 +1,254 @@
+package com.example.arkadygamza.rxcamera2;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.media.ExifInterface;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.reactivex.Completable;
+import io.reactivex.Observable;
+import io.reactivex.Scheduler;
+import io.reactivex.Single;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.schedulers.Schedulers;
+
+/**
+ * Thumbnails of the photos of a {@link CaptureStore} directory, for galleries over thousands of shots.
+ * <p>
+ * Two layers: JPEG files in {@value #DIRECTORY_NAME} next to the photos, written when a photo is taken, and an LRU of
+ * decoded bitmaps limited by their byte size. A thumbnail is made from the thumbnail embedded into the photo, or from a
+ * subsampled decode if there is none, a full resolution photo is never decoded. Thumbnail files are written into a temp
+ * file and renamed like the photos. Loading and prefetching run on a small pool of decoder threads.
+ */
+public class ThumbnailCache {
+
+    private static final String TAG = ThumbnailCache.class.getSimpleName();
+    private static final String DIRECTORY_NAME = ".thumbnails";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int DEFAULT_SIZE = 256;
+    private static final int QUALITY = 85;
+    private static final int DECODER_THREADS = 2;
+    private static final AtomicInteger sDecoderThreadCount = new AtomicInteger();
+    private static final Scheduler DECODER_SCHEDULER = Schedulers.from(Executors.newFixedThreadPool(DECODER_THREADS, runnable -> {
+        Thread thread = new Thread(runnable, "ThumbnailDecoder-" + sDecoderThreadCount.incrementAndGet());
+        thread.setPriority(Thread.NORM_PRIORITY - 1);
+        return thread;
+    }));
+    private static final Map<File, ThumbnailCache> sInstances = new HashMap<>();
+
+    @NonNull
+    private final File mDirectory;
+    private final int mSize;
+    @NonNull
+    private final LruCache<String, Bitmap> mMemoryCache;
+    /**
+     * Photos being made into thumbnails, so concurrent loads of one photo decode it once
+     */
+    private final Set<String> mInFlight = new HashSet<>();
+
+    /**
+     * @param size        minimum width and height of a thumbnail, in pixels
+     * @param memoryBytes limit of the decoded bitmaps kept in memory
+     */
+    public ThumbnailCache(@NonNull File photoDirectory, int size, int memoryBytes) {
+        mDirectory = new File(photoDirectory, DIRECTORY_NAME);
+        mSize = size;
+        mMemoryCache = new LruCache<String, Bitmap>(memoryBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getByteCount();
+            }
+        };
+    }
+
+    /**
+     * @return the cache shared by everything in the process using the directory, with an eighth of the heap for bitmaps
+     */
+    @NonNull
+    public static ThumbnailCache forDirectory(@NonNull File photoDirectory) {
+        synchronized (sInstances) {
+            ThumbnailCache cache = sInstances.get(photoDirectory);
+            if (cache == null) {
+                cache = new ThumbnailCache(photoDirectory, DEFAULT_SIZE, (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 8));
+                sInstances.put(photoDirectory, cache);
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * @return the thumbnail if it is in memory, doesn't touch the disk
+     */
+    @Nullable
+    public Bitmap getCached(@NonNull File photo) {
+        return mMemoryCache.get(photo.getName());
+    }
+
+    /**
+     * @return the thumbnail from memory, from disk, or made from the photo, on a decoder thread
+     */
+    @NonNull
+    public Single<Bitmap> load(@NonNull File photo) {
+        return Single.fromCallable(() -> get(photo)).subscribeOn(DECODER_SCHEDULER);
+    }
+
+    /**
+     * Loads thumbnails of the photos into memory in the given order, the ones already there are skipped.
+     * Disposing stops before the next photo, so a stale prefetch doesn't delay the one of a new scroll position.
+     */
+    @NonNull
+    public Disposable prefetch(@NonNull List<File> photos) {
+        return Observable.fromIterable(photos)
+            .filter(photo -> getCached(photo) == null)
+            .concatMapCompletable(photo -> Completable.fromAction(() -> get(photo)).onErrorComplete())
+            .subscribeOn(DECODER_SCHEDULER)
+            .subscribe();
+    }
+
+    /**
+     * Makes the thumbnail of a just taken photo, call it off the main thread.
+     */
+    public void onPhotoTaken(@NonNull File photo) throws IOException {
+        get(photo);
+    }
+
+    @NonNull
+    private Bitmap get(@NonNull File photo) throws IOException {
+        String name = photo.getName();
+        Bitmap bitmap = mMemoryCache.get(name);
+        if (bitmap != null) {
+            return bitmap;
+        }
+        synchronized (mInFlight) {
+            while (mInFlight.contains(name)) {
+                try {
+                    mInFlight.wait();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for the thumbnail of " + name);
+                }
+            }
+            mInFlight.add(name);
+        }
+        try {
+            bitmap = mMemoryCache.get(name);
+            if (bitmap == null) {
+                bitmap = readOrCreate(photo);
+                mMemoryCache.put(name, bitmap);
+            }
+            return bitmap;
+        }
+        finally {
+            synchronized (mInFlight) {
+                mInFlight.remove(name);
+                mInFlight.notifyAll();
+            }
+        }
+    }
+
+    @NonNull
+    private Bitmap readOrCreate(@NonNull File photo) throws IOException {
+        File file = new File(mDirectory, photo.getName());
+        if (file.isFile()) {
+            Bitmap bitmap = BitmapFactory.decodeFile(file.getPath());
+            if (bitmap != null) {
+                return bitmap;
+            }
+            Log.w(TAG, "\tbroken thumbnail " + file + ", recreating");
+        }
+        Bitmap bitmap = create(photo);
+        write(bitmap, file);
+        return bitmap;
+    }
+
+    @NonNull
+    private Bitmap create(@NonNull File photo) throws IOException {
+        ExifInterface exif = new ExifInterface(photo.getPath());
+        byte[] embedded = exif.getThumbnail();
+        Bitmap bitmap = null;
+        if (embedded != null) {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = getSampleSize(embedded);
+            bitmap = BitmapFactory.decodeByteArray(embedded, 0, embedded.length, options);
+        }
+        if (bitmap == null) {
+            BitmapFactory.Options bounds = new BitmapFactory.Options();
+            bounds.inJustDecodeBounds = true;
+            BitmapFactory.decodeFile(photo.getPath(), bounds);
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = getSampleSize(bounds.outWidth, bounds.outHeight);
+            bitmap = BitmapFactory.decodeFile(photo.getPath(), options);
+            if (bitmap == null) {
+                throw new IOException("Can't decode " + photo);
+            }
+        }
+        return rotate(bitmap, exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL));
+    }
+
+    private int getSampleSize(@NonNull byte[] jpeg) {
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, bounds);
+        return getSampleSize(bounds.outWidth, bounds.outHeight);
+    }
+
+    /**
+     * @return the biggest power of two keeping both sides at least {@link #mSize}
+     */
+    private int getSampleSize(int width, int height) {
+        int sampleSize = 1;
+        while (width / (sampleSize * 2) >= mSize && height / (sampleSize * 2) >= mSize) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    @NonNull
+    private static Bitmap rotate(@NonNull Bitmap bitmap, int exifOrientation) {
+        int degrees;
+        switch (exifOrientation) {
+            case ExifInterface.ORIENTATION_ROTATE_90: degrees = 90; break;
+            case ExifInterface.ORIENTATION_ROTATE_180: degrees = 180; break;
+            case ExifInterface.ORIENTATION_ROTATE_270: degrees = 270; break;
+            default: return bitmap;
+        }
+        Matrix matrix = new Matrix();
+        matrix.postRotate(degrees);
+        Bitmap rotated = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+        if (rotated != bitmap) {
+            bitmap.recycle();
+        }
+        return rotated;
+    }
+
+    private void write(@NonNull Bitmap bitmap, @NonNull File file) throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Can't create " + mDirectory);
+        }
+        File tempFile = new File(mDirectory, file.getName() + TEMP_SUFFIX);
+        try (FileOutputStream output = new FileOutputStream(tempFile)) {
+            bitmap.compress(Bitmap.CompressFormat.JPEG, QUALITY, output);
+        }
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new IOException("Can't rename " + tempFile + " to " + file);
+        }
+    }
+}
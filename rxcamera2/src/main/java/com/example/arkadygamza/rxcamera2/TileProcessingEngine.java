@@ -0,0 +1,148 @@
+package com.example.arkadygamza.rxcamera2;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs a {@link FrameProcessor} over a frame split into square tiles on a {@link ForkJoinPool}.
+ * <p>
+ * The engine handles one frame at a time and never queues: a frame offered while another one is processed is dropped,
+ * so analysis always works on fresh frames and can't fall behind the sensor.
+ */
+public class TileProcessingEngine {
+
+    public static final int DEFAULT_TILE_SIZE = 128;
+
+    @NonNull
+    private final ForkJoinPool mPool;
+    private final int mTileSize;
+    private final AtomicBoolean mBusy = new AtomicBoolean();
+    private final AtomicLong mProcessedFrames = new AtomicLong();
+    private final AtomicLong mDroppedFrames = new AtomicLong();
+    private final AtomicLong mProcessingNanos = new AtomicLong();
+
+    public TileProcessingEngine(@NonNull ForkJoinPool pool, int tileSize) {
+        if (tileSize <= 0) {
+            throw new IllegalArgumentException("Tile size must be positive");
+        }
+        mPool = pool;
+        mTileSize = tileSize;
+    }
+
+    /**
+     * Engine on a pool leaving one core to the UI and camera threads
+     */
+    @NonNull
+    public static TileProcessingEngine create() {
+        return new TileProcessingEngine(new ForkJoinPool(Math.max(1, Runtime.getRuntime().availableProcessors() - 1)), DEFAULT_TILE_SIZE);
+    }
+
+    @NonNull
+    ForkJoinPool getPool() {
+        return mPool;
+    }
+
+    /**
+     * Processes the frame on the pool and waits for the result, regardless of other frames in progress.
+     */
+    @NonNull
+    public <R> R process(@NonNull YuvFrame frame, @NonNull FrameProcessor<R> processor) {
+        if (frame.width <= 0 || frame.height <= 0) {
+            throw new IllegalArgumentException("Empty frame");
+        }
+        long startNanos = System.nanoTime();
+        processor.onFrameStart(frame);
+        int columns = (frame.width + mTileSize - 1) / mTileSize;
+        int rows = (frame.height + mTileSize - 1) / mTileSize;
+        TileTask<R> task = new TileTask<>(frame, processor, columns, 0, columns * rows);
+        R result = ForkJoinTask.getPool() == mPool ? task.invoke() : mPool.invoke(task);
+        mProcessingNanos.addAndGet(System.nanoTime() - startNanos);
+        mProcessedFrames.incrementAndGet();
+        return result;
+    }
+
+    /**
+     * Marks the engine busy, a caller which got true must call {@link #release()} when its frame is done.
+     * Counts the frame as dropped if the engine is busy.
+     */
+    boolean tryAcquire() {
+        if (mBusy.compareAndSet(false, true)) {
+            return true;
+        }
+        mDroppedFrames.incrementAndGet();
+        return false;
+    }
+
+    void release() {
+        mBusy.set(false);
+    }
+
+    /**
+     * @return the result or null if the engine is busy with another frame and this one is dropped
+     */
+    @Nullable
+    public <R> R processOrDrop(@NonNull YuvFrame frame, @NonNull FrameProcessor<R> processor) {
+        if (!tryAcquire()) {
+            return null;
+        }
+        try {
+            return process(frame, processor);
+        }
+        finally {
+            release();
+        }
+    }
+
+    public long getProcessedFrames() {
+        return mProcessedFrames.get();
+    }
+
+    public long getDroppedFrames() {
+        return mDroppedFrames.get();
+    }
+
+    public double getAverageProcessingMillis() {
+        long processed = mProcessedFrames.get();
+        return processed == 0 ? 0 : mProcessingNanos.get() / 1e6 / processed;
+    }
+
+    /**
+     * Splits the range of tile indexes in halves until a single tile is left.
+     */
+    private class TileTask<R> extends RecursiveTask<R> {
+        private final YuvFrame mFrame;
+        private final FrameProcessor<R> mProcessor;
+        private final int mColumns;
+        private final int mFrom;
+        private final int mTo;
+
+        TileTask(YuvFrame frame, FrameProcessor<R> processor, int columns, int from, int to) {
+            mFrame = frame;
+            mProcessor = processor;
+            mColumns = columns;
+            mFrom = from;
+            mTo = to;
+        }
+
+        @Override
+        protected R compute() {
+            if (mTo - mFrom == 1) {
+                int left = (mFrom % mColumns) * mTileSize;
+                int top = (mFrom / mColumns) * mTileSize;
+                return mProcessor.processTile(mFrame, left, top,
+                    Math.min(left + mTileSize, mFrame.width), Math.min(top + mTileSize, mFrame.height));
+            }
+            int middle = (mFrom + mTo) >>> 1;
+            TileTask<R> second = new TileTask<>(mFrame, mProcessor, mColumns, middle, mTo);
+            second.fork();
+            R first = new TileTask<>(mFrame, mProcessor, mColumns, mFrom, middle).compute();
+            return mProcessor.combine(first, second.join());
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package com.example.arkadygamza.rxcamera2;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records spans of the camera pipeline into a fixed ring buffer and exports them in the Chrome trace event format,
+ * open the output in chrome://tracing or Perfetto.
+ * <p>
+ * Spans begin and end on different threads and interleave with each other, so they are recorded as async events matched
+ * by id. Recording is lock free and allocation free: a writer claims a slot with a single atomic increment, the oldest
+ * events are overwritten when the buffer is full. Disabled by default, a disabled tracer costs a volatile read per call.
+ */
+public class Tracer {
+
+    static final int CAPACITY = 8192;
+    private static final int MASK = CAPACITY - 1;
+
+    private static final char PHASE_BEGIN = 'b';
+    private static final char PHASE_END = 'e';
+    private static final char PHASE_INSTANT = 'n';
+
+    private static volatile boolean sEnabled;
+    private static final AtomicLong sCursor = new AtomicLong();
+    private static final AtomicLong sNextId = new AtomicLong();
+    /**
+     * Event index + 1 for complete slots, negative while a slot is written, lets the exporter skip torn slots
+     */
+    private static final AtomicLongArray sSequences = new AtomicLongArray(CAPACITY);
+    private static final String[] sNames = new String[CAPACITY];
+    private static final char[] sPhases = new char[CAPACITY];
+    private static final long[] sTimestampsNanos = new long[CAPACITY];
+    private static final long[] sThreadIds = new long[CAPACITY];
+    private static final long[] sIds = new long[CAPACITY];
+
+    private Tracer() {
+    }
+
+    public static void setEnabled(boolean enabled) {
+        sEnabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    /**
+     * @return id to pass to {@link #end(String, long)}, 0 if tracing is disabled
+     */
+    static long begin(@NonNull String name) {
+        if (!sEnabled) {
+            return 0;
+        }
+        long id = sNextId.incrementAndGet();
+        record(name, PHASE_BEGIN, id);
+        return id;
+    }
+
+    static void end(@NonNull String name, long id) {
+        if (id != 0) {
+            record(name, PHASE_END, id);
+        }
+    }
+
+    /**
+     * Point in time event, like a frame arriving
+     */
+    static void instant(@NonNull String name) {
+        if (sEnabled) {
+            record(name, PHASE_INSTANT, sNextId.incrementAndGet());
+        }
+    }
+
+    /**
+     * Forgets recorded events, not to be called while spans are recorded
+     */
+    public static void clear() {
+        for (int i = 0; i < CAPACITY; i++) {
+            sSequences.set(i, 0);
+        }
+    }
+
+    private static void record(@NonNull String name, char phase, long id) {
+        long index = sCursor.getAndIncrement();
+        int slot = (int) (index & MASK);
+        sSequences.set(slot, -(index + 1));
+        sNames[slot] = name;
+        sPhases[slot] = phase;
+        sTimestampsNanos[slot] = System.nanoTime();
+        sThreadIds[slot] = Thread.currentThread().getId();
+        sIds[slot] = id;
+        sSequences.lazySet(slot, index + 1);
+    }
+
+    /**
+     * Writes the recorded events as a Chrome trace JSON object, oldest first.
+     * Events recorded concurrently with the export may be missing.
+     */
+    public static void writeChromeTrace(@NonNull Writer writer) throws IOException {
+        List<TraceEvent> events = snapshot();
+        writer.write("{\"traceEvents\":[");
+        for (int i = 0; i < events.size(); i++) {
+            TraceEvent event = events.get(i);
+            if (i > 0) {
+                writer.write(",\n");
+            }
+            writer.write(String.format(Locale.US,
+                "{\"name\":\"%s\",\"cat\":\"camera\",\"ph\":\"%c\",\"id\":%d,\"ts\":%.3f,\"pid\":1,\"tid\":%d}",
+                escape(event.name), event.phase, event.id, event.timestampNanos / 1000.0, event.threadId));
+        }
+        writer.write("],\"displayTimeUnit\":\"ms\"}");
+        writer.flush();
+    }
+
+    @NonNull
+    private static List<TraceEvent> snapshot() {
+        List<TraceEvent> events = new ArrayList<>();
+        for (int slot = 0; slot < CAPACITY; slot++) {
+            long sequence = sSequences.get(slot);
+            if (sequence <= 0) {
+                continue;
+            }
+            TraceEvent event = new TraceEvent(sequence, sNames[slot], sPhases[slot], sTimestampsNanos[slot], sThreadIds[slot], sIds[slot]);
+            if (sSequences.get(slot) == sequence) {
+                events.add(event);
+            }
+        }
+        Collections.sort(events, (first, second) -> Long.compare(first.sequence, second.sequence));
+        return events;
+    }
+
+    @NonNull
+    private static String escape(@NonNull String name) {
+        return name.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    private static class TraceEvent {
+        final long sequence;
+        final String name;
+        final char phase;
+        final long timestampNanos;
+        final long threadId;
+        final long id;
+
+        TraceEvent(long sequence, String name, char phase, long timestampNanos, long threadId, long id) {
+            this.sequence = sequence;
+            this.name = name;
+            this.phase = phase;
+            this.timestampNanos = timestampNanos;
+            this.threadId = threadId;
+            this.id = id;
+        }
+    }
+}
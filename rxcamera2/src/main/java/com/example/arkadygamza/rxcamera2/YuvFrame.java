@@ -0,0 +1,78 @@
+package com.example.arkadygamza.rxcamera2;
+
+import android.support.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * View over the planes of a {@code YUV_420_888} frame, pixels are read in place from the plane buffers
+ * honoring row and pixel strides, nothing is copied.
+ * Reads use absolute {@link ByteBuffer#get(int)}, so one frame can be read from many threads.
+ */
+public class YuvFrame {
+
+    public static class Plane {
+        @NonNull
+        final ByteBuffer buffer;
+        final int rowStride;
+        final int pixelStride;
+
+        public Plane(@NonNull ByteBuffer buffer, int rowStride, int pixelStride) {
+            this.buffer = buffer;
+            this.rowStride = rowStride;
+            this.pixelStride = pixelStride;
+        }
+    }
+
+    final int width;
+    final int height;
+    final long timestamp;
+    @NonNull
+    final Plane y;
+    @NonNull
+    final Plane u;
+    @NonNull
+    final Plane v;
+
+    public YuvFrame(int width, int height, long timestamp, @NonNull Plane y, @NonNull Plane u, @NonNull Plane v) {
+        this.width = width;
+        this.height = height;
+        this.timestamp = timestamp;
+        this.y = y;
+        this.u = u;
+        this.v = v;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return luminance 0..255 of the pixel
+     */
+    int luma(int column, int row) {
+        return y.buffer.get(row * y.rowStride + column * y.pixelStride) & 0xFF;
+    }
+
+    /**
+     * @return U (Cb) 0..255 of the pixel, chroma is subsampled 2x2
+     */
+    int chromaU(int column, int row) {
+        return u.buffer.get((row >> 1) * u.rowStride + (column >> 1) * u.pixelStride) & 0xFF;
+    }
+
+    /**
+     * @return V (Cr) 0..255 of the pixel, chroma is subsampled 2x2
+     */
+    int chromaV(int column, int row) {
+        return v.buffer.get((row >> 1) * v.rowStride + (column >> 1) * v.pixelStride) & 0xFF;
+    }
+}
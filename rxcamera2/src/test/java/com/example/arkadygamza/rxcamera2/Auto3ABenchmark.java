@@ -0,0 +1,74 @@
+package com.example.arkadygamza.rxcamera2;
+
+import android.hardware.camera2.CameraMetadata;
+
+import org.junit.Test;
+
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Per-shot cost of the 3A setup, resolved for every request as before the cache vs resolved once per camera.
+ * Every uncached shot gets fresh copies of the mode arrays, like {@link android.hardware.camera2.CameraCharacteristics#get}
+ * returns; the native unmarshalling and {@code createCaptureRequest} need a device and are not measured.
+ * Prints nanoseconds per shot, asserts that both paths choose the same modes.
+ */
+public class Auto3ABenchmark {
+
+    private static final Float MIN_FOCUS_DISTANCE = 10f;
+    private static final int[] AF_MODES = {
+        CameraMetadata.CONTROL_AF_MODE_OFF, CameraMetadata.CONTROL_AF_MODE_AUTO, CameraMetadata.CONTROL_AF_MODE_MACRO,
+        CameraMetadata.CONTROL_AF_MODE_CONTINUOUS_VIDEO, CameraMetadata.CONTROL_AF_MODE_CONTINUOUS_PICTURE
+    };
+    private static final int[] AE_MODES = {
+        CameraMetadata.CONTROL_AE_MODE_OFF, CameraMetadata.CONTROL_AE_MODE_ON, CameraMetadata.CONTROL_AE_MODE_ON_AUTO_FLASH,
+        CameraMetadata.CONTROL_AE_MODE_ON_ALWAYS_FLASH, CameraMetadata.CONTROL_AE_MODE_ON_AUTO_FLASH_REDEYE
+    };
+    private static final int[] AWB_MODES = {
+        CameraMetadata.CONTROL_AWB_MODE_OFF, CameraMetadata.CONTROL_AWB_MODE_INCANDESCENT, CameraMetadata.CONTROL_AWB_MODE_FLUORESCENT,
+        CameraMetadata.CONTROL_AWB_MODE_DAYLIGHT, CameraMetadata.CONTROL_AWB_MODE_CLOUDY_DAYLIGHT, CameraMetadata.CONTROL_AWB_MODE_AUTO
+    };
+    private static final int WARM_UP_SHOTS = 200_000;
+    private static final int MEASURED_SHOTS = 1_000_000;
+
+    private interface Shot {
+        CaptureRequestTemplates.Auto3A auto3A();
+    }
+
+    @Test
+    public void resolvePerShotVsCached() {
+        Shot uncached = () -> CaptureRequestTemplates.Auto3A.resolve(MIN_FOCUS_DISTANCE, AF_MODES.clone(), AE_MODES.clone(), AWB_MODES.clone());
+        CaptureRequestTemplates.Auto3A resolvedOnce = CaptureRequestTemplates.Auto3A.resolve(MIN_FOCUS_DISTANCE, AF_MODES, AE_MODES, AWB_MODES);
+        Shot cached = () -> resolvedOnce;
+
+        long uncachedModes = run("resolved per shot", uncached);
+        long cachedModes = run("resolved once", cached);
+        assertEquals(uncachedModes, cachedModes);
+        assertEquals(CameraMetadata.CONTROL_AF_MODE_CONTINUOUS_PICTURE, (int) resolvedOnce.getAfMode());
+        assertEquals(CameraMetadata.CONTROL_AE_MODE_ON_AUTO_FLASH, resolvedOnce.getAeMode());
+        assertEquals(CameraMetadata.CONTROL_AWB_MODE_AUTO, (int) resolvedOnce.getAwbMode());
+    }
+
+    /**
+     * @return checksum of the chosen modes, keeps the work from being optimized away
+     */
+    private static long run(String name, Shot shot) {
+        long checksum = 0;
+        for (int i = 0; i < WARM_UP_SHOTS; i++) {
+            checksum += modes(shot.auto3A());
+        }
+        checksum = 0;
+        long startNanos = System.nanoTime();
+        for (int i = 0; i < MEASURED_SHOTS; i++) {
+            checksum += modes(shot.auto3A());
+        }
+        double nanosPerShot = (double) (System.nanoTime() - startNanos) / MEASURED_SHOTS;
+        System.out.println(String.format(Locale.US, "3A %-18s: %6.1f ns per shot", name, nanosPerShot));
+        return checksum;
+    }
+
+    private static int modes(CaptureRequestTemplates.Auto3A auto3A) {
+        return auto3A.getAfMode() * 100 + auto3A.getAeMode() * 10 + auto3A.getAwbMode();
+    }
+}
@@ -0,0 +1,70 @@
+package com.example.arkadygamza.rxcamera2;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BurstAssemblerTest {
+
+    /**
+     * Equal to any other request, as capture requests with the same settings are
+     */
+    private static class Request {
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Request;
+        }
+
+        @Override
+        public int hashCode() {
+            return 0;
+        }
+    }
+
+    @Test
+    public void requestsWithTheSameSettingsFillTheirOwnSlots() {
+        List<Request> requests = Arrays.asList(new Request(), new Request(), new Request(), new Request());
+        BurstAssembler<Request, String, String> assembler = new BurstAssembler<>(requests);
+        // results and frames in reverse order, frames first for half of them
+        List<Integer> order = new ArrayList<>(Arrays.asList(0, 1, 2, 3));
+        Collections.reverse(order);
+        for (int i : order) {
+            if (i % 2 == 0) {
+                assembler.onFrame(1000 + i, "frame " + i);
+            }
+            assertFalse(assembler.isFilled());
+            assertTrue(assembler.onResult(requests.get(i), "result " + i, 1000L + i));
+            if (i % 2 == 1) {
+                assembler.onFrame(1000 + i, "frame " + i);
+            }
+        }
+        assertTrue(assembler.isFilled());
+        assertEquals(Arrays.asList("frame 0", "frame 1", "frame 2", "frame 3"), assembler.getFrames());
+        assertEquals("result 2", assembler.getResult(2));
+    }
+
+    @Test
+    public void foreignRequestIsIgnored() {
+        BurstAssembler<Request, String, String> assembler = new BurstAssembler<>(Collections.singletonList(new Request()));
+        assertFalse(assembler.onResult(new Request(), "result", 1000L));
+        assertNull(assembler.getResult(0));
+    }
+
+    @Test
+    public void framesNotMatchingTheResultsAreReported() {
+        Request request = new Request();
+        BurstAssembler<Request, String, String> assembler = new BurstAssembler<>(Collections.singletonList(request));
+        assembler.onResult(request, "result", 1000L);
+        assembler.onFrame(2000, "frame");
+        assertTrue(assembler.isFilled());
+        assertNull(assembler.getFrames());
+    }
+}
@@ -0,0 +1,52 @@
+package com.example.arkadygamza.rxcamera2;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CaptureFailureMonitorTest {
+
+    @Test
+    public void toleratesSparseFailures() {
+        CaptureFailureMonitor monitor = new CaptureFailureMonitor(10, 0.5f);
+        for (int i = 0; i < 100; i++) {
+            if (i % 3 == 0) {
+                assertFalse(monitor.onFailed(false));
+            }
+            else {
+                monitor.onCompleted();
+            }
+        }
+        CaptureFailureMonitor.Stats stats = monitor.getStats();
+        assertEquals(34, stats.failedFrames);
+        assertEquals(66, stats.completedFrames);
+        assertEquals(0, stats.escalations);
+    }
+
+    @Test
+    public void escalatesWhenTheWindowFails() {
+        CaptureFailureMonitor monitor = new CaptureFailureMonitor(10, 0.5f);
+        for (int i = 0; i < 5; i++) {
+            monitor.onCompleted();
+        }
+        for (int i = 0; i < 4; i++) {
+            assertFalse(monitor.onFailed(false));
+        }
+        // the window is full with half of it failed
+        assertTrue(monitor.onFailed(false));
+        assertEquals(1, monitor.getStats().escalations);
+        assertEquals(0, monitor.getStats().windowFailureRate, 0);
+    }
+
+    @Test
+    public void flushedFramesNeverEscalate() {
+        CaptureFailureMonitor monitor = new CaptureFailureMonitor(10, 0.5f);
+        for (int i = 0; i < 100; i++) {
+            assertFalse(monitor.onFailed(true));
+        }
+        assertEquals(100, monitor.getStats().flushedFrames);
+        assertEquals(0, monitor.getStats().getFailureRate(), 0);
+    }
+}
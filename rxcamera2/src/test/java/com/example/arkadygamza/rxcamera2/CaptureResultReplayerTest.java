@@ -0,0 +1,103 @@
+package com.example.arkadygamza.rxcamera2;
+
+import android.hardware.camera2.CameraMetadata;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import io.reactivex.observers.TestObserver;
+import io.reactivex.schedulers.TestScheduler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays synthetic 30 fps logs through the shutter flow in virtual time.
+ */
+public class CaptureResultReplayerTest {
+
+    private static final long FRAME_NANOS = TimeUnit.MILLISECONDS.toNanos(33);
+
+    @Test
+    public void logSurvivesRoundTrip() throws IOException {
+        List<CaptureResultLog.Record> records = readBack(createLog(10, 5, 60));
+        assertEquals(60, records.size());
+        assertEquals(CameraMetadata.CONTROL_AF_STATE_ACTIVE_SCAN, (int) records.get(0).afState);
+        assertEquals(CameraMetadata.CONTROL_AF_TRIGGER_START, (int) records.get(0).afTrigger);
+        assertEquals(null, records.get(1).afTrigger);
+        assertEquals(59 * FRAME_NANOS, records.get(59).arrivalNanos);
+    }
+
+    @Test
+    public void shutterWaitsForAfThenAe() throws IOException {
+        CaptureResultReplayer.ShutterReplay replay = replayShutter(readBack(createLog(10, 15, 60)), 1);
+        assertFalse(replay.timedOut);
+        assertEquals(10 * FRAME_NANOS, replay.autoFocusNanos);
+        assertEquals(5 * FRAME_NANOS, replay.autoExposureNanos);
+    }
+
+    @Test
+    public void latenciesDontDependOnSpeed() throws IOException {
+        List<CaptureResultLog.Record> records = readBack(createLog(10, 15, 60));
+        CaptureResultReplayer.ShutterReplay realTime = replayShutter(records, 1);
+        CaptureResultReplayer.ShutterReplay accelerated = replayShutter(records, 10);
+        assertEquals(realTime.getTotalNanos(), accelerated.getTotalNanos(), FRAME_NANOS / 10);
+    }
+
+    @Test
+    public void focusNeverLockingTimesOut() throws IOException {
+        CaptureResultReplayer.ShutterReplay replay = replayShutter(readBack(createLog(1000, 0, 200)), 1);
+        assertTrue(replay.timedOut);
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(CaptureResultReplayer.CONVERGE_TIMEOUT_MILLIS), replay.autoFocusNanos);
+    }
+
+    @Test
+    public void exposureAfterFocusTimeoutStartsAtTheTimeout() throws IOException {
+        // AE converges at 4 s of the log, 1 s after the AF timeout at 3 s
+        int aeSearchFrames = (int) (TimeUnit.SECONDS.toNanos(4) / FRAME_NANOS);
+        CaptureResultReplayer.ShutterReplay replay = replayShutter(readBack(createLog(1000, aeSearchFrames, 200)), 1);
+        assertTrue(replay.timedOut);
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(CaptureResultReplayer.CONVERGE_TIMEOUT_MILLIS), replay.autoFocusNanos);
+        assertEquals(TimeUnit.SECONDS.toNanos(1), replay.autoExposureNanos, FRAME_NANOS);
+    }
+
+    private static CaptureResultReplayer.ShutterReplay replayShutter(List<CaptureResultLog.Record> records, double speed) {
+        TestScheduler scheduler = new TestScheduler();
+        TestObserver<CaptureResultReplayer.ShutterReplay> observer = new CaptureResultReplayer(records, speed, scheduler).replayShutter(0).test();
+        scheduler.advanceTimeBy(1, TimeUnit.MINUTES);
+        observer.assertComplete();
+        return observer.values().get(0);
+    }
+
+    /**
+     * AF scans for the given number of frames after the trigger in the first frame, AE searches until the given frame
+     */
+    private static byte[] createLog(int afScanFrames, int aeSearchFrames, int frames) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (CaptureResultLog.Writer writer = new CaptureResultLog.Writer(output)) {
+            for (int frame = 0; frame < frames; frame++) {
+                writer.append(new CaptureResultLog.Record(
+                    frame,
+                    1_000_000_000L + frame * FRAME_NANOS,
+                    frame * FRAME_NANOS,
+                    frame < afScanFrames ? CameraMetadata.CONTROL_AF_STATE_ACTIVE_SCAN : CameraMetadata.CONTROL_AF_STATE_FOCUSED_LOCKED,
+                    frame < aeSearchFrames ? CameraMetadata.CONTROL_AE_STATE_SEARCHING : CameraMetadata.CONTROL_AE_STATE_CONVERGED,
+                    CameraMetadata.CONTROL_AWB_STATE_CONVERGED,
+                    frame == 0 ? CameraMetadata.CONTROL_AF_TRIGGER_START : null,
+                    null
+                ));
+            }
+        }
+        return output.toByteArray();
+    }
+
+    private static List<CaptureResultLog.Record> readBack(byte[] log) throws IOException {
+        return CaptureResultLog.read(new ByteArrayInputStream(log));
+    }
+}
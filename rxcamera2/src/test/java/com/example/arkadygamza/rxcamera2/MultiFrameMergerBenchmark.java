@@ -0,0 +1,212 @@
+package com.example.arkadygamza.rxcamera2;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Throughput and quality of {@link MultiFrameMerger} on synthetic 1080p bursts: a textured scene shifted a few pixels
+ * per frame (hand shake) with sensor noise. Prints frames per second for one thread vs all cores and the noise
+ * before and after merging.
+ */
+public class MultiFrameMergerBenchmark {
+
+    private static final int WIDTH = 1920;
+    private static final int HEIGHT = 1080;
+    private static final int ROW_PADDING = 64;
+    private static final int FRAMES = 4;
+    private static final int[][] SHIFTS = {{0, 0}, {3, -2}, {-5, 1}, {2, 6}};
+    private static final int NOISE = 12;
+    private static final long MEMORY_BUDGET_BYTES = 8 * 1024 * 1024;
+    private static final int WARM_UP_MERGES = 3;
+    private static final int MEASURED_MERGES = 10;
+
+    @Test
+    public void lowLightBurst() {
+        int[][] scene = createScene(1);
+        List<YuvFrame> frames = new ArrayList<>();
+        for (int i = 0; i < FRAMES; i++) {
+            frames.add(createFrame(scene, SHIFTS[i][0], SHIFTS[i][1], 1, new Random(i)));
+        }
+        float[] gains = new float[FRAMES];
+        Arrays.fill(gains, 1);
+
+        MultiFrameMerger.MergedFrame sequential = run("low light x" + FRAMES, 1, frames, gains);
+        MultiFrameMerger.MergedFrame parallel = run("low light x" + FRAMES, cores(), frames, gains);
+        assertArrayEquals(sequential.nv21, parallel.nv21);
+
+        double noiseBefore = lumaError(frames.get(0), scene);
+        double noiseAfter = lumaError(parallel, scene);
+        System.out.println(String.format(Locale.US, "luma error %.2f -> %.2f, rejected %.1f%%, mean shift %.2f px",
+            noiseBefore, noiseAfter, parallel.rejectedFraction * 100, parallel.averageShift));
+        assertTrue("merging must reduce noise", noiseAfter < noiseBefore * 0.75);
+    }
+
+    @Test
+    public void hdrBracket() {
+        int[][] scene = createScene(2);
+        float[] gains = {1, 0.25f, 4};
+        List<YuvFrame> frames = new ArrayList<>();
+        for (int i = 0; i < gains.length; i++) {
+            frames.add(createFrame(scene, SHIFTS[i][0], SHIFTS[i][1], gains[i], new Random(i)));
+        }
+        MultiFrameMerger.MergedFrame merged = run("hdr x" + gains.length, cores(), frames, gains);
+        // the reference clips the bright half, the darker frame keeps it and the knee squeezes it below white
+        int clippedBefore = countClipped(frames.get(0));
+        int clippedAfter = countClipped(merged);
+        System.out.println(String.format(Locale.US, "clipped pixels %d -> %d", clippedBefore, clippedAfter));
+        assertTrue(clippedAfter < clippedBefore / 10);
+    }
+
+    @Test
+    public void tileSizeFitsTheBudget() {
+        int tileSize = MultiFrameMerger.chooseTileSize(MEMORY_BUDGET_BYTES, 8, FRAMES);
+        assertTrue(8 * MultiFrameMerger.getScratchBytes(tileSize, FRAMES) <= MEMORY_BUDGET_BYTES);
+        assertEquals(32, MultiFrameMerger.chooseTileSize(8 * MultiFrameMerger.getScratchBytes(32, FRAMES), 8, FRAMES));
+    }
+
+    @Test
+    public void rotation() {
+        byte[] nv21 = new byte[4 * 2 * 3 / 2];
+        for (int i = 0; i < nv21.length; i++) {
+            nv21[i] = (byte) i;
+        }
+        MultiFrameMerger.MergedFrame frame = new MultiFrameMerger.MergedFrame(4, 2, nv21, 0, 0);
+        MultiFrameMerger.MergedFrame rotated = frame.rotate(90);
+        assertEquals(2, rotated.width);
+        assertEquals(4, rotated.height);
+        assertArrayEquals(nv21, rotated.rotate(90).rotate(180).nv21);
+        // top left goes to the top right
+        assertEquals(nv21[0], rotated.nv21[1]);
+    }
+
+    private static MultiFrameMerger.MergedFrame run(String name, int threads, List<YuvFrame> frames, float[] gains) {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            MultiFrameMerger merger = new MultiFrameMerger(pool, MEMORY_BUDGET_BYTES, frames.size());
+            MultiFrameMerger.MergedFrame result = null;
+            for (int i = 0; i < WARM_UP_MERGES; i++) {
+                result = merger.merge(frames, gains);
+            }
+            long startNanos = System.nanoTime();
+            for (int i = 0; i < MEASURED_MERGES; i++) {
+                result = merger.merge(frames, gains);
+            }
+            double seconds = (System.nanoTime() - startNanos) / 1e9;
+            System.out.println(String.format(Locale.US, "%-14s %2d threads, tile %3d: %6.2f fps",
+                name, threads, merger.getTileSize(), MEASURED_MERGES / seconds));
+            return result;
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    private static int cores() {
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Random blocks of 8x8 over a gradient, in scene radiance where 255 is white at gain 1. Brightness scales the
+     * right half, so with 2 it clips at gain 1.
+     */
+    private static int[][] createScene(int brightness) {
+        Random random = new Random(7);
+        int[][] scene = new int[HEIGHT][WIDTH];
+        int[][] blocks = new int[HEIGHT / 8 + 1][WIDTH / 8 + 1];
+        for (int[] row : blocks) {
+            for (int i = 0; i < row.length; i++) {
+                row[i] = random.nextInt(120);
+            }
+        }
+        for (int row = 0; row < HEIGHT; row++) {
+            for (int column = 0; column < WIDTH; column++) {
+                int value = 40 + column / 24 + blocks[row / 8][column / 8];
+                scene[row][column] = column >= WIDTH / 2 ? value * brightness : value;
+            }
+        }
+        return scene;
+    }
+
+    /**
+     * The scene moved by the shift and exposed with the gain, plus noise. Y rows are padded, U and V interleaved.
+     */
+    private static YuvFrame createFrame(int[][] scene, int shiftX, int shiftY, float gain, Random random) {
+        int lumaRowStride = WIDTH + ROW_PADDING;
+        ByteBuffer luma = ByteBuffer.allocateDirect(lumaRowStride * HEIGHT);
+        for (int row = 0; row < HEIGHT; row++) {
+            int sceneRow = Math.max(0, Math.min(HEIGHT - 1, row + shiftY));
+            for (int column = 0; column < WIDTH; column++) {
+                int sceneColumn = Math.max(0, Math.min(WIDTH - 1, column + shiftX));
+                float value = scene[sceneRow][sceneColumn] * gain + (float) random.nextGaussian() * NOISE;
+                luma.put(row * lumaRowStride + column, (byte) Math.max(0, Math.min(255, Math.round(value))));
+            }
+        }
+        int chromaRowStride = WIDTH + ROW_PADDING;
+        ByteBuffer chroma = ByteBuffer.allocateDirect(chromaRowStride * HEIGHT / 2);
+        for (int i = 0; i < chroma.capacity(); i++) {
+            chroma.put(i, (byte) (128 + random.nextInt(8)));
+        }
+        ByteBuffer u = chroma.duplicate();
+        chroma.position(1);
+        ByteBuffer v = chroma.slice();
+        return new YuvFrame(WIDTH, HEIGHT, 0,
+            new YuvFrame.Plane(luma, lumaRowStride, 1),
+            new YuvFrame.Plane(u, chromaRowStride, 2),
+            new YuvFrame.Plane(v, chromaRowStride, 2));
+    }
+
+    /**
+     * Root mean square difference to the scene, away from the edges where shifted frames repeat pixels
+     */
+    private static double lumaError(YuvFrame frame, int[][] scene) {
+        double sum = 0;
+        long count = 0;
+        for (int row = 16; row < HEIGHT - 16; row++) {
+            for (int column = 16; column < WIDTH - 16; column++) {
+                double difference = frame.luma(column, row) - Math.min(255, scene[row][column]);
+                sum += difference * difference;
+                count++;
+            }
+        }
+        return Math.sqrt(sum / count);
+    }
+
+    private static double lumaError(MultiFrameMerger.MergedFrame frame, int[][] scene) {
+        ByteBuffer luma = ByteBuffer.wrap(frame.nv21);
+        return lumaError(new YuvFrame(frame.width, frame.height, 0,
+            new YuvFrame.Plane(luma, frame.width, 1), new YuvFrame.Plane(luma, frame.width, 1), new YuvFrame.Plane(luma, frame.width, 1)), scene);
+    }
+
+    private static int countClipped(YuvFrame frame) {
+        int count = 0;
+        for (int row = 0; row < HEIGHT; row++) {
+            for (int column = 0; column < WIDTH; column++) {
+                if (frame.luma(column, row) >= 250) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private static int countClipped(MultiFrameMerger.MergedFrame frame) {
+        int count = 0;
+        for (int i = 0; i < frame.width * frame.height; i++) {
+            if ((frame.nv21[i] & 0xFF) >= 250) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,56 @@
+package com.example.arkadygamza.rxcamera2;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import io.reactivex.Observable;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.subjects.PublishSubject;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RxInstrumentationTest {
+
+    @Before
+    public void setUp() {
+        RxInstrumentation.install();
+    }
+
+    @After
+    public void tearDown() {
+        RxInstrumentation.uninstall();
+        RxInstrumentation.reset();
+    }
+
+    @Test
+    public void countsEmissionsOfNamedStreams() {
+        Observable.range(0, 10).map(value -> value * 2).test().assertValueCount(10);
+        RxInstrumentation.Stream stream = findStream("countsEmissionsOfNamedStreams");
+        assertEquals(0, stream.liveSubscriptions);
+        assertTrue(stream.emissions >= 10);
+    }
+
+    @Test
+    public void reportsUndisposedSubscriptions() {
+        PublishSubject<Integer> subject = PublishSubject.create();
+        Disposable disposable = subject.map(value -> value + 1).subscribe();
+        assertEquals(1, findStream("reportsUndisposedSubscriptions").liveSubscriptions);
+        assertTrue(!RxInstrumentation.getUndisposedStreams().isEmpty());
+        disposable.dispose();
+        assertEquals(0, findStream("reportsUndisposedSubscriptions").liveSubscriptions);
+    }
+
+    private static RxInstrumentation.Stream findStream(String method) {
+        List<RxInstrumentation.Stream> streams = RxInstrumentation.getStreams();
+        for (RxInstrumentation.Stream stream : streams) {
+            if (stream.name.startsWith(RxInstrumentationTest.class.getSimpleName() + "." + method)) {
+                return stream;
+            }
+        }
+        throw new AssertionError("No stream of " + method + " in " + streams);
+    }
+}
@@ -0,0 +1,65 @@
+package com.example.arkadygamza.rxcamera2;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class ShotIndexTest {
+
+    private static final int FRONT = 0;
+    private static final int BACK = 1;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void queriesByTimeAndFacing() throws IOException {
+        File file = mFolder.newFile(ShotIndex.FILE_NAME);
+        try (ShotIndex index = new ShotIndex(file)) {
+            for (int i = 0; i < 100; i++) {
+                index.append(createShot(i, 1000 + i * 10, i % 2 == 0 ? BACK : FRONT));
+            }
+            List<ShotIndex.Shot> shots = index.query(1200, 1300, null);
+            assertEquals(10, shots.size());
+            assertEquals("IMG_20.jpg", shots.get(0).fileName);
+            assertEquals("IMG_29.jpg", shots.get(9).fileName);
+            assertEquals(5, index.query(1200, 1300, FRONT).size());
+            assertEquals(0, index.query(0, 1000, null).size());
+            assertEquals(100, index.query(Long.MIN_VALUE, Long.MAX_VALUE, null).size());
+        }
+    }
+
+    @Test
+    public void survivesReopenAndTornRecord() throws IOException {
+        File file = mFolder.newFile(ShotIndex.FILE_NAME);
+        try (ShotIndex index = new ShotIndex(file)) {
+            index.append(createShot(0, 1000, BACK));
+            index.append(createShot(1, 2000, BACK));
+        }
+        try (RandomAccessFile torn = new RandomAccessFile(file, "rw")) {
+            torn.setLength(2 * ShotIndex.RECORD_SIZE + 7);
+        }
+        try (ShotIndex index = new ShotIndex(file)) {
+            assertEquals(2, index.size());
+            // the clock went back, the shot stays in order
+            index.append(createShot(2, 1500, FRONT));
+            ShotIndex.Shot shot = index.query(2000, 2001, FRONT).get(0);
+            assertEquals("IMG_2.jpg", shot.fileName);
+            assertEquals(400, shot.iso);
+            assertEquals(2.5f, shot.focusDistance, 0);
+            assertEquals(40, shot.saveMillis);
+        }
+    }
+
+    private static ShotIndex.Shot createShot(int number, long takenAtMillis, int lensFacing) {
+        return new ShotIndex.Shot("IMG_" + number + ".jpg", takenAtMillis, number * 33_000_000L, 10_000_000L, 400, 2.5f,
+            lensFacing, 10, 20, 30, 40);
+    }
+}
@@ -0,0 +1,107 @@
+package com.example.arkadygamza.rxcamera2;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Throughput of {@link TileProcessingEngine} on synthetic 1080p frames with padded rows and interleaved chroma,
+ * single thread vs all cores. Prints frames per second, asserts that both produce the same results.
+ */
+public class TileProcessingEngineBenchmark {
+
+    private static final int WIDTH = 1920;
+    private static final int HEIGHT = 1080;
+    private static final int ROW_PADDING = 64;
+    private static final int WARM_UP_FRAMES = 20;
+    private static final int MEASURED_FRAMES = 50;
+
+    @Test
+    public void luminanceStatistics() {
+        YuvFrame frame = createSyntheticFrame();
+        FrameProcessors.LuminanceStatistics sequential = run("luminance statistics", 1, frame, FrameProcessors.luminanceStatistics());
+        FrameProcessors.LuminanceStatistics parallel = run("luminance statistics", cores(), frame, FrameProcessors.luminanceStatistics());
+        assertEquals((long) WIDTH * HEIGHT, parallel.getPixelCount());
+        assertEquals(sequential.getMean(), parallel.getMean(), 0);
+    }
+
+    @Test
+    public void edgeMap() {
+        YuvFrame frame = createSyntheticFrame();
+        ByteBuffer sequential = copy(run("edge map", 1, frame, FrameProcessors.edgeMap()));
+        ByteBuffer parallel = run("edge map", cores(), frame, FrameProcessors.edgeMap());
+        assertEquals(sequential, parallel);
+    }
+
+    @Test
+    public void downscale() {
+        YuvFrame frame = createSyntheticFrame();
+        ByteBuffer sequential = copy(run("downscale x4", 1, frame, FrameProcessors.downscale(4)));
+        ByteBuffer parallel = run("downscale x4", cores(), frame, FrameProcessors.downscale(4));
+        assertEquals((WIDTH / 4) * (HEIGHT / 4), parallel.capacity());
+        assertEquals(sequential, parallel);
+    }
+
+    private static <R> R run(String name, int threads, YuvFrame frame, FrameProcessor<R> processor) {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            TileProcessingEngine engine = new TileProcessingEngine(pool, TileProcessingEngine.DEFAULT_TILE_SIZE);
+            R result = null;
+            for (int i = 0; i < WARM_UP_FRAMES; i++) {
+                result = engine.process(frame, processor);
+            }
+            long startNanos = System.nanoTime();
+            for (int i = 0; i < MEASURED_FRAMES; i++) {
+                result = engine.process(frame, processor);
+            }
+            double seconds = (System.nanoTime() - startNanos) / 1e9;
+            System.out.println(String.format(Locale.US, "%-22s %2d threads: %7.1f fps", name, threads, MEASURED_FRAMES / seconds));
+            return result;
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    private static int cores() {
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    private static ByteBuffer copy(ByteBuffer buffer) {
+        ByteBuffer copy = ByteBuffer.allocate(buffer.capacity());
+        copy.put(buffer.duplicate());
+        copy.flip();
+        return copy;
+    }
+
+    /**
+     * Gradient with noise, Y rows padded like real hardware buffers, U and V interleaved in one buffer (pixel stride 2).
+     */
+    private static YuvFrame createSyntheticFrame() {
+        Random random = new Random(42);
+        int lumaRowStride = WIDTH + ROW_PADDING;
+        ByteBuffer luma = ByteBuffer.allocateDirect(lumaRowStride * HEIGHT);
+        for (int row = 0; row < HEIGHT; row++) {
+            for (int column = 0; column < WIDTH; column++) {
+                luma.put(row * lumaRowStride + column, (byte) ((column + row) / 12 + random.nextInt(16)));
+            }
+        }
+        int chromaRowStride = WIDTH + ROW_PADDING;
+        ByteBuffer chroma = ByteBuffer.allocateDirect(chromaRowStride * HEIGHT / 2);
+        for (int i = 0; i < chroma.capacity(); i++) {
+            chroma.put(i, (byte) (128 + random.nextInt(8)));
+        }
+        ByteBuffer u = chroma.duplicate();
+        chroma.position(1);
+        ByteBuffer v = chroma.slice();
+        return new YuvFrame(WIDTH, HEIGHT, 0,
+            new YuvFrame.Plane(luma, lumaRowStride, 1),
+            new YuvFrame.Plane(u, chromaRowStride, 2),
+            new YuvFrame.Plane(v, chromaRowStride, 2));
+    }
+}